@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarkBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+
+/**
+ * Creates synthetic bookmarks for the benchmarks. Tags and title words are drawn from vocabularies with a Zipf
+ * distribution, so like in real bookmark collections a few tags are used by many bookmarks and most tags are rare. The
+ * data is created from a fixed seed, so all runs use the same bookmarks.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+final class BookmarkData {
+// ------------------------------ FIELDS ------------------------------
+
+    /** number of different tags. */
+    static final int TAG_VOCABULARY_SIZE = 2000;
+
+    /** number of different title words. */
+    static final int WORD_VOCABULARY_SIZE = 20000;
+
+    /** exponent of the Zipf distributions. */
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    /** maximum number of tags per bookmark. */
+    private static final int MAX_TAGS = 6;
+
+    /** maximum number of words per title. */
+    private static final int MAX_TITLE_WORDS = 8;
+
+    /** the random generator. */
+    private final Random random;
+
+    /** the tag distribution. */
+    private final Zipf tags = new Zipf(TAG_VOCABULARY_SIZE, ZIPF_EXPONENT);
+
+    /** the title word distribution. */
+    private final Zipf words = new Zipf(WORD_VOCABULARY_SIZE, ZIPF_EXPONENT);
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    BookmarkData(long seed) {
+        random = new Random(seed);
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * creates bookmarks without id.
+     *
+     * @param count
+     *         the number of bookmarks
+     * @return the bookmarks, all with different urls
+     */
+    List<Bookmark> bookmarks(int count) {
+        List<Bookmark> bookmarks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            bookmarks.add(bookmark("http://www.example" + i + ".com/" + word()));
+        }
+        return bookmarks;
+    }
+
+    /**
+     * creates a bookmark without id.
+     *
+     * @param url
+     *         the url of the bookmark
+     * @return the bookmark
+     */
+    Bookmark bookmark(String url) {
+        StringBuilder title = new StringBuilder(word());
+        for (int i = random.nextInt(MAX_TITLE_WORDS); i > 0; i--) {
+            title.append(' ').append(word());
+        }
+        BookmarkBuilder builder = aBookmark().withUrl(url).withTitle(title.toString());
+        for (int i = 1 + random.nextInt(MAX_TAGS); i > 0; i--) {
+            builder.addTag(tag());
+        }
+        return builder.build();
+    }
+
+    /**
+     * draws a tag.
+     *
+     * @return the tag
+     */
+    String tag() {
+        return "tag" + tags.next(random);
+    }
+
+    /**
+     * draws distinct tags.
+     *
+     * @param count
+     *         the number of tags
+     * @return the tags
+     */
+    List<String> tags(int count) {
+        List<String> tagList = new ArrayList<>(count);
+        while (tagList.size() < count) {
+            String tag = tag();
+            if (!tagList.contains(tag)) {
+                tagList.add(tag);
+            }
+        }
+        return tagList;
+    }
+
+    /**
+     * draws a title word.
+     *
+     * @return the word
+     */
+    String word() {
+        return "word" + words.next(random);
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Zipf distribution over the ranks 0 to n - 1, sampled with a binary search in the cumulative probabilities.
+     */
+    private static final class Zipf {
+        /** the cumulative probabilities of the ranks. */
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0.0;
+            for (int rank = 0; rank < n; rank++) {
+                sum += 1.0 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < n; rank++) {
+                cumulative[rank] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min((index >= 0) ? index : -index - 1, cumulative.length - 1);
+        }
+    }
+}
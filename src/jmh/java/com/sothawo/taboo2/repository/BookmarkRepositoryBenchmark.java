@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.repository.jpa.DBManager;
+import com.sothawo.taboo2.repository.jpa.H2Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JMH benchmarks for the BookmarkRepository implementations. Every trial fills a fresh repository with synthetic
+ * bookmarks (see {@link BookmarkData}), the queries are drawn from the same distributions as the data. Run with the
+ * jmh maven profile, adding {@code -prof gc} (the default arguments of the profile) reports the allocation rate.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BookmarkRepositoryBenchmark {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the database for the H2 repository. */
+    private static final String H2_JDBC_URL = "jdbc:h2:./target/jmh/bookmark-db";
+
+    private static final String DB_CHANGELOG = "db/db-changelog.xml";
+
+    /** the data file for the memory-mapped repository. */
+    private static final String MAPPED_FILE = "./target/jmh/bookmarks.dat";
+
+    /** seed for the synthetic data. */
+    private static final long SEED = 42L;
+
+    /** number of prepared queries of each kind. */
+    private static final int QUERY_COUNT = 1024;
+
+    /** number of bookmarks imported in one call. */
+    private static final int IMPORT_CHUNK_SIZE = 10_000;
+
+    @Param({"InMemory", "Mapped", "H2"})
+    public String repositoryType;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private BookmarkRepository repository;
+
+    private BookmarkData data;
+
+    /** ids of the stored bookmarks. */
+    private String[] ids;
+
+    /** prepared search words. */
+    private String[] searches;
+
+    /** counter for the urls of created bookmarks. */
+    private final AtomicLong createCounter = new AtomicLong();
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @TearDown(Level.Trial)
+    public void closeRepository() throws Exception {
+        repository.purge();
+        repository.close();
+    }
+
+    /**
+     * the repository grows during the measurement, the trial starts with {@link #size} bookmarks.
+     */
+    @Benchmark
+    public Bookmark createBookmark() {
+        return repository.createBookmark(data.bookmark("http://create.example.com/" + createCounter.incrementAndGet()));
+    }
+
+    @Benchmark
+    public void dumpBookmarks(Blackhole blackhole) {
+        repository.dumpBookmarks(blackhole::consume);
+    }
+
+    @Benchmark
+    public Collection<String> getAllTags() {
+        return repository.getAllTags();
+    }
+
+    @Benchmark
+    public Bookmark getBookmarkById() {
+        return repository.getBookmarkById(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    @Benchmark
+    public Collection<Bookmark> getBookmarksWithSearch() {
+        return repository.getBookmarksWithSearch(searches[ThreadLocalRandom.current().nextInt(searches.length)]);
+    }
+
+    @Benchmark
+    public Collection<Bookmark> getBookmarksWithTagsAnd(TagQueries tagQueries) {
+        return repository.getBookmarksWithTags(tagQueries.next(), true);
+    }
+
+    @Benchmark
+    public Collection<Bookmark> getBookmarksWithTagsOr(TagQueries tagQueries) {
+        return repository.getBookmarksWithTags(tagQueries.next(), false);
+    }
+
+    @Setup(Level.Trial)
+    public void setupRepository() {
+        switch (repositoryType) {
+            case "InMemory":
+                repository = new InMemoryRepository();
+                break;
+            case "Mapped":
+                repository = new MappedRepository(Paths.get(MAPPED_FILE));
+                repository.purge();
+                break;
+            case "H2":
+                DBManager.updateDB(H2_JDBC_URL, DB_CHANGELOG);
+                repository = new H2Repository(H2_JDBC_URL);
+                repository.purge();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown repository type " + repositoryType);
+        }
+
+        data = new BookmarkData(SEED);
+        for (int imported = 0; imported < size; imported += IMPORT_CHUNK_SIZE) {
+            repository.importBookmarks(data.bookmarks(Math.min(IMPORT_CHUNK_SIZE, size - imported)));
+        }
+        ids = repository.getAllBookmarks().stream().map(Bookmark::getId).toArray(String[]::new);
+        searches = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            searches[i] = data.word();
+        }
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * prepared tag queries with a given number of tags.
+     */
+    @State(Scope.Benchmark)
+    public static class TagQueries {
+        @Param({"1", "2", "4", "8"})
+        public int tagCount;
+
+        private List<String>[] queries;
+
+        @SuppressWarnings("unchecked")
+        @Setup(Level.Trial)
+        public void setupQueries() {
+            BookmarkData queryData = new BookmarkData(SEED + tagCount);
+            queries = new List[QUERY_COUNT];
+            for (int i = 0; i < QUERY_COUNT; i++) {
+                queries[i] = queryData.tags(tagCount);
+            }
+        }
+
+        List<String> next() {
+            return queries[ThreadLocalRandom.current().nextInt(queries.length)];
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingRequestWrapper;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one line with method, uri, query, status, duration, client and user for a request to the access log. Only
+ * the configured fraction of the requests is logged, requests answered with an error status are always logged.
+ * <p>
+ * The request body is only buffered and logged when the payload logger {@value #PAYLOAD_LOGGER} is set to DEBUG, this
+ * can be switched at runtime in the logback configuration. The access log lines are written by an asynchronous
+ * appender, see logback.xml.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class AccessLogFilter extends OncePerRequestFilter {
+// ------------------------------ FIELDS ------------------------------
+
+    /** name of the access logger. */
+    public static final String ACCESS_LOGGER = "taboo2.access";
+
+    /** name of the logger that enables the logging of the request bodies. */
+    public static final String PAYLOAD_LOGGER = "taboo2.access.payload";
+
+    /** the access log. */
+    private static final Logger ACCESS_LOG = LoggerFactory.getLogger(ACCESS_LOGGER);
+
+    /** enables the logging of the request bodies. */
+    private static final Logger PAYLOAD_LOG = LoggerFactory.getLogger(PAYLOAD_LOGGER);
+
+    /** fraction of the requests that are logged, between 0 and 1. */
+    private final double sampleRate;
+
+    /** maximum number of logged characters of a request body. */
+    private final int maxPayloadLength;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates an AccessLogFilter.
+     *
+     * @param sampleRate
+     *         fraction of the requests that are logged, between 0 and 1
+     * @param maxPayloadLength
+     *         maximum number of logged characters of a request body
+     * @throws IllegalArgumentException
+     *         if sampleRate is not between 0 and 1 or maxPayloadLength is negative
+     */
+    public AccessLogFilter(double sampleRate, int maxPayloadLength) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+        }
+        if (maxPayloadLength < 0) {
+            throw new IllegalArgumentException("maxPayloadLength must not be negative");
+        }
+        this.sampleRate = sampleRate;
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!ACCESS_LOG.isInfoEnabled()) {
+            chain.doFilter(request, response);
+            return;
+        }
+        boolean sampled = sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+        HttpServletRequest loggedRequest =
+                (sampled && PAYLOAD_LOG.isDebugEnabled()) ? new ContentCachingRequestWrapper(request) : request;
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(loggedRequest, response);
+        } finally {
+            if (isAsyncStarted(loggedRequest)) {
+                // log when the asynchronously produced response is complete
+                loggedRequest.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        log(loggedRequest, response, start, sampled);
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+                });
+            } else {
+                log(loggedRequest, response, start, sampled);
+            }
+        }
+    }
+
+    /**
+     * writes the access log line for a request.
+     *
+     * @param request
+     *         the request, a ContentCachingRequestWrapper if the body is logged
+     * @param response
+     *         the response
+     * @param start
+     *         start time from {@link System#nanoTime()}
+     * @param sampled
+     *         true if the request was selected for logging
+     */
+    private void log(HttpServletRequest request, HttpServletResponse response, long start, boolean sampled) {
+        int status = response.getStatus();
+        if (!sampled && status < 400) {
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        String query = (null == request.getQueryString()) ? "" : request.getQueryString();
+        if (request instanceof ContentCachingRequestWrapper) {
+            ACCESS_LOG.info("method={} uri=\"{}\" query=\"{}\" status={} millis={} client={} user={} payload=\"{}\"",
+                    request.getMethod(), request.getRequestURI(), query, status, millis,
+                    request.getRemoteAddr(), request.getRemoteUser(),
+                    payload((ContentCachingRequestWrapper) request));
+        } else {
+            ACCESS_LOG.info("method={} uri=\"{}\" query=\"{}\" status={} millis={} client={} user={}",
+                    request.getMethod(), request.getRequestURI(), query, status, millis,
+                    request.getRemoteAddr(), request.getRemoteUser());
+        }
+    }
+
+    /**
+     * returns the body of a request that was read by the application, shortened to the maximum payload length, with
+     * quotes and line breaks escaped.
+     *
+     * @param request
+     *         the request
+     * @return the body
+     */
+    private String payload(ContentCachingRequestWrapper request) {
+        byte[] content = request.getContentAsByteArray();
+        String encoding = (null == request.getCharacterEncoding()) ? "UTF-8" : request.getCharacterEncoding();
+        String payload;
+        try {
+            payload = new String(content, encoding);
+        } catch (UnsupportedEncodingException e) {
+            payload = "[" + content.length + " bytes]";
+        }
+        if (payload.length() > maxPayloadLength) {
+            payload = payload.substring(0, maxPayloadLength) + "...";
+        }
+        return payload.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "\\r").replace("\n", "\\n");
+    }
+}
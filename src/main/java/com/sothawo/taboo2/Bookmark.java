@@ -5,15 +5,22 @@
  */
 package com.sothawo.taboo2;
 
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 
 /**
  * The bookmark POJO. Tags when added are converted to lowercase and duplicate tags are removed. A Tag has a unique id,
  * which is assigned by the repository, a title, which normally is taken from the website's title, a URL, which is
  * unique and a collection of tags.
+ * <p>
+ * The tags are stored as entries from the {@link TagDictionary} sorted by their ids, so that the tag strings are not
+ * duplicated in every bookmark. The tags collection is a view on these entries, its contains, containsAll and equals
+ * work on the ids. Its hashCode is the sum of the hash codes of the tags, as the Set contract requires, so that it
+ * stays consistent with equals when compared to other sets.
  *
  * @author P.J. Meisch (pj.meisch@sothawo.com).
  */
@@ -26,8 +33,13 @@ public final class Bookmark {
     private String title = "";
     /** the URL the bookmark points to as String. */
     private String url = "";
-    /** the tags of the bookmark. */
-    private final Collection<String> tags = new HashSet<>();
+    /** the empty tag array. */
+    private static final TagDictionary.Entry[] NO_TAGS = new TagDictionary.Entry[0];
+
+    /** the tags sorted by id, never changed, a new array is set when a tag is added. */
+    private TagDictionary.Entry[] tagEntries = NO_TAGS;
+    /** the view of the tags. */
+    private final Tags tags = new Tags();
 
     @Override
     public String toString() {
@@ -99,7 +111,7 @@ public final class Bookmark {
         clone.setId(id);
         clone.setTitle(title);
         clone.setUrl(url);
-        clone.tags.addAll(tags);
+        clone.tagEntries = tagEntries;
         return clone;
     }
 
@@ -145,14 +157,23 @@ public final class Bookmark {
      *         when tag is null
      */
     public void addTag(final String tag) {
-        tags.add(Objects.requireNonNull(tag).toLowerCase());
+        TagDictionary.Entry entry = TagDictionary.entryOf(Objects.requireNonNull(tag).toLowerCase());
+        int index = indexOf(tagEntries, entry.getId());
+        if (index < 0) {
+            int insert = -index - 1;
+            TagDictionary.Entry[] newTagEntries = new TagDictionary.Entry[tagEntries.length + 1];
+            System.arraycopy(tagEntries, 0, newTagEntries, 0, insert);
+            newTagEntries[insert] = entry;
+            System.arraycopy(tagEntries, insert, newTagEntries, insert + 1, tagEntries.length - insert);
+            tagEntries = newTagEntries;
+        }
     }
 
     /**
      * clears all the tags.
      */
     public void clearTags() {
-        tags.clear();
+        tagEntries = NO_TAGS;
     }
 
     /**
@@ -161,6 +182,134 @@ public final class Bookmark {
      * @return unmodifiable collection
      */
     public Collection<String> getTags() {
-        return Collections.unmodifiableCollection(tags);
+        return tags;
+    }
+
+    /**
+     * searches a tag id in entries sorted by id.
+     *
+     * @param entries
+     *         the entries
+     * @param tagId
+     *         the tag id
+     * @return the index of the entry, or (-(insertion point) - 1) if there is no entry with the id
+     */
+    private static int indexOf(TagDictionary.Entry[] entries, int tagId) {
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = entries[middle].getId();
+            if (middleId < tagId) {
+                low = middle + 1;
+            } else if (middleId > tagId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * replaces the tags; the tags are converted to lowercase and duplicates are removed like in {@link
+     * #addTag(String)}.
+     *
+     * @param tags
+     *         the new tags
+     * @throws NullPointerException
+     *         when a tag is null
+     */
+    public void setTags(final Collection<String> tags) {
+        clearTags();
+        if (null != tags) {
+            tags.forEach(this::addTag);
+        }
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * unmodifiable set view of the tag entries.
+     */
+    private final class Tags extends AbstractSet<String> {
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+            TagDictionary.Entry entry = TagDictionary.find((String) o);
+            return null != entry && indexOf(tagEntries, entry.getId()) >= 0;
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> c) {
+            if (c instanceof Tags) {
+                TagDictionary.Entry[] otherTagEntries = ((Tags) c).entries();
+                TagDictionary.Entry[] ownTagEntries = tagEntries;
+                int i = 0;
+                for (TagDictionary.Entry entry : otherTagEntries) {
+                    while (i < ownTagEntries.length && ownTagEntries[i].getId() < entry.getId()) {
+                        i++;
+                    }
+                    if (i == ownTagEntries.length || ownTagEntries[i] != entry) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return super.containsAll(c);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Tags) {
+                // there is one entry per tag, so equal entries are identical
+                return Arrays.equals(tagEntries, ((Tags) o).entries());
+            }
+            return super.equals(o);
+        }
+
+        /**
+         * @return the tag entries of the bookmark owning this view
+         */
+        private TagDictionary.Entry[] entries() {
+            return tagEntries;
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = 0;
+            for (TagDictionary.Entry entry : tagEntries) {
+                hashCode += entry.getTag().hashCode();
+            }
+            return hashCode;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final TagDictionary.Entry[] iteratedTagEntries = tagEntries;
+            return new Iterator<String>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < iteratedTagEntries.length;
+                }
+
+                @Override
+                public String next() {
+                    if (index >= iteratedTagEntries.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return iteratedTagEntries[index++].getTag();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return tagEntries.length;
+        }
     }
 }
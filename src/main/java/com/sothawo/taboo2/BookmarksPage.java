@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of bookmarks, ordered by id. If there might be more bookmarks, the page contains the cursor which must be
+ * passed to get the next page. The cursor is opaque to the client.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class BookmarksPage {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the bookmarks of this page. */
+    private final List<Bookmark> bookmarks;
+
+    /** the cursor for the next page, null if there are no more bookmarks. */
+    private final String nextCursor;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a page.
+     *
+     * @param bookmarks
+     *         the bookmarks of the page
+     * @param nextCursor
+     *         the cursor for the next page, null if this is the last page
+     */
+    public BookmarksPage(List<Bookmark> bookmarks, String nextCursor) {
+        this.bookmarks = Collections.unmodifiableList(bookmarks);
+        this.nextCursor = nextCursor;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the bookmarks.
+     *
+     * @return the bookmarks
+     */
+    public List<Bookmark> getBookmarks() {
+        return bookmarks;
+    }
+
+    /**
+     * gets the cursor for the next page.
+     *
+     * @return the cursor, null if there are no more bookmarks
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * AuthenticationProvider decorator that remembers successful username/password authentications for a short time, so
+ * that the repeated Basic authentication of a client does not pay for the password hash on every request.
+ * <p>
+ * The cache key is an HMAC of username and password with a random key that is created for each instance and never
+ * leaves it; neither the password nor a hash that could be attacked offline is kept. Failed authentications are not
+ * cached and always go to the delegate. The cache is bounded in size, entries expire after a fixed time and all
+ * entries are dropped when the version of the user data changes.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class CachingAuthenticationProvider implements AuthenticationProvider {
+// ------------------------------ FIELDS ------------------------------
+
+    /** default maximum number of cached authentications. */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    /** default number of seconds an authentication is cached. */
+    public static final long DEFAULT_EXPIRE_SECONDS = 300;
+
+    /** number of bytes of the HMAC key. */
+    private static final int KEY_LENGTH = 32;
+
+    /** the provider doing the password check. */
+    private final AuthenticationProvider delegate;
+
+    /** returns the version of the user data, a change invalidates the cache. */
+    private final LongSupplier usersVersion;
+
+    /** keyed HMAC of the credentials. */
+    private final HashFunction credentialsHash;
+
+    /** the cached authentications by credentials hash. */
+    private final Cache<HashCode, CachedAuthentication> authentications;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a CachingAuthenticationProvider.
+     *
+     * @param delegate
+     *         the provider doing the password check
+     * @param usersVersion
+     *         returns the version of the user data, a change invalidates the cache
+     * @param maximumSize
+     *         maximum number of cached authentications
+     * @param expireSeconds
+     *         number of seconds an authentication is cached
+     */
+    public CachingAuthenticationProvider(AuthenticationProvider delegate, LongSupplier usersVersion, int maximumSize,
+                                         long expireSeconds) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.usersVersion = Objects.requireNonNull(usersVersion);
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        credentialsHash = Hashing.hmacSha256(key);
+        authentications = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the statistics of the authentication cache.
+     *
+     * @return the statistics
+     */
+    public CacheStats getStats() {
+        return authentications.stats();
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AuthenticationProvider ---------------------
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        if (!(authentication instanceof UsernamePasswordAuthenticationToken) || null == authentication.getName()
+                || null == authentication.getCredentials()) {
+            return delegate.authenticate(authentication);
+        }
+        HashCode key = credentialsHash.newHasher()
+                .putString(authentication.getName(), StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(authentication.getCredentials().toString(), StandardCharsets.UTF_8)
+                .hash();
+        long version = usersVersion.getAsLong();
+        CachedAuthentication cached = authentications.getIfPresent(key);
+        if (null != cached) {
+            if (cached.version == version) {
+                UsernamePasswordAuthenticationToken result =
+                        new UsernamePasswordAuthenticationToken(cached.principal, null, cached.authorities);
+                result.setDetails(authentication.getDetails());
+                return result;
+            }
+            // the user data has changed, no cached authentication is valid any more
+            authentications.invalidateAll();
+        }
+
+        Authentication result = delegate.authenticate(authentication);
+        if (null != result && result.isAuthenticated()) {
+            authentications.put(key, new CachedAuthentication(result.getPrincipal(), result.getAuthorities(), version));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean supports(Class<?> authentication) {
+        return delegate.supports(authentication);
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * a verified authentication without the credentials.
+     */
+    private static final class CachedAuthentication {
+        /** the authenticated principal. */
+        private final Object principal;
+
+        /** the authorities of the principal. */
+        private final Collection<? extends GrantedAuthority> authorities;
+
+        /** the version of the user data at the time of the authentication. */
+        private final long version;
+
+        CachedAuthentication(Object principal, Collection<? extends GrantedAuthority> authorities, long version) {
+            this.principal = principal;
+            this.authorities = authorities;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+/**
+ * An entry of the change log of a repository. Created and updated bookmarks are contained with their data after the
+ * change, deleted bookmarks only with their id. A purge removes all bookmarks and has no id.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class Change {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the sequence number of the change, this is the repository version after the change. */
+    private final long sequence;
+
+    /** the kind of change. */
+    private final Type type;
+
+    /** the id of the changed bookmark, null for a purge. */
+    private final String id;
+
+    /** the bookmark after the change, null for deletes and purges. */
+    private final Bookmark bookmark;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a Change.
+     *
+     * @param sequence
+     *         the sequence number
+     * @param type
+     *         the kind of change
+     * @param id
+     *         the id of the changed bookmark, null for a purge
+     * @param bookmark
+     *         the bookmark after the change, null for deletes and purges
+     */
+    public Change(long sequence, Type type, String id, Bookmark bookmark) {
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+        this.bookmark = bookmark;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the bookmark after the change.
+     *
+     * @return the bookmark, null for deletes and purges
+     */
+    public Bookmark getBookmark() {
+        return bookmark;
+    }
+
+    /**
+     * gets the id of the changed bookmark.
+     *
+     * @return the id, null for a purge
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * gets the sequence number.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * gets the kind of change.
+     *
+     * @return the kind of change
+     */
+    public Type getType() {
+        return type;
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the kinds of changes.
+     */
+    public enum Type {
+        CREATED, UPDATED, DELETED, PURGED
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes of a repository since a given version, ordered by sequence number. The contained version is the version
+ * of the repository after the last change and is passed as since value in the next request.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class Changes {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the changes. */
+    private final List<Change> changes;
+
+    /** the version after the changes. */
+    private final long version;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a Changes object.
+     *
+     * @param changes
+     *         the changes
+     * @param version
+     *         the version after the changes
+     */
+    public Changes(List<Change> changes, long version) {
+        this.changes = Collections.unmodifiableList(changes);
+        this.version = version;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the changes.
+     *
+     * @return the changes
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * gets the version after the changes.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+/**
+ * Exception that is thrown when the changes since a version are requested which are no longer in the change log. The
+ * client must then load all data again.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class ChangesExpiredException extends TabooException {
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a ChangesExpiredException with the given message.
+     *
+     * @param message
+     *         the message
+     */
+    public ChangesExpiredException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a bulk import of bookmarks. Contains the number of imported bookmarks, the urls of the bookmarks that
+ * were not imported because the url already exists and the positions of the bookmarks in the import data that were
+ * rejected because they were invalid.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class ImportResult {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the number of imported bookmarks. */
+    private final int imported;
+
+    /** the urls of the bookmarks that already existed. */
+    private final List<String> conflicts;
+
+    /** the positions of the rejected bookmarks in the import data, starting at 0. */
+    private final List<Integer> rejected;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates an ImportResult without rejected bookmarks.
+     *
+     * @param imported
+     *         the number of imported bookmarks
+     * @param conflicts
+     *         the urls of the bookmarks that already existed
+     */
+    public ImportResult(int imported, List<String> conflicts) {
+        this(imported, conflicts, Collections.emptyList());
+    }
+
+    /**
+     * creates an ImportResult.
+     *
+     * @param imported
+     *         the number of imported bookmarks
+     * @param conflicts
+     *         the urls of the bookmarks that already existed
+     * @param rejected
+     *         the positions of the rejected bookmarks
+     */
+    public ImportResult(int imported, List<String> conflicts, List<Integer> rejected) {
+        this.imported = imported;
+        this.conflicts = Collections.unmodifiableList(conflicts);
+        this.rejected = Collections.unmodifiableList(rejected);
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the urls of the bookmarks that already existed.
+     *
+     * @return the urls
+     */
+    public List<String> getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * gets the number of imported bookmarks.
+     *
+     * @return the number
+     */
+    public int getImported() {
+        return imported;
+    }
+
+    /**
+     * gets the positions of the rejected bookmarks in the import data.
+     *
+     * @return the positions
+     */
+    public List<Integer> getRejected() {
+        return rejected;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * combines this result with the result of another part of the same import.
+     *
+     * @param other
+     *         the other result
+     * @return the combined result
+     */
+    public ImportResult plus(ImportResult other) {
+        List<String> allConflicts = new ArrayList<>(conflicts);
+        allConflicts.addAll(other.conflicts);
+        List<Integer> allRejected = new ArrayList<>(rejected);
+        allRejected.addAll(other.rejected);
+        return new ImportResult(imported + other.imported, allConflicts, allRejected);
+    }
+}
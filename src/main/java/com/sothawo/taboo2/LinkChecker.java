@@ -0,0 +1,448 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sothawo.taboo2.repository.BookmarkRepository;
+import com.sothawo.taboo2.repository.PartitionedBookmarkRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the urls of the bookmarks in the background. A scan walks the repository page by page and probes the urls of
+ * a page with HEAD requests - GET if the server does not support HEAD - on a fixed number of threads. The requests to
+ * one host are limited to a configured rate, the urls of a page are ordered so that consecutive requests go to
+ * different hosts. Status, latency and time of the last check are kept for every bookmark.
+ * <p>
+ * Scans run on their own thread, one at a time, either scheduled with a configured interval or started on request.
+ * <p>
+ * A PartitionedBookmarkRepository is scanned partition by partition, all partitions that have been used since the
+ * start are checked. The results are kept per partition, as the bookmark ids are only unique within a partition, and
+ * the results returned are those of the current call's partition.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@Component
+public class LinkChecker {
+// ------------------------------ FIELDS ------------------------------
+
+    /** Logger for the class. */
+    private final static Logger LOG = LoggerFactory.getLogger(LinkChecker.class);
+
+    /** property with the minutes between scheduled scans, 0 disables them. */
+    private static final String PROPERTY_INTERVAL_MINUTES = "taboo2.linkcheck.interval.minutes";
+
+    /** property with the number of parallel checks. */
+    private static final String PROPERTY_THREADS = "taboo2.linkcheck.threads";
+
+    /** property with the maximum number of checks per second for one host. */
+    private static final String PROPERTY_HOST_RATE = "taboo2.linkcheck.host.rate";
+
+    /** default number of parallel checks. */
+    private static final int DEFAULT_THREADS = 8;
+
+    /** default number of checks per second for one host. */
+    private static final double DEFAULT_HOST_RATE = 1.0;
+
+    /** number of bookmarks loaded and checked together. */
+    private static final int BATCH_SIZE = 200;
+
+    /** connect and read timeout in milliseconds. */
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    /** minutes after which the rate limiter of an unused host is dropped. */
+    private static final int HOST_LIMITER_MINUTES = 10;
+
+    /** the results by partition key and bookmark id, an unpartitioned repository has the default partition only. */
+    private final ConcurrentMap<String, ConcurrentMap<String, LinkStatus>> results = new ConcurrentHashMap<>();
+
+    /** true while a scan is running or waiting to run. */
+    private final AtomicBoolean scanning = new AtomicBoolean();
+
+    /** runs the scans. */
+    private final ScheduledExecutorService scanExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("link-scan-%d").setDaemon(true).build());
+
+    /** runs the checks. */
+    private ExecutorService checkExecutor;
+
+    /** the rate limiters by host. */
+    private LoadingCache<String, RateLimiter> hostLimiters;
+
+    /** the application's environment. */
+    @Autowired
+    private Environment env;
+
+    /** the repository with the bookmarks to check. */
+    @Autowired
+    private BookmarkRepository repository;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public LinkChecker() {
+    }
+
+    /**
+     * creates a LinkChecker without scheduled scans.
+     *
+     * @param repository
+     *         the repository with the bookmarks to check
+     * @param threads
+     *         the number of parallel checks
+     * @param hostRate
+     *         the maximum number of checks per second for one host
+     */
+    LinkChecker(BookmarkRepository repository, int threads, double hostRate) {
+        this.repository = repository;
+        configure(threads, hostRate);
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * checks the url of one bookmark.
+     *
+     * @param bookmark
+     *         the bookmark
+     * @return the result
+     */
+    private LinkStatus check(Bookmark bookmark) {
+        long checked = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            URL url = new URL(bookmark.getUrl());
+            if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+                return new LinkStatus(bookmark.getId(), bookmark.getUrl(), 0, "unsupported protocol", 0, checked);
+            }
+            hostLimiters.getUnchecked(url.getHost().toLowerCase()).acquire();
+            checked = System.currentTimeMillis();
+            start = System.nanoTime();
+            int status = request(url, "HEAD");
+            if (status == HttpURLConnection.HTTP_BAD_METHOD || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                status = request(url, "GET");
+            }
+            return new LinkStatus(bookmark.getId(), bookmark.getUrl(), status, null,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), checked);
+        } catch (IOException | IllegalArgumentException e) {
+            return new LinkStatus(bookmark.getId(), bookmark.getUrl(), 0, e.toString(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), checked);
+        }
+    }
+
+    /**
+     * checks a batch of bookmarks and waits until all are checked.
+     *
+     * @param bookmarks
+     *         the bookmarks
+     * @param partitionResults
+     *         the results of the bookmarks' partition
+     */
+    private void checkBatch(List<Bookmark> bookmarks, Map<String, LinkStatus> partitionResults) {
+        CompletableFuture<?>[] checks = interleaveHosts(bookmarks).stream()
+                .map(bookmark -> CompletableFuture.runAsync(
+                        () -> partitionResults.put(bookmark.getId(), check(bookmark)), checkExecutor))
+                .toArray(CompletableFuture<?>[]::new);
+        CompletableFuture.allOf(checks).join();
+    }
+
+    @PreDestroy
+    public void close() {
+        scanExecutor.shutdownNow();
+        if (null != checkExecutor) {
+            checkExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * creates the check executor and the rate limiters.
+     *
+     * @param threads
+     *         the number of parallel checks
+     * @param hostRate
+     *         the maximum number of checks per second for one host
+     */
+    private void configure(int threads, double hostRate) {
+        checkExecutor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("link-check-%d").setDaemon(true).build());
+        hostLimiters = CacheBuilder.newBuilder()
+                .expireAfterAccess(HOST_LIMITER_MINUTES, TimeUnit.MINUTES)
+                .build(CacheLoader.from(host -> RateLimiter.create(hostRate)));
+    }
+
+    /**
+     * returns the results of the current call's partition.
+     *
+     * @return the results by bookmark id
+     */
+    private Map<String, LinkStatus> currentResults() {
+        String partitionKey = (repository instanceof PartitionedBookmarkRepository) ?
+                ((PartitionedBookmarkRepository) repository).getCurrentPartitionKey() :
+                PartitionedBookmarkRepository.DEFAULT_PARTITION;
+        Map<String, LinkStatus> partitionResults = results.get(partitionKey);
+        return (null == partitionResults) ? Collections.emptyMap() : partitionResults;
+    }
+
+    /**
+     * returns the result for a bookmark of the current partition.
+     *
+     * @param id
+     *         the id of the bookmark
+     * @return the result
+     * @throws NotFoundException
+     *         if the bookmark has not been checked
+     */
+    public LinkStatus getResult(String id) {
+        LinkStatus result = currentResults().get(id);
+        if (null == result) {
+            throw new NotFoundException("no link status for bookmark " + id);
+        }
+        return result;
+    }
+
+    /**
+     * returns the results of the checks of the current partition.
+     *
+     * @param brokenOnly
+     *         if true, only the broken links are returned
+     * @return the results
+     */
+    public Collection<LinkStatus> getResults(boolean brokenOnly) {
+        return currentResults().values().stream()
+                .filter(result -> !brokenOnly || result.isBroken())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * returns the host of an url.
+     *
+     * @param url
+     *         the url
+     * @return the lowercase host, the empty string if the url is invalid
+     */
+    private static String host(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * orders bookmarks so that the hosts of consecutive bookmarks differ as far as possible.
+     *
+     * @param bookmarks
+     *         the bookmarks
+     * @return the reordered bookmarks
+     */
+    static List<Bookmark> interleaveHosts(List<Bookmark> bookmarks) {
+        Map<String, Deque<Bookmark>> bookmarksByHost = new LinkedHashMap<>();
+        for (Bookmark bookmark : bookmarks) {
+            bookmarksByHost.computeIfAbsent(host(bookmark.getUrl()), host -> new ArrayDeque<>()).add(bookmark);
+        }
+        List<Bookmark> interleaved = new ArrayList<>(bookmarks.size());
+        while (!bookmarksByHost.isEmpty()) {
+            Iterator<Deque<Bookmark>> iterator = bookmarksByHost.values().iterator();
+            while (iterator.hasNext()) {
+                Deque<Bookmark> hostBookmarks = iterator.next();
+                interleaved.add(hostBookmarks.poll());
+                if (hostBookmarks.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        return interleaved;
+    }
+
+    /**
+     * checks if a scan is running or waiting to run.
+     *
+     * @return true if a scan is running
+     */
+    public boolean isScanning() {
+        return scanning.get();
+    }
+
+    /**
+     * returns the repositories to scan.
+     *
+     * @return the repositories by partition key
+     */
+    private Map<String, BookmarkRepository> partitions() {
+        if (!(repository instanceof PartitionedBookmarkRepository)) {
+            return Collections.singletonMap(PartitionedBookmarkRepository.DEFAULT_PARTITION, repository);
+        }
+        PartitionedBookmarkRepository partitionedRepository = (PartitionedBookmarkRepository) repository;
+        Map<String, BookmarkRepository> partitions = new LinkedHashMap<>();
+        partitionedRepository.getPartitionKeys()
+                .forEach(key -> partitions.put(key, partitionedRepository.getPartition(key)));
+        return partitions;
+    }
+
+    /**
+     * sends a request and returns the status code.
+     *
+     * @param url
+     *         the url
+     * @param method
+     *         the http method
+     * @return the status code
+     * @throws IOException
+     *         if no response is received
+     */
+    private static int request(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("User-Agent", TitleLoader.JSOUP_USER_AGENT);
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * checks all bookmarks of all partitions. Results of bookmarks and partitions that no longer exist are removed
+     * afterwards.
+     */
+    void scan() {
+        long start = System.currentTimeMillis();
+        Map<String, BookmarkRepository> partitions = partitions();
+        int scanned = 0;
+        for (Map.Entry<String, BookmarkRepository> partition : partitions.entrySet()) {
+            scanned += scanPartition(partition.getValue(),
+                    results.computeIfAbsent(partition.getKey(), key -> new ConcurrentHashMap<>()));
+        }
+        results.keySet().retainAll(partitions.keySet());
+        long broken = results.values().stream()
+                .flatMap(partitionResults -> partitionResults.values().stream())
+                .filter(LinkStatus::isBroken)
+                .count();
+        LOG.info("checked {} links in {} partition(s) in {} ms, {} broken", scanned, partitions.size(),
+                System.currentTimeMillis() - start, broken);
+    }
+
+    /**
+     * runs a scan if no other scan is running.
+     */
+    private void scanIfIdle() {
+        if (scanning.compareAndSet(false, true)) {
+            scanAndReset();
+        }
+    }
+
+    /**
+     * runs a scan and resets the scanning flag afterwards.
+     */
+    private void scanAndReset() {
+        try {
+            scan();
+        } catch (RuntimeException e) {
+            LOG.error("link scan failed", e);
+        } finally {
+            scanning.set(false);
+        }
+    }
+
+    /**
+     * checks all bookmarks of a partition and removes the results of the bookmarks that no longer exist.
+     *
+     * @param partition
+     *         the repository of the partition
+     * @param partitionResults
+     *         the results of the partition
+     * @return the number of checked bookmarks
+     */
+    private int scanPartition(BookmarkRepository partition, Map<String, LinkStatus> partitionResults) {
+        Set<String> scannedIds = new HashSet<>();
+        String cursor = null;
+        do {
+            BookmarksPage page = partition.getBookmarksPage(null, true, null, cursor, BATCH_SIZE);
+            checkBatch(page.getBookmarks(), partitionResults);
+            page.getBookmarks().forEach(bookmark -> scannedIds.add(bookmark.getId()));
+            cursor = page.getNextCursor();
+        } while (null != cursor);
+        partitionResults.keySet().retainAll(scannedIds);
+        return scannedIds.size();
+    }
+
+    /**
+     * configures the checks from the environment and schedules the scans.
+     */
+    @PostConstruct
+    public void start() {
+        configure(env.getProperty(PROPERTY_THREADS, Integer.class, DEFAULT_THREADS),
+                env.getProperty(PROPERTY_HOST_RATE, Double.class, DEFAULT_HOST_RATE));
+        long intervalMinutes = env.getProperty(PROPERTY_INTERVAL_MINUTES, Long.class, 0L);
+        if (intervalMinutes > 0) {
+            scanExecutor.scheduleWithFixedDelay(this::scanIfIdle, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * starts a scan in the background.
+     *
+     * @return false if a scan is already running
+     */
+    public boolean startScan() {
+        if (!scanning.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            scanExecutor.execute(this::scanAndReset);
+        } catch (RejectedExecutionException e) {
+            scanning.set(false);
+            throw e;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+/**
+ * The result of checking the url of a bookmark.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class LinkStatus {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the id of the checked bookmark. */
+    private final String id;
+
+    /** the checked url. */
+    private final String url;
+
+    /** the http status code, 0 if no response was received. */
+    private final int status;
+
+    /** the error if no response was received, null otherwise. */
+    private final String error;
+
+    /** the time the check took in milliseconds. */
+    private final long latencyMillis;
+
+    /** the time of the check in milliseconds since the epoch. */
+    private final long checked;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a LinkStatus.
+     *
+     * @param id
+     *         the id of the checked bookmark
+     * @param url
+     *         the checked url
+     * @param status
+     *         the http status code, 0 if no response was received
+     * @param error
+     *         the error if no response was received, null otherwise
+     * @param latencyMillis
+     *         the time the check took in milliseconds
+     * @param checked
+     *         the time of the check in milliseconds since the epoch
+     */
+    public LinkStatus(String id, String url, int status, String error, long latencyMillis, long checked) {
+        this.id = id;
+        this.url = url;
+        this.status = status;
+        this.error = error;
+        this.latencyMillis = latencyMillis;
+        this.checked = checked;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the time of the check.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getChecked() {
+        return checked;
+    }
+
+    /**
+     * gets the error.
+     *
+     * @return the error if no response was received, null otherwise
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * gets the id of the checked bookmark.
+     *
+     * @return the id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * gets the time the check took.
+     *
+     * @return milliseconds
+     */
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * gets the http status code.
+     *
+     * @return the status code, 0 if no response was received
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * gets the checked url.
+     *
+     * @return the url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * checks if the link is broken, that is if there was no response or an error status.
+     *
+     * @return true if the link is broken
+     */
+    public boolean isBroken() {
+        return status == 0 || status >= 400;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkStatus{" +
+                "id='" + id + '\'' +
+                ", url='" + url + '\'' +
+                ", status=" + status +
+                ", error='" + error + '\'' +
+                ", latencyMillis=" + latencyMillis +
+                ", checked=" + checked +
+                '}';
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * The metrics of the application, registered in the default prometheus registry and served by the /taboo2/metrics
+ * call. Latencies are histograms in seconds, the percentiles are computed from the buckets by the monitoring system;
+ * the count of a histogram is the number of calls. Recording a value does not lock.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class Metrics {
+// ------------------------------ FIELDS ------------------------------
+
+    /** latency buckets in seconds, from 0.5 ms to 10 s. */
+    private static final double[] LATENCY_BUCKETS =
+            {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /** buckets for the number of returned elements. */
+    private static final double[] SIZE_BUCKETS = {0, 1, 10, 100, 1_000, 10_000, 100_000};
+
+    /** latency of the REST calls by handler method. */
+    public static final Histogram REQUEST_LATENCY = Histogram.build()
+            .name("taboo2_http_request_seconds").help("latency of the REST calls")
+            .labelNames("handler").buckets(LATENCY_BUCKETS).register();
+
+    /** REST calls answered with an error status by handler method and status. */
+    public static final Counter REQUEST_ERRORS = Counter.build()
+            .name("taboo2_http_request_errors_total").help("REST calls answered with an error status")
+            .labelNames("handler", "status").register();
+
+    /** latency of the repository calls by method. */
+    public static final Histogram REPOSITORY_LATENCY = Histogram.build()
+            .name("taboo2_repository_call_seconds").help("latency of the bookmark repository calls")
+            .labelNames("method").buckets(LATENCY_BUCKETS).register();
+
+    /** repository calls that threw an exception by method and exception class. */
+    public static final Counter REPOSITORY_ERRORS = Counter.build()
+            .name("taboo2_repository_call_errors_total").help("bookmark repository calls that threw an exception")
+            .labelNames("method", "exception").register();
+
+    /** number of elements returned by the repository calls by method. */
+    public static final Histogram REPOSITORY_RESULT_SIZE = Histogram.build()
+            .name("taboo2_repository_result_size").help("number of elements returned by the repository calls")
+            .labelNames("method").buckets(SIZE_BUCKETS).register();
+
+    /** time from creating to closing a JPA EntityManager. */
+    public static final Histogram JPA_ENTITY_MANAGER_OPEN = Histogram.build()
+            .name("taboo2_jpa_entity_manager_open_seconds").help("time a JPA EntityManager is open")
+            .buckets(LATENCY_BUCKETS).register();
+
+    /** duration of JPA transaction commits. */
+    public static final Histogram JPA_COMMIT = Histogram.build()
+            .name("taboo2_jpa_commit_seconds").help("duration of the JPA transaction commits")
+            .buckets(LATENCY_BUCKETS).register();
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private Metrics() {
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * returns the seconds elapsed since a start time.
+     *
+     * @param startNanos
+     *         start time from {@link System#nanoTime()}
+     * @return elapsed seconds
+     */
+    public static double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Web configuration for the metrics, registers the interceptor that records the REST calls.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@Configuration
+public class MetricsConfig extends WebMvcConfigurerAdapter {
+// -------------------------- OTHER METHODS --------------------------
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new RequestMetricsInterceptor())
+                .addPathPatterns(Taboo2Service.MAPPING_TABOO2 + "/**");
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Records latency and errors of the REST calls in {@link Metrics}, labeled with the name of the handler method.
+     * For asynchronous calls the time until the result is written is recorded: the interceptor is called again for
+     * the dispatch of the result and keeps the start time of the first call.
+     */
+    static class RequestMetricsInterceptor extends HandlerInterceptorAdapter {
+        /** request attribute with the start time of the call. */
+        private static final String ATTRIBUTE_START = RequestMetricsInterceptor.class.getName() + ".start";
+
+        /** label for requests that are not handled by a controller method. */
+        private static final String OTHER_HANDLER = "other";
+
+        @Override
+        public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                    Exception ex) {
+            Object start = request.getAttribute(ATTRIBUTE_START);
+            if (null == start) {
+                return;
+            }
+            String handlerName = (handler instanceof HandlerMethod) ?
+                    ((HandlerMethod) handler).getMethod().getName() : OTHER_HANDLER;
+            Metrics.REQUEST_LATENCY.labels(handlerName).observe(Metrics.secondsSince((Long) start));
+            int status = (null != ex && response.getStatus() < 400) ? 500 : response.getStatus();
+            if (status >= 400) {
+                Metrics.REQUEST_ERRORS.labels(handlerName, String.valueOf(status)).inc();
+            }
+        }
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            if (null == request.getAttribute(ATTRIBUTE_START)) {
+                request.setAttribute(ATTRIBUTE_START, System.nanoTime());
+            }
+            return true;
+        }
+    }
+}
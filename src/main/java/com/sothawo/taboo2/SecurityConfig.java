@@ -20,6 +20,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.security.SecurityProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
@@ -39,10 +41,20 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
     /** Logger for the class */
     private final static Logger log = LoggerFactory.getLogger(SecurityConfig.class);
 
+    /** property with the maximum number of cached authentications. */
+    private static final String PROPERTY_AUTH_CACHE_SIZE = "taboo2.auth.cache.size";
+
+    /** property with the number of seconds an authentication is cached. */
+    private static final String PROPERTY_AUTH_CACHE_SECONDS = "taboo2.auth.cache.seconds";
+
     /** the configuration object */
     @Autowired
     SecurityProperties securityProperties;
 
+    /** the application's environment. */
+    @Autowired
+    private Environment env;
+
     /** the service to provide the user data */
     @Autowired
     Taboo2UserService userService;
@@ -70,6 +82,15 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 
     @Override
     protected void configure(AuthenticationManagerBuilder auth) throws Exception {
-        auth.userDetailsService(userService).passwordEncoder(new BCryptPasswordEncoder());
+        DaoAuthenticationProvider passwordCheck = new DaoAuthenticationProvider();
+        passwordCheck.setUserDetailsService(userService);
+        passwordCheck.setPasswordEncoder(new BCryptPasswordEncoder());
+        passwordCheck.afterPropertiesSet();
+        // Basic authentication sends the credentials with every request, the cache saves the BCrypt check
+        auth.authenticationProvider(new CachingAuthenticationProvider(passwordCheck, userService::getUsersVersion,
+                env.getProperty(PROPERTY_AUTH_CACHE_SIZE, Integer.class,
+                        CachingAuthenticationProvider.DEFAULT_MAXIMUM_SIZE),
+                env.getProperty(PROPERTY_AUTH_CACHE_SECONDS, Long.class,
+                        CachingAuthenticationProvider.DEFAULT_EXPIRE_SECONDS)));
     }
 }
@@ -24,7 +24,6 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.env.Environment;
-import org.springframework.web.filter.CommonsRequestLoggingFilter;
 
 import javax.annotation.PostConstruct;
 
@@ -36,6 +35,15 @@ public class Taboo2Application {
     /** Logger for the class. */
     private final static Logger log = LoggerFactory.getLogger(Taboo2Application.class);
 
+    /** property with the fraction of the requests written to the access log. */
+    private static final String PROPERTY_ACCESS_LOG_SAMPLE_RATE = "taboo2.accesslog.sample.rate";
+
+    /** property with the maximum number of logged characters of a request body. */
+    private static final String PROPERTY_ACCESS_LOG_PAYLOAD_MAX = "taboo2.accesslog.payload.max";
+
+    /** default maximum number of logged characters of a request body. */
+    private static final int DEFAULT_ACCESS_LOG_PAYLOAD_MAX = 1000;
+
     /** the application's environment. */
     @Autowired
     private Environment env;
@@ -51,12 +59,9 @@ public class Taboo2Application {
     }
 
     @Bean
-    public CommonsRequestLoggingFilter requestLoggingFilter() {
-        CommonsRequestLoggingFilter crlf = new CommonsRequestLoggingFilter();
-        crlf.setIncludeClientInfo(true);
-        crlf.setIncludeQueryString(true);
-        crlf.setIncludePayload(true);
-        return crlf;
+    public AccessLogFilter accessLogFilter() {
+        return new AccessLogFilter(env.getProperty(PROPERTY_ACCESS_LOG_SAMPLE_RATE, Double.class, 1.0),
+                env.getProperty(PROPERTY_ACCESS_LOG_PAYLOAD_MAX, Integer.class, DEFAULT_ACCESS_LOG_PAYLOAD_MAX));
     }
 // -------------------------- OTHER METHODS --------------------------
 
@@ -15,9 +15,15 @@
 */
 package com.sothawo.taboo2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.sothawo.taboo2.repository.BookmarkRepository;
-import org.jsoup.HttpStatusException;
-import org.jsoup.Jsoup;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,14 +39,23 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -74,34 +89,85 @@ public class Taboo2Service {
     /** Mapping for check call, package scope for test class. */
     static final String MAPPING_CHECK = "/check";
 
+    /** Mapping for the changes call, package scope for test class. */
+    static final String MAPPING_CHANGES = "/changes";
+
+    /** Mapping for the bulk import, package scope for test class. */
+    static final String MAPPING_IMPORT = "/import";
+
+    /** Mapping for the link check results, package scope for test class. */
+    static final String MAPPING_LINKS = "/links";
+
+    /** Mapping for the metrics, package scope for test class. */
+    static final String MAPPING_METRICS = "/metrics";
+
     /** dumping all bookmarks without ids. */
     public static final String MAPPING_DUMP_BOOKMARKS = "/dump";
 
+    /** content type for newline delimited JSON. */
+    static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
     /** needed for tests. */
     static final String MAGIC_TEST_URL = "magicTestStringThatsNotAnUrl";
 
+    /** maximum number of bookmarks in a page. */
+    static final int MAX_PAGE_LIMIT = 1000;
+
+    /** default number of tags returned by the suggest call. */
+    static final int DEFAULT_SUGGEST_LIMIT = 10;
+
+    /** maximum number of tags returned by the suggest call. */
+    static final int MAX_SUGGEST_LIMIT = 100;
+
+    /** number of bookmarks passed to the repository in one import call. */
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+
     /** OR operation. */
     private static final String OP_OR = "or";
     /** AND operation. */
     private static final String OP_AND = "and";
 
-    /**
-     * user agent that jsoup sends when fetching the page title. Some sites send 403, when no known user agent is
-     * sent).
-     */
-    private static final String JSOUP_USER_AGENT =
-            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_1) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/45.0.2454.101 Safari/537.36";
+    /** timeout for loading a title in milliseconds. */
+    private static final long TITLE_TIMEOUT_MILLIS = 10_000;
+
+    /** mapper for the streamed dump and import, writes the bookmarks without flushing after each one. */
+    private final ObjectMapper streamMapper =
+            new ObjectMapper().disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
 
     /** configuration object. */
     @Autowired
     private Taboo2Configuration taboo2Config;
 
+    /** loader for the page titles. */
+    @Autowired
+    private TitleLoader titleLoader;
+
+    /** checker for the bookmark urls. */
+    @Autowired
+    private LinkChecker linkChecker;
+
     /** backend repository for the bookmarks. */
     @Autowired
     private BookmarkRepository repository;
 
 // -------------------------- OTHER METHODS --------------------------
 
+    /**
+     * converts an element of the import data to a bookmark.
+     *
+     * @param element
+     *         the element
+     * @return the bookmark, null if the element is null or no valid bookmark
+     */
+    private Bookmark bookmarkFromJson(final JsonNode element) {
+        try {
+            return streamMapper.treeToValue(element, Bookmark.class);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            LOG.debug("rejecting import element: {}", e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * simple method that returns Status OK.
      */
@@ -180,6 +246,34 @@ public class Taboo2Service {
         return repository.dumpBookmarks();
     }
 
+    /**
+     * dumps all the bookmarks without having their id set as newline delimited JSON. The bookmarks are written to the
+     * response as they are read from the repository, so the dump does not need memory for all the bookmarks.
+     *
+     * @param response
+     *         the response to write to
+     * @throws IOException
+     *         when writing the response fails
+     */
+    @RequestMapping(value = MAPPING_DUMP_BOOKMARKS, method = RequestMethod.GET, params = "format=ndjson")
+    public final void dumpBookmarksAsNdjson(final HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE_NDJSON);
+        response.setCharacterEncoding("UTF-8");
+        try (JsonGenerator generator = streamMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.setRootValueSeparator(null);
+            repository.dumpBookmarks(bookmark -> {
+                try {
+                    streamMapper.writeValue(generator, bookmark);
+                    generator.writeRaw('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     /**
      * ExceptionHandler for AlreadyExistsException. returns the exception's error message in the body with the 409
      * status code.
@@ -194,6 +288,20 @@ public class Taboo2Service {
         return '"' + e.getMessage() + '"';
     }
 
+    /**
+     * ExceptionHandler for ChangesExpiredException. returns the exception's error message in the body with the 410
+     * status code.
+     *
+     * @param e
+     *         the exception to handle
+     * @return HTTP GONE Response Status and error message
+     */
+    @ExceptionHandler(ChangesExpiredException.class)
+    @ResponseStatus(HttpStatus.GONE)
+    public final String exceptionHandlerChangesExpiredException(final ChangesExpiredException e) {
+        return '"' + e.getMessage() + '"';
+    }
+
     /**
      * ExceptionHandler for IllegalArgumentException. returns the exception's error message in the body with the 412
      * status code.
@@ -232,7 +340,9 @@ public class Taboo2Service {
      *         if "or", tags are combined with OR, otherwise with AND
      * @param search
      *         optional search string to be searched
-     * @return all bookmarks
+     * @param webRequest
+     *         the request, used for the entity tag check
+     * @return all bookmarks, null if the client's version is current
      */
     @RequestMapping(value = MAPPING_BOOKMARKS, method = RequestMethod.GET)
     public final Collection<Bookmark> findAllBookmarks(@RequestParam(value = "tag", required = false)
@@ -240,7 +350,11 @@ public class Taboo2Service {
                                                        @RequestParam(value = "op", defaultValue = OP_AND)
                                                        final String op,
                                                        @RequestParam(value = "search", required = false)
-                                                       final String search) {
+                                                       final String search,
+                                                       final WebRequest webRequest) {
+        if (notModified(webRequest)) {
+            return null;
+        }
         boolean opAnd = !OP_OR.equals(op.toLowerCase());
         if (null == tags && null == search) {
             return repository.getAllBookmarks();
@@ -258,10 +372,15 @@ public class Taboo2Service {
     /**
      * return all tags from the repository.
      *
-     * @return collection of tags
+     * @param webRequest
+     *         the request, used for the entity tag check
+     * @return collection of tags, null if the client's version is current
      */
     @RequestMapping(value = MAPPING_TAGS, method = RequestMethod.GET)
-    public final Collection<String> findAlltags() {
+    public final Collection<String> findAlltags(final WebRequest webRequest) {
+        if (notModified(webRequest)) {
+            return null;
+        }
         return repository.getAllTags().stream().filter(Objects::nonNull).collect(Collectors.toList());
     }
 
@@ -280,43 +399,208 @@ public class Taboo2Service {
     }
 
     /**
-     * tries to load the title for a web page.
+     * gets a page of the bookmarks from the repository, ordered by id. The selection criteria are the same as in
+     * {@link #findAllBookmarks(List, String, String, WebRequest)}, the returned page contains the cursor for the next page.
+     *
+     * @param tags
+     *         optional list of tags
+     * @param op
+     *         if "or", tags are combined with OR, otherwise with AND
+     * @param search
+     *         optional search string to be searched
+     * @param limit
+     *         maximum number of bookmarks in the page
+     * @param cursor
+     *         optional cursor from the previous page
+     * @param webRequest
+     *         the request, used for the entity tag check
+     * @return the page, null if the client's version is current
+     * @throws IllegalArgumentException
+     *         when the limit is out of range or the cursor is invalid
+     */
+    @RequestMapping(value = MAPPING_BOOKMARKS, method = RequestMethod.GET, params = "limit")
+    public final BookmarksPage findBookmarksPage(@RequestParam(value = "tag", required = false)
+                                                 final List<String> tags,
+                                                 @RequestParam(value = "op", defaultValue = OP_AND)
+                                                 final String op,
+                                                 @RequestParam(value = "search", required = false)
+                                                 final String search,
+                                                 @RequestParam(value = "limit") final int limit,
+                                                 @RequestParam(value = "cursor", required = false)
+                                                 final String cursor,
+                                                 final WebRequest webRequest) {
+        if (limit <= 0 || limit > MAX_PAGE_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_LIMIT);
+        }
+        if (notModified(webRequest)) {
+            return null;
+        }
+        boolean opAnd = !OP_OR.equals(op.toLowerCase());
+        return repository.getBookmarksPage(tags, opAnd, search, cursor, limit);
+    }
+
+    /**
+     * returns the changes since a version of the repository. A client that keeps a copy of the bookmarks passes the
+     * version of its copy - the ETag of a listing or the version of the last changes result - and applies the returned
+     * changes. If the changes are not available anymore, the client must load all bookmarks again.
+     *
+     * @param since
+     *         the version the client has
+     * @return the changes and the new version
+     * @throws ChangesExpiredException
+     *         when the changes since the version are not available, answered with 410 (gone)
+     */
+    @RequestMapping(value = MAPPING_CHANGES, method = RequestMethod.GET)
+    public final Changes findChanges(@RequestParam(value = "since") final long since) {
+        return repository.getChanges(since);
+    }
+
+    /**
+     * returns the result of the last link check of a bookmark of the current user.
+     *
+     * @param id
+     *         the id of the bookmark
+     * @return the link status
+     * @throws NotFoundException
+     *         if the bookmark's link has not been checked
+     */
+    @RequestMapping(value = MAPPING_LINKS + "/{id}", method = RequestMethod.GET)
+    public final LinkStatus findLinkStatus(@PathVariable(value = "id") final String id) {
+        return linkChecker.getResult(id);
+    }
+
+    /**
+     * returns the results of the last link checks of the current user's bookmarks.
+     *
+     * @param broken
+     *         if true, only the broken links are returned
+     * @return the link status of the checked bookmarks
+     */
+    @RequestMapping(value = MAPPING_LINKS, method = RequestMethod.GET)
+    public final Collection<LinkStatus> findLinkStatuses(@RequestParam(value = "broken", defaultValue = "false")
+                                                         final boolean broken) {
+        return linkChecker.getResults(broken);
+    }
+
+    /**
+     * returns the tags of the selected bookmarks with the number of selected bookmarks having them. Without selection
+     * criteria these are the usage counts of all tags.
+     *
+     * @param tags
+     *         optional list of tags
+     * @param op
+     *         if "or", tags are combined with OR, otherwise with AND
+     * @param search
+     *         optional search string to be searched
+     * @param webRequest
+     *         the request, used for the entity tag check
+     * @return the tags and counts sorted by tag, null if the client's version is current
+     */
+    @RequestMapping(value = MAPPING_TAGS + "/facets", method = RequestMethod.GET)
+    public final Map<String, Integer> findTagFacets(@RequestParam(value = "tag", required = false)
+                                                    final List<String> tags,
+                                                    @RequestParam(value = "op", defaultValue = OP_AND)
+                                                    final String op,
+                                                    @RequestParam(value = "search", required = false)
+                                                    final String search,
+                                                    final WebRequest webRequest) {
+        if (notModified(webRequest)) {
+            return null;
+        }
+        return repository.getTagCounts(tags, !OP_OR.equals(op.toLowerCase()), search);
+    }
+
+    /**
+     * imports bookmarks. The body is either a JSON array of bookmarks or newline delimited JSON with one bookmark per
+     * line; it is read incrementally and passed to the repository in chunks. Bookmarks which have an id, no url or an
+     * empty tag are rejected, bookmarks with an existing url are reported as conflicts. Elements that are null or
+     * cannot be converted to a bookmark - for example because of an unknown property - are rejected as well.
+     * <p>
+     * When the body is not well-formed JSON, nothing after the damaged element can be read. The bookmarks before it are
+     * imported and the result is returned with the 400 status, with the position of the damaged element in the
+     * rejected positions, so that the client knows what was imported.
+     *
+     * @param request
+     *         the request with the bookmarks in the body
+     * @return the import result
+     * @throws IOException
+     *         when reading the request fails
+     */
+    @RequestMapping(value = MAPPING_IMPORT, method = RequestMethod.POST,
+            consumes = {"application/json", CONTENT_TYPE_NDJSON})
+    public final ResponseEntity<ImportResult> importBookmarks(final HttpServletRequest request) throws IOException {
+        ImportResult result = new ImportResult(0, Collections.emptyList());
+        List<Integer> rejected = new ArrayList<>();
+        List<Bookmark> chunk = new ArrayList<>(IMPORT_CHUNK_SIZE);
+        HttpStatus status = HttpStatus.OK;
+        int position = 0;
+        // the elements are read as trees, so that an element which is no bookmark does not stop the parser
+        try (MappingIterator<JsonNode> elements = streamMapper.reader(JsonNode.class)
+                .readValues(request.getInputStream())) {
+            while (elements.hasNextValue()) {
+                Bookmark bookmark = bookmarkFromJson(elements.nextValue());
+                if (null != bookmark && null == bookmark.getId() && null != bookmark.getUrl()
+                        && !bookmark.getUrl().isEmpty() && bookmark.getTags().stream().noneMatch(String::isEmpty)) {
+                    chunk.add(bookmark);
+                } else {
+                    rejected.add(position);
+                }
+                if (chunk.size() == IMPORT_CHUNK_SIZE) {
+                    result = result.plus(repository.importBookmarks(chunk));
+                    chunk = new ArrayList<>(IMPORT_CHUNK_SIZE);
+                }
+                position++;
+            }
+        } catch (JsonProcessingException e) {
+            LOG.warn("import data is not well-formed at element {}: {}", position, e.getOriginalMessage());
+            rejected.add(position);
+            status = HttpStatus.BAD_REQUEST;
+        }
+        if (!chunk.isEmpty()) {
+            result = result.plus(repository.importBookmarks(chunk));
+        }
+        result = result.plus(new ImportResult(0, Collections.emptyList(), rejected));
+        LOG.info("imported {} bookmarks, {} conflicts, {} rejected", result.getImported(),
+                result.getConflicts().size(), result.getRejected().size());
+        return new ResponseEntity<>(result, status);
+    }
+
+    /**
+     * tries to load the title for a web page. The title is loaded asynchronously by the {@link TitleLoader}, so the
+     * request thread is not blocked while the page is loaded.
      *
      * @param url
      *         url for which the title shall be loaded
-     * @return ResponseEntity with the title
+     * @return DeferredResult with the ResponseEntity with the title
      */
     @RequestMapping(value = MAPPING_TITLE, method = RequestMethod.GET)
     @ResponseBody
-    public final ResponseEntity<Bookmark> loadTitle(@RequestParam(value = "url", required = true) final String url) {
+    public final DeferredResult<ResponseEntity<Bookmark>> loadTitle(@RequestParam(value = "url", required = true)
+                                                                    final String url) {
+        DeferredResult<ResponseEntity<Bookmark>> deferredResult =
+                new DeferredResult<>(TITLE_TIMEOUT_MILLIS, new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE));
         if (MAGIC_TEST_URL.equals(url)) {
-            return new ResponseEntity<>(aBookmark().withUrl(url).build(), HttpStatus.OK);
+            deferredResult.setResult(new ResponseEntity<>(aBookmark().withUrl(url).build(), HttpStatus.OK));
+            return deferredResult;
         }
 
         String urlString = url;
-        if (null != urlString && !urlString.isEmpty()) {
-            if (!urlString.startsWith("http")) {
-                urlString = "http://" + urlString;
-            }
-            final String finalUrl = urlString;
-            LOG.info("loading title for url {}", finalUrl);
-            try {
-                String htmlTitle = Jsoup
-                        .connect(finalUrl)
-                        .timeout(5000)
-                        .userAgent(JSOUP_USER_AGENT)
-                        .get()
-                        .title();
-                LOG.info("got title: {}", htmlTitle);
-                return new ResponseEntity<>(aBookmark().withUrl(finalUrl).withTitle(htmlTitle).build(), HttpStatus.OK);
-            } catch (HttpStatusException e) {
-                LOG.info("loading url http error", e);
-                return new ResponseEntity<>(HttpStatus.valueOf(e.getStatusCode()));
-            } catch (IOException e) {
-                LOG.info("loading url error", e);
-            }
+        if (null == urlString || urlString.isEmpty()) {
+            deferredResult.setResult(new ResponseEntity<>(HttpStatus.NO_CONTENT));
+            return deferredResult;
         }
-        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        if (!urlString.startsWith("http")) {
+            urlString = "http://" + urlString;
+        }
+        titleLoader.loadTitle(urlString).whenComplete((response, throwable) -> {
+            if (null != throwable) {
+                LOG.info("loading url error", throwable);
+                deferredResult.setResult(new ResponseEntity<>(HttpStatus.NO_CONTENT));
+            } else {
+                deferredResult.setResult(response);
+            }
+        });
+        return deferredResult;
     }
 
     @PostConstruct
@@ -326,6 +610,53 @@ public class Taboo2Service {
                 .getCanonicalName());
     }
 
+    /**
+     * checks the request's If-None-Match header against the repository version and sets the ETag header of the
+     * response. The version is read before the data is loaded, see {@link BookmarkRepository#getVersion()}.
+     *
+     * @param webRequest
+     *         the request
+     * @return true if the client has the current version, the response status then is set to 304 (not modified).
+     */
+    private boolean notModified(final WebRequest webRequest) {
+        return webRequest.checkNotModified('"' + Long.toString(repository.getVersion()) + '"');
+    }
+
+    /**
+     * starts a check of all bookmark links in the background.
+     *
+     * @return ResponseEntity with status 202 (accepted) or 409 (conflict) if a check is already running
+     */
+    @RequestMapping(value = MAPPING_LINKS + "/scan", method = RequestMethod.POST)
+    public final ResponseEntity<Void> startLinkScan() {
+        if (!linkChecker.startScan()) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+        LOG.info("started link scan");
+        return new ResponseEntity<>(HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * returns the tags starting with a prefix for autocompletion, the most used tags first.
+     *
+     * @param prefix
+     *         the prefix, case insensitive
+     * @param limit
+     *         the maximum number of tags
+     * @return the tags
+     * @throws IllegalArgumentException
+     *         when the limit is out of range
+     */
+    @RequestMapping(value = MAPPING_TAGS + "/suggest", method = RequestMethod.GET)
+    public final List<String> suggestTags(@RequestParam(value = "prefix", defaultValue = "") final String prefix,
+                                          @RequestParam(value = "limit", defaultValue = "" + DEFAULT_SUGGEST_LIMIT)
+                                          final int limit) {
+        if (limit <= 0 || limit > MAX_SUGGEST_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_SUGGEST_LIMIT);
+        }
+        return repository.suggestTags(prefix.toLowerCase(), limit);
+    }
+
     /**
      * updates a bookmark in the repository.
      *
@@ -345,4 +676,21 @@ public class Taboo2Service {
         repository.updateBookmark(bookmark);
         LOG.info("updated bookmark {}", bookmark);
     }
+
+    /**
+     * writes the metrics of the application in the prometheus text format.
+     *
+     * @param response
+     *         the response to write to
+     * @throws IOException
+     *         when writing the response fails
+     */
+    @RequestMapping(value = MAPPING_METRICS, method = RequestMethod.GET, produces = TextFormat.CONTENT_TYPE_004)
+    public final void writeMetrics(final HttpServletResponse response) throws IOException {
+        response.setContentType(TextFormat.CONTENT_TYPE_004);
+        response.setCharacterEncoding("UTF-8");
+        try (Writer writer = response.getWriter()) {
+            TextFormat.write004(writer, CollectorRegistry.defaultRegistry.metricFamilySamples());
+        }
+    }
 }
@@ -15,6 +15,7 @@
 */
 package com.sothawo.taboo2;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,19 +28,31 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * Service to provide User details.
+ * <p>
+ * The users are kept in an immutable snapshot that is replaced as a whole when the users file is reloaded, so lookups
+ * neither lock nor read the file. The file is reloaded when a WatchService reports a change of it; if it cannot be
+ * read, the current snapshot is kept.
  *
  * @author P.J. Meisch (pj.meisch@sothawo.com).
  */
@@ -55,8 +68,22 @@ public class Taboo2UserService implements UserDetailsService {
     @Autowired
     Taboo2Configuration taboo2Configuration;
 
-    /** Map with known users. Key is the username, password ist hashed */
-    private final Map<String, User> knownUsers = new HashMap<>();
+    /** the current snapshot of the known users. */
+    private volatile Users users = new Users(Collections.emptyMap(), 0);
+
+    /** watches the directory of the users file, null if no file is configured. */
+    private WatchService watchService;
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the version of the user data, it is incremented with every reload of the users file.
+     *
+     * @return the version
+     */
+    public long getUsersVersion() {
+        return users.version;
+    }
 
 // ------------------------ INTERFACE METHODS ------------------------
 
@@ -65,52 +92,144 @@ public class Taboo2UserService implements UserDetailsService {
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        Optional<User> optionalUser;
-        synchronized (knownUsers) {
-            optionalUser = Optional.ofNullable(knownUsers.get(username));
-            if (!optionalUser.isPresent()) {
-                // reload the data from users file
-                log.debug("loading user data");
-                knownUsers.clear();
-                Optional.ofNullable(taboo2Configuration.getUsers())
-                        .ifPresent(filename -> {
-                            log.debug("user file: {}", filename);
-                            try {
-                                Files.lines(Paths.get(filename))
-                                        .map(String::trim)
-                                        .filter(line -> !line.isEmpty())
-                                        .filter(line -> !line.startsWith("#"))
-                                        .forEach(line -> {
-                                            String[] fields = line.split(":");
-                                            if (fields.length == 3) {
-                                                String user = fields[0];
-                                                String hashedPassword = fields[1];
-                                                String[] roles = fields[2].split(",");
-                                                if (roles.length < 1) {
-                                                    roles = new String []{"undef"};
-                                                }
-                                                List<GrantedAuthority> authorities = new ArrayList<>();
-                                                for (String role : roles) {
-                                                    authorities.add(new SimpleGrantedAuthority(role));
-                                                }
-                                                knownUsers.put(user, new User(user, hashedPassword, authorities));
-                                            }
-                                        });
-                                log.debug("loaded {} user(s)", knownUsers.size());
-                            } catch (IOException e) {
-                                log.debug("reading file", e);
-                            }
-                        });
-
-                // search again after reload
-                optionalUser = Optional.ofNullable(knownUsers.get(username));
-            }
+        User user = users.byName.get(username);
+        if (null == user) {
+            throw new UsernameNotFoundException(username);
         }
         // need to return a copy as Spring security erases the password in the object after verification
-        User user = optionalUser.orElseThrow(() -> new UsernameNotFoundException(username));
         return new User(user.getUsername(), user.getPassword(), user.getAuthorities());
     }
 
+// -------------------------- OTHER METHODS --------------------------
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (null != watchService) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * parses a line of the users file.
+     *
+     * @param line
+     *         the line, user:hashed-password:role1,...,roleN
+     * @return the user, null if the line is not valid
+     */
+    private static User parseUser(String line) {
+        String[] fields = line.split(":");
+        if (fields.length != 3) {
+            return null;
+        }
+        String user = fields[0];
+        String hashedPassword = fields[1];
+        String[] roles = fields[2].split(",");
+        if (roles.length < 1) {
+            roles = new String[]{"undef"};
+        }
+        List<GrantedAuthority> authorities = new ArrayList<>();
+        for (String role : roles) {
+            authorities.add(new SimpleGrantedAuthority(role));
+        }
+        return new User(user, hashedPassword, authorities);
+    }
+
+    /**
+     * reads the users file and replaces the snapshot. If the file cannot be read, the current snapshot is kept.
+     */
+    synchronized void reload() {
+        String filename = taboo2Configuration.getUsers();
+        if (null == filename) {
+            return;
+        }
+        log.debug("loading user data from {}", filename);
+        Map<String, User> byName = new HashMap<>();
+        try (Stream<String> lines = Files.lines(Paths.get(filename))) {
+            lines.map(String::trim)
+                    .filter(line -> !line.isEmpty())
+                    .filter(line -> !line.startsWith("#"))
+                    .map(Taboo2UserService::parseUser)
+                    .filter(user -> null != user)
+                    .forEach(user -> byName.put(user.getUsername(), user));
+        } catch (IOException | RuntimeException e) {
+            log.warn("cannot read user file {}, keeping {} user(s)", filename, users.byName.size(), e);
+            return;
+        }
+        users = new Users(Collections.unmodifiableMap(byName), users.version + 1);
+        log.debug("loaded {} user(s)", byName.size());
+    }
+
+    /**
+     * loads the users and starts watching the users file.
+     *
+     * @throws IOException
+     *         if the WatchService cannot be created
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        reload();
+        String filename = taboo2Configuration.getUsers();
+        if (null == filename) {
+            return;
+        }
+        Path file = Paths.get(filename).toAbsolutePath();
+        Path directory = file.getParent();
+        if (!Files.isDirectory(directory)) {
+            log.warn("directory of user file {} does not exist, changes are not loaded", file);
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        new ThreadFactoryBuilder().setNameFormat("users-watch-%d").setDaemon(true).build()
+                .newThread(() -> watch(file.getFileName()))
+                .start();
+    }
+
+    /**
+     * waits for changes in the directory of the users file and reloads the file when it was changed. Returns when the
+     * WatchService is closed.
+     *
+     * @param filename
+     *         the name of the users file
+     */
+    private void watch(Path filename) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= StandardWatchEventKinds.OVERFLOW == event.kind() || filename.equals(event.context());
+                }
+                if (changed) {
+                    reload();
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException ignored) {
+            // service was closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * immutable snapshot of the users.
+     */
+    private static final class Users {
+        /** the users by name, passwords are hashed. */
+        private final Map<String, User> byName;
+
+        /** the version of the snapshot. */
+        private final long version;
+
+        Users(Map<String, User> byName, long version) {
+            this.byName = byName;
+            this.version = version;
+        }
+    }
+
 // --------------------------- main() method ---------------------------
 
     /**
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2;
+
+import com.google.common.collect.MapMaker;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dictionary of the tags in use, shared by all bookmarks. Every distinct tag string gets an entry with an int id, the
+ * bookmarks store the entries, so that the tag strings are not duplicated in every bookmark and the tags are compared
+ * by their ids.
+ * <p>
+ * The dictionary holds its entries weakly: when no bookmark references an entry any more, it is removed by the
+ * garbage collector together with its tag string. The dictionary therefore only holds the tags of the live bookmarks,
+ * tags of purged repositories, other partitions or finished tests do not accumulate. A tag that is used again after
+ * its entry was removed gets a new id; ids are never reused.
+ * <p>
+ * The class is thread safe, lookups of known tags do not lock.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class TagDictionary {
+// ------------------------------ FIELDS ------------------------------
+
+    /** tag -> entry, the entries are weakly referenced. */
+    private static final ConcurrentMap<String, Entry> ENTRIES = new MapMaker().weakValues().makeMap();
+
+    /** the id of the next new entry. */
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private TagDictionary() {
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * returns the entry of a tag, the tag is added if it is not yet known.
+     *
+     * @param tag
+     *         the tag
+     * @return the entry, it stays in the dictionary as long as it is referenced
+     * @throws NullPointerException
+     *         when tag is null
+     */
+    public static Entry entryOf(String tag) {
+        Entry entry = ENTRIES.get(Objects.requireNonNull(tag));
+        if (null == entry) {
+            Entry newEntry = new Entry(NEXT_ID.getAndIncrement(), tag);
+            entry = ENTRIES.putIfAbsent(tag, newEntry);
+            if (null == entry) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * returns the entry of a tag if the tag is known, without adding it.
+     *
+     * @param tag
+     *         the tag
+     * @return the entry or null if the tag is not in the dictionary
+     */
+    public static Entry find(String tag) {
+        return ENTRIES.get(tag);
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * a tag with its id. There is at most one entry per tag at a time, so entries are compared by identity.
+     */
+    public static final class Entry {
+        /** the id of the tag. */
+        private final int id;
+
+        /** the tag. */
+        private final String tag;
+
+        private Entry(int id, String tag) {
+            this.id = id;
+            this.tag = tag;
+        }
+
+        /**
+         * gets the id.
+         *
+         * @return the id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * gets the tag.
+         *
+         * @return the tag
+         */
+        public String getTag() {
+            return tag;
+        }
+    }
+}
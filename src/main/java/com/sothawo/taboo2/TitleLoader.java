@@ -0,0 +1,301 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jsoup.Connection;
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+
+/**
+ * Loads the titles of web pages asynchronously on a bounded executor, so that slow sites do not block the request
+ * threads. Loaded titles and failures are cached for some time, concurrent requests for the same url share one load.
+ * Only the head section of a page is read.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@Component
+public class TitleLoader {
+// ------------------------------ FIELDS ------------------------------
+
+    /** Logger for the class. */
+    private final static Logger LOG = LoggerFactory.getLogger(TitleLoader.class);
+
+    /**
+     * user agent that jsoup sends when fetching the page title. Some sites send 403, when no known user agent is
+     * sent).
+     */
+    static final String JSOUP_USER_AGENT =
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_1) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/45.0.2454.101 Safari/537.36";
+
+    /** timeout for loading a page in milliseconds. */
+    private static final int LOAD_TIMEOUT_MILLIS = 5000;
+
+    /** number of threads loading titles. */
+    private static final int LOADER_THREADS = 4;
+
+    /** number of loads that may wait for a thread, further requests are rejected. */
+    private static final int LOADER_QUEUE_SIZE = 100;
+
+    /** maximum number of bytes read when looking for the end of the head section. */
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+
+    /** size of the blocks read from the page. */
+    private static final int READ_BLOCK_SIZE = 4 * 1024;
+
+    /** the end tag of the head section, lowercase. */
+    private static final byte[] HEAD_END_TAG = "</head".getBytes(StandardCharsets.US_ASCII);
+
+    /** charset in a content type. */
+    private static final Pattern CHARSET_PATTERN = Pattern.compile("charset=\\s*\"?([\\w.:-]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    /** minutes to keep a loaded title. */
+    private static final int TITLE_CACHE_MINUTES = 60;
+
+    /** minutes to keep a failed load. */
+    private static final int FAILURE_CACHE_MINUTES = 5;
+
+    /** maximum number of urls in each cache. */
+    private static final int CACHE_SIZE = 10_000;
+
+    /** the loaded titles. */
+    private final Cache<String, ResponseEntity<Bookmark>> titles = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .expireAfterWrite(TITLE_CACHE_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /** the failed loads. */
+    private final Cache<String, ResponseEntity<Bookmark>> failures = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .expireAfterWrite(FAILURE_CACHE_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /** the loads in progress by url. */
+    private final ConcurrentMap<String, CompletableFuture<ResponseEntity<Bookmark>>> loading =
+            new ConcurrentHashMap<>();
+
+    /** executor for the loads. */
+    private final ExecutorService executor;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public TitleLoader() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LOADER_QUEUE_SIZE), runnable -> {
+            Thread thread = new Thread(runnable, "title-loader-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * gets the cached response for an url.
+     *
+     * @param url
+     *         the url
+     * @return the response or null if none is cached
+     */
+    private ResponseEntity<Bookmark> cachedResponse(String url) {
+        ResponseEntity<Bookmark> response = titles.getIfPresent(url);
+        return (null != response) ? response : failures.getIfPresent(url);
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * loads the title of a page.
+     *
+     * @param url
+     *         the url of the page
+     * @return the response
+     */
+    private ResponseEntity<Bookmark> load(String url) {
+        LOG.info("loading title for url {}", url);
+        try {
+            Connection.Response response = Jsoup
+                    .connect(url)
+                    .timeout(LOAD_TIMEOUT_MILLIS)
+                    .userAgent(JSOUP_USER_AGENT)
+                    .execute();
+            byte[] head;
+            try (InputStream body = response.bodyStream()) {
+                head = readHead(body);
+            }
+            String htmlTitle = parseHead(head, response.charset(), url).title();
+            LOG.info("got title: {}", htmlTitle);
+            return new ResponseEntity<>(aBookmark().withUrl(url).withTitle(htmlTitle).build(), HttpStatus.OK);
+        } catch (HttpStatusException e) {
+            LOG.info("loading url http error", e);
+            return new ResponseEntity<>(HttpStatus.valueOf(e.getStatusCode()));
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.info("loading url error", e);
+            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        }
+    }
+
+    /**
+     * loads the title of a page. The returned future completes with a response containing a bookmark with url and
+     * title, with the http status of the page if that was an error, or with NO_CONTENT if the page could not be loaded.
+     * If too many loads are waiting, it completes with SERVICE_UNAVAILABLE.
+     *
+     * @param url
+     *         the url of the page
+     * @return the future response
+     */
+    public CompletableFuture<ResponseEntity<Bookmark>> loadTitle(final String url) {
+        ResponseEntity<Bookmark> cached = cachedResponse(url);
+        if (null != cached) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<ResponseEntity<Bookmark>> future = new CompletableFuture<>();
+        CompletableFuture<ResponseEntity<Bookmark>> running = loading.putIfAbsent(url, future);
+        if (null != running) {
+            return running;
+        }
+        // a load that finished between the cache check and the registration has filled the cache
+        cached = cachedResponse(url);
+        if (null != cached) {
+            loading.remove(url, future);
+            future.complete(cached);
+            return future;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    ResponseEntity<Bookmark> response = load(url);
+                    if (response.getStatusCode() == HttpStatus.OK) {
+                        titles.put(url, response);
+                    } else {
+                        failures.put(url, response);
+                    }
+                    future.complete(response);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    loading.remove(url, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("too many title loads, rejecting {}", url);
+            loading.remove(url, future);
+            future.complete(new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE));
+        }
+        return future;
+    }
+
+    /**
+     * parses the head of a page. The charset is taken from the response; if there is none, the head is decoded as
+     * UTF-8 and decoded again if it declares a different charset in a meta element.
+     *
+     * @param head
+     *         the bytes of the head
+     * @param charsetName
+     *         the charset from the response, may be null
+     * @param url
+     *         the url of the page
+     * @return the parsed document
+     */
+    private static Document parseHead(byte[] head, String charsetName, String url) {
+        if (null != charsetName && Charset.isSupported(charsetName)) {
+            return Jsoup.parse(new String(head, Charset.forName(charsetName)), url);
+        }
+        Document document = Jsoup.parse(new String(head, StandardCharsets.UTF_8), url);
+        Element meta = document.select("meta[charset], meta[http-equiv=content-type]").first();
+        if (null != meta) {
+            String declared = meta.hasAttr("charset") ? meta.attr("charset") : null;
+            Matcher matcher = CHARSET_PATTERN.matcher(meta.attr("content"));
+            if (null == declared && matcher.find()) {
+                declared = matcher.group(1);
+            }
+            if (null != declared && Charset.isSupported(declared)
+                    && !StandardCharsets.UTF_8.equals(Charset.forName(declared))) {
+                document = Jsoup.parse(new String(head, Charset.forName(declared)), url);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * reads the start of a page up to the end of the head section, at most {@link #MAX_HEAD_BYTES}.
+     *
+     * @param body
+     *         the body stream
+     * @return the read bytes
+     * @throws IOException
+     *         on read errors
+     */
+    private static byte[] readHead(InputStream body) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(READ_BLOCK_SIZE);
+        byte[] block = new byte[READ_BLOCK_SIZE];
+        int matched = 0;
+        int read;
+        while (head.size() < MAX_HEAD_BYTES && (read = body.read(block)) > 0) {
+            head.write(block, 0, read);
+            for (int i = 0; i < read; i++) {
+                byte b = block[i];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b == HEAD_END_TAG[matched]) {
+                    matched++;
+                } else {
+                    matched = (b == HEAD_END_TAG[0]) ? 1 : 0;
+                }
+                if (matched == HEAD_END_TAG.length) {
+                    return head.toByteArray();
+                }
+            }
+        }
+        return head.toByteArray();
+    }
+}
@@ -6,15 +6,24 @@
 package com.sothawo.taboo2.repository;
 
 import com.google.common.collect.Sets;
+import com.sothawo.taboo2.AlreadyExistsException;
 import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ImportResult;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -23,6 +32,26 @@ import java.util.stream.Collectors;
  * @author P.J. Meisch (pj.meisch@sothawo.com).
  */
 public abstract class AbstractBookmarkRepository implements BookmarkRepository {
+// ------------------------------ FIELDS ------------------------------
+
+    /**
+     * the change log, its sequence numbers are the versions of the data. Starts with the current time, so that versions
+     * from an earlier run of the application are not mistaken for the current one.
+     */
+    private final ChangeLog changeLog = new ChangeLog(System.currentTimeMillis(), ChangeLog.DEFAULT_MAXIMUM_SIZE);
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * sets the number of changes after which the change log is compacted.
+     *
+     * @param changeLogSize
+     *         the size, must be positive
+     */
+    public void setChangeLogSize(int changeLogSize) {
+        changeLog.setMaximumSize(changeLogSize);
+    }
+
 // ------------------------ INTERFACE METHODS ------------------------
 
 
@@ -45,6 +74,41 @@ public abstract class AbstractBookmarkRepository implements BookmarkRepository {
         return clones;
     }
 
+    /**
+     * basic implementation passing clones without ids of the bookmarks from {@link #getAllBookmarks()}.
+     *
+     * @param consumer
+     *         the consumer for the bookmarks
+     */
+    @Override
+    public void dumpBookmarks(Consumer<Bookmark> consumer) {
+        for (Bookmark bookmark : getAllBookmarks()) {
+            Bookmark clone = bookmark.clone();
+            clone.setId(null);
+            consumer.accept(clone);
+        }
+    }
+
+    /**
+     * basic implementation that gets the full result and cuts the page from it. Deriving classes should implement a
+     * version that only loads the bookmarks of the page.
+     *
+     * @see BookmarkRepository#getBookmarksPage(Collection, boolean, String, String, int)
+     */
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        checkPageLimit(limit);
+        final long after = PageCursor.decode(cursor);
+        Collection<Bookmark> found = (null == tags && null == s) ? getAllBookmarks() :
+                getBookmarksWithTagsAndSearch(tags, opAnd, s);
+        List<Bookmark> bookmarks = found.stream()
+                .filter(bookmark -> Long.parseLong(bookmark.getId()) > after)
+                .sorted(Comparator.comparing(bookmark -> Long.parseLong(bookmark.getId())))
+                .limit(limit)
+                .collect(Collectors.toList());
+        return pageOf(bookmarks, limit);
+    }
+
     /**
      * basic implementation for the combination logic which relies on #getBookmarksWithTag(String) being implemented.
      *
@@ -96,8 +160,124 @@ public abstract class AbstractBookmarkRepository implements BookmarkRepository {
         }
     }
 
+    @Override
+    public Changes getChanges(long since) {
+        return changeLog.since(since);
+    }
+
+    /**
+     * basic implementation that counts the tags of the selected bookmarks. Deriving classes with a tag index should
+     * count on the index instead of loading the bookmarks.
+     *
+     * @see BookmarkRepository#getTagCounts(Collection, boolean, String)
+     */
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        Collection<Bookmark> selection = (null == tags && null == s) ? getAllBookmarks() :
+                getBookmarksWithTagsAndSearch(tags, opAnd, s);
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Bookmark bookmark : selection) {
+            for (String tag : bookmark.getTags()) {
+                counts.merge(tag, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public long getVersion() {
+        return changeLog.getVersion();
+    }
+
+    /**
+     * basic implementation that creates the bookmarks one by one.
+     *
+     * @see BookmarkRepository#importBookmarks(Collection)
+     */
+    @Override
+    public ImportResult importBookmarks(Collection<Bookmark> bookmarks) {
+        checkImportBookmarks(bookmarks);
+        int imported = 0;
+        List<String> conflicts = new ArrayList<>();
+        for (Bookmark bookmark : bookmarks) {
+            try {
+                createBookmark(bookmark.clone());
+                imported++;
+            } catch (AlreadyExistsException e) {
+                conflicts.add(bookmark.getUrl());
+            }
+        }
+        return new ImportResult(imported, conflicts);
+    }
+
+    /**
+     * basic implementation that filters the tags from {@link #getAllTags()}, sorted alphabetically as the usage counts
+     * are not known. Deriving classes with a tag index should rank by usage.
+     *
+     * @see BookmarkRepository#suggestTags(String, int)
+     */
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        return getAllTags().stream()
+                .filter(tag -> tag.startsWith(prefix))
+                .sorted()
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
 // -------------------------- OTHER METHODS --------------------------
 
+    /**
+     * checks the bookmarks for an import.
+     *
+     * @param bookmarks
+     *         the bookmarks
+     * @throws IllegalArgumentException
+     *         if one of the bookmarks has an id or no url
+     */
+    protected static void checkImportBookmarks(Collection<Bookmark> bookmarks) {
+        for (Bookmark bookmark : bookmarks) {
+            if (null != bookmark.getId()) {
+                throw new IllegalArgumentException("id must not be set");
+            }
+            if (null == bookmark.getUrl() || bookmark.getUrl().isEmpty()) {
+                throw new IllegalArgumentException("bookmark url is not set");
+            }
+        }
+    }
+
+    /**
+     * checks the limit for a page.
+     *
+     * @param limit
+     *         the limit
+     * @throws IllegalArgumentException
+     *         if the limit is not positive
+     */
+    protected static void checkPageLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+    }
+
+    /**
+     * builds a page from the bookmarks which must be ordered by id. When the page is full, it gets the cursor for the
+     * next page, so the last page might be empty.
+     *
+     * @param bookmarks
+     *         the bookmarks of the page
+     * @param limit
+     *         the requested limit
+     * @return the page
+     */
+    protected static BookmarksPage pageOf(List<Bookmark> bookmarks, int limit) {
+        String nextCursor = null;
+        if (bookmarks.size() >= limit) {
+            nextCursor = PageCursor.encode(Long.parseLong(bookmarks.get(bookmarks.size() - 1).getId()));
+        }
+        return new BookmarksPage(bookmarks, nextCursor);
+    }
+
     /**
      * get all bookmakrs that have a given tag. basic implementation returning an empty set. Used by
      * #getBookmarksWithTags.
@@ -109,4 +289,19 @@ public abstract class AbstractBookmarkRepository implements BookmarkRepository {
     protected Set<Bookmark> getBookmarksWithTag(String tag) {
         return Collections.emptySet();
     }
+
+    /**
+     * records a change in the change log, which increments the version. Must be called by the deriving classes after
+     * every change of the data, while the change can not be overtaken by a later change of the same bookmark.
+     *
+     * @param type
+     *         the kind of change
+     * @param id
+     *         the id of the bookmark, null for a purge
+     * @param bookmark
+     *         the bookmark after the change, null for deletes and purges
+     */
+    protected void recordChange(Change.Type type, String id, Bookmark bookmark) {
+        changeLog.add(type, id, bookmark);
+    }
 }
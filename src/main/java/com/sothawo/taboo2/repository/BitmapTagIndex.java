@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tag query engine using compressed bitmaps. Bookmarks are identified by dense int document ids (the repositories use
+ * their numeric bookmark ids), for every tag a RoaringBitmap with the documents having this tag is kept. AND and OR
+ * combinations are done with bitmap operations, for AND the postings are combined smallest first.
+ * <p>
+ * The postings are sorted by tag, so they are a prefix index for tag suggestions as well; the cardinality of a posting
+ * is the usage count of its tag.
+ * <p>
+ * The class is thread safe. Every posting has its own read-write lock, a document is added to or removed from the posting
+ * in place under the write lock, so the cost of a change does not depend on the size of the posting. Readers take the
+ * read locks of the postings they use one after the other, never two at once.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class BitmapTagIndex {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the postings tag -> documents, sorted by tag. */
+    private final ConcurrentNavigableMap<String, Posting> postings = new ConcurrentSkipListMap<>();
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * adds a document to the postings of the given tags.
+     *
+     * @param doc
+     *         the document id
+     * @param tags
+     *         the tags of the document
+     */
+    public void add(int doc, Collection<String> tags) {
+        for (String tag : tags) {
+            // a posting that became empty is removed from the map, then a new one is needed
+            while (!postings.computeIfAbsent(tag, t -> new Posting()).add(doc)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * removes all entries.
+     */
+    public void clear() {
+        postings.clear();
+    }
+
+    /**
+     * counts the documents of a selection for every tag.
+     *
+     * @param docs
+     *         the selected documents, null to count all documents
+     * @return the tags with at least one selected document and their counts, sorted by tag
+     */
+    public Map<String, Integer> counts(RoaringBitmap docs) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, Posting> posting : postings.entrySet()) {
+            int count = posting.getValue().count(docs);
+            if (count > 0) {
+                counts.put(posting.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * finds the documents for a tag combination.
+     *
+     * @param tags
+     *         the tags to search
+     * @param opAnd
+     *         if true, the tags are to be combined using AND, otherwise OR
+     * @return the found documents, a new bitmap that may be changed by the caller
+     */
+    public RoaringBitmap find(Collection<String> tags, boolean opAnd) {
+        List<Posting> tagPostings = new ArrayList<>();
+        for (String tag : new HashSet<>(tags)) {
+            Posting posting = postings.get(tag);
+            if (null != posting) {
+                tagPostings.add(posting);
+            } else if (opAnd) {
+                return new RoaringBitmap();
+            }
+        }
+        if (tagPostings.isEmpty()) {
+            return new RoaringBitmap();
+        }
+        RoaringBitmap result = new RoaringBitmap();
+        if (!opAnd) {
+            tagPostings.forEach(posting -> posting.orInto(result));
+            return result;
+        }
+
+        // intersect smallest first, so the intermediate result is as small as possible from the start
+        tagPostings.sort(Comparator.comparingInt(Posting::cardinality));
+        tagPostings.get(0).orInto(result);
+        for (int i = 1; i < tagPostings.size() && !result.isEmpty(); i++) {
+            tagPostings.get(i).andInto(result);
+        }
+        return result;
+    }
+
+    /**
+     * removes a document from the postings of the given tags. Postings that become empty are removed.
+     *
+     * @param doc
+     *         the document id
+     * @param tags
+     *         the tags of the document
+     */
+    public void remove(int doc, Collection<String> tags) {
+        for (String tag : tags) {
+            Posting posting = postings.get(tag);
+            if (null != posting && posting.remove(doc)) {
+                postings.remove(tag, posting);
+            }
+        }
+    }
+
+    /**
+     * returns the tags starting with a prefix, the most used tags first, tags with the same usage count sorted
+     * alphabetically.
+     *
+     * @param prefix
+     *         the prefix, the empty string matches all tags
+     * @param limit
+     *         the maximum number of tags
+     * @return the tags
+     */
+    public List<String> suggest(String prefix, int limit) {
+        // keeps the best entries found so far, the worst on top
+        Comparator<Map.Entry<String, Integer>> ranking = Comparator
+                .comparing((Map.Entry<String, Integer> entry) -> entry.getValue())
+                .thenComparing(Map.Entry::getKey, Comparator.reverseOrder());
+        PriorityQueue<Map.Entry<String, Integer>> best = new PriorityQueue<>(ranking);
+        for (Map.Entry<String, Posting> posting : postings.tailMap(prefix).entrySet()) {
+            if (!posting.getKey().startsWith(prefix)) {
+                break;
+            }
+            best.add(new AbstractMap.SimpleImmutableEntry<>(posting.getKey(), posting.getValue().cardinality()));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        LinkedList<String> tags = new LinkedList<>();
+        while (!best.isEmpty()) {
+            tags.addFirst(best.poll().getKey());
+        }
+        return tags;
+    }
+
+    /**
+     * returns the tags that have at least one document.
+     *
+     * @return a new set of tags
+     */
+    public Set<String> tags() {
+        return new HashSet<>(postings.keySet());
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the documents of a tag with the lock guarding them. A posting that became empty is discarded, it does not take
+     * documents any more and is replaced in the map by a new one when the tag is used again.
+     */
+    private static final class Posting {
+        /** guards the documents and the discarded flag. */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /** the documents. */
+        private final RoaringBitmap docs = new RoaringBitmap();
+
+        /** true when the posting was empty and is removed from the map. */
+        private boolean discarded;
+
+        /**
+         * adds a document.
+         *
+         * @param doc
+         *         the document id
+         * @return false if the posting is discarded and the document was not added
+         */
+        boolean add(int doc) {
+            lock.writeLock().lock();
+            try {
+                if (discarded) {
+                    return false;
+                }
+                docs.add(doc);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * intersects a bitmap with the documents.
+         *
+         * @param result
+         *         the bitmap that is changed
+         */
+        void andInto(RoaringBitmap result) {
+            lock.readLock().lock();
+            try {
+                result.and(docs);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * returns the number of documents.
+         *
+         * @return the cardinality
+         */
+        int cardinality() {
+            lock.readLock().lock();
+            try {
+                return docs.getCardinality();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * counts the documents of a selection.
+         *
+         * @param selection
+         *         the selected documents, null to count all documents
+         * @return the number of selected documents in the posting
+         */
+        int count(RoaringBitmap selection) {
+            lock.readLock().lock();
+            try {
+                return (null == selection) ? docs.getCardinality() : RoaringBitmap.andCardinality(docs, selection);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * adds the documents to a bitmap.
+         *
+         * @param result
+         *         the bitmap that is changed
+         */
+        void orInto(RoaringBitmap result) {
+            lock.readLock().lock();
+            try {
+                result.or(docs);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * removes a document, the posting is discarded when it becomes empty.
+         *
+         * @param doc
+         *         the document id
+         * @return true if the posting is now discarded and must be removed from the map
+         */
+        boolean remove(int doc) {
+            lock.writeLock().lock();
+            try {
+                docs.remove(doc);
+                if (docs.isEmpty() && !discarded) {
+                    discarded = true;
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,700 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.TabooException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+
+/**
+ * Persists the changes of an InMemoryRepository in a directory, as write-ahead log files and binary snapshots.
+ * <p>
+ * The files belong to generations. The snapshot of generation n contains all bookmarks and the next id at the start
+ * of the log of generation n, which contains the following changes. On loading, the latest complete snapshot is read
+ * and the logs of its generation and all later ones are replayed. A log ends at the first incomplete or damaged record,
+ * which is what a crash during a write leaves; the rest of the file is cut off before new records are appended.
+ * <p>
+ * A record is written with {@link #write(Change.Type, String, Bookmark)} before the change is applied, and the caller
+ * then waits in {@link #sync(long)} until it is forced to disk, without holding its locks. Threads waiting at the same
+ * time share one force (group commit), so the number of syncs does not grow with the number of writers. When a force
+ * fails, it is unknown which records are on disk, so the journal refuses all further writes.
+ * <p>
+ * A snapshot is written after {@link #rotate()} has started a new generation; when it is complete, the files of the
+ * older generations are deleted. The rotation does not force the old log, this is done by the next sync. The first
+ * record of the new log holds the length of the old one, so that on loading the new log is only replayed when the old
+ * one is complete.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+class BookmarkJournal implements AutoCloseable {
+// ------------------------------ FIELDS ------------------------------
+
+    /** Logger for the class. */
+    private final static Logger LOG = LoggerFactory.getLogger(BookmarkJournal.class);
+
+    /** default size of a log file after which a snapshot is due. */
+    static final long DEFAULT_SNAPSHOT_THRESHOLD = 16 * 1024 * 1024;
+
+    /** type of the first record of a log, holds the length of the log of the previous generation. */
+    private static final byte LOG_START = -1;
+
+    /** magic number at the start of a snapshot file. */
+    private static final int SNAPSHOT_MAGIC = 0x7ab00502;
+
+    /** the names of the journal files. */
+    private static final Pattern FILE_NAME = Pattern.compile("(wal|snapshot)-(\\d+)\\.(log|dat)");
+
+    /** the directory with the files. */
+    private final Path directory;
+
+    /** size of a log file after which a snapshot is due. */
+    private final long snapshotThreshold;
+
+    /** guards the writing to the log and the rotation. */
+    private final Object appendLock = new Object();
+
+    /** guards forcing the log to disk, taken before {@link #appendLock} if both are needed. */
+    private final Object syncLock = new Object();
+
+    /** the current generation. */
+    private long generation;
+
+    /** the log of the current generation. */
+    private FileChannel channel;
+
+    /** the logs of older generations that still have to be forced to disk and closed. */
+    private final List<FileChannel> retiredChannels = new ArrayList<>();
+
+    /** the number of bytes appended to the log of the current generation. */
+    private long appended;
+
+    /** the number of bytes of all generations appended since opening, used to track what is synced. */
+    private long totalAppended;
+
+    /** the part of {@link #totalAppended} that is forced to disk. */
+    private volatile long totalSynced;
+
+    /** the error of a failed force, no more records are written after it. */
+    private volatile IOException failure;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a BookmarkJournal for a directory, the directory is created if needed. The journal must be loaded with
+     * {@link #load(Consumer)} before writing.
+     *
+     * @param directory
+     *         the directory
+     * @param snapshotThreshold
+     *         size of a log file after which a snapshot is due
+     */
+    BookmarkJournal(Path directory, long snapshotThreshold) {
+        this.directory = directory;
+        this.snapshotThreshold = snapshotThreshold;
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (null != channel) {
+                    for (FileChannel retiredChannel : retiredChannels) {
+                        retiredChannel.force(false);
+                        retiredChannel.close();
+                    }
+                    retiredChannels.clear();
+                    channel.force(false);
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * checks that no force has failed.
+     *
+     * @throws TabooException
+     *         if a force has failed
+     */
+    private void checkNotFailed() {
+        IOException failedWith = failure;
+        if (null != failedWith) {
+            throw new TabooException("the bookmark journal in " + directory + " failed, no changes are accepted",
+                    failedWith);
+        }
+    }
+
+    /**
+     * deletes the files of the generations before the given one.
+     *
+     * @param keepGeneration
+     *         the oldest generation to keep
+     * @throws IOException
+     *         if a file cannot be deleted
+     */
+    private void deleteGenerationsBefore(long keepGeneration) throws IOException {
+        for (Path path : journalFiles()) {
+            if (generationOf(path) < keepGeneration) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * gets the generation from a file name.
+     *
+     * @param path
+     *         the file
+     * @return the generation
+     */
+    private static long generationOf(Path path) {
+        Matcher matcher = FILE_NAME.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : -1;
+    }
+
+    /**
+     * lists the log and snapshot files in the directory.
+     *
+     * @return the files
+     * @throws IOException
+     *         if the directory cannot be read
+     */
+    private List<Path> journalFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (FILE_NAME.matcher(path.getFileName().toString()).matches()) {
+                    files.add(path);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * loads the journal: passes the bookmarks from the latest snapshot as CREATED changes to the consumer, followed by
+     * the changes from the logs. Afterwards the log of the last generation is opened for appending.
+     *
+     * @param consumer
+     *         consumer for the changes, the sequence numbers are 0
+     * @return the next id stored in the snapshot, 1 if there is none. Ids of deleted bookmarks are not in the snapshot,
+     * so they are only known from this value.
+     * @throws TabooException
+     *         if the journal cannot be read
+     */
+    int load(Consumer<Change> consumer) {
+        try {
+            Files.createDirectories(directory);
+            List<Long> snapshots = new ArrayList<>();
+            List<Long> logs = new ArrayList<>();
+            for (Path path : journalFiles()) {
+                (path.getFileName().toString().startsWith("wal") ? logs : snapshots).add(generationOf(path));
+            }
+            Collections.sort(snapshots, Collections.reverseOrder());
+            Collections.sort(logs);
+
+            long snapshotGeneration = 0;
+            int nextId = 1;
+            for (long candidate : snapshots) {
+                int snapshotNextId = readSnapshot(snapshotPath(candidate), consumer);
+                if (snapshotNextId > 0) {
+                    snapshotGeneration = candidate;
+                    nextId = snapshotNextId;
+                    break;
+                }
+                LOG.warn("ignoring damaged snapshot {}", snapshotPath(candidate));
+            }
+
+            generation = snapshotGeneration;
+            long validLength = 0;
+            // the length of the previous log is only known when it was replayed, not for the first log after a snapshot
+            long previousLength = -1;
+            boolean previousComplete = true;
+            for (long logGeneration : logs) {
+                if (logGeneration >= snapshotGeneration) {
+                    long length = previousComplete ? readLog(logPath(logGeneration), previousLength, consumer) : -1;
+                    if (length < 0) {
+                        // records of an older log were lost, the later records were never acknowledged
+                        LOG.warn("deleting {}, an older log is incomplete", logPath(logGeneration));
+                        Files.delete(logPath(logGeneration));
+                        previousComplete = false;
+                    } else {
+                        generation = logGeneration;
+                        validLength = length;
+                        previousLength = length;
+                    }
+                }
+            }
+
+            channel = FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.size() > validLength) {
+                LOG.warn("cutting off {} damaged bytes from {}", channel.size() - validLength, logPath(generation));
+                channel.truncate(validLength);
+                channel.force(false);
+            }
+            appended = validLength;
+            LOG.info("loaded bookmark journal from {}, generation {}", directory, generation);
+            return nextId;
+        } catch (IOException e) {
+            throw new TabooException("loading the bookmark journal from " + directory, e);
+        }
+    }
+
+    /**
+     * gets the path of a log file.
+     *
+     * @param logGeneration
+     *         the generation
+     * @return the path
+     */
+    private Path logPath(long logGeneration) {
+        return directory.resolve("wal-" + logGeneration + ".log");
+    }
+
+    /**
+     * reads a bookmark.
+     *
+     * @param in
+     *         the input
+     * @param id
+     *         the id of the bookmark
+     * @return the bookmark
+     * @throws IOException
+     *         on read errors
+     */
+    private static Bookmark readBookmark(DataInputStream in, String id) throws IOException {
+        Bookmark bookmark = aBookmark().withId(id).withUrl(readString(in)).withTitle(readString(in)).build();
+        for (int tagCount = in.readInt(); tagCount > 0; tagCount--) {
+            bookmark.addTag(readString(in));
+        }
+        return bookmark;
+    }
+
+    /**
+     * reads the valid records of a log file.
+     *
+     * @param path
+     *         the log file
+     * @param previousLength
+     *         the length of the valid records of the previous log, -1 if unknown
+     * @param consumer
+     *         consumer for the changes
+     * @return the length of the valid records, -1 if the log does not continue a previous log of the given length
+     * @throws IOException
+     *         if the file cannot be read
+     */
+    private static long readLog(Path path, long previousLength, Consumer<Change> consumer) throws IOException {
+        long fileSize = Files.size(path);
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 1 || length > fileSize - validLength - 8) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte typeOrdinal = record.readByte();
+                if (typeOrdinal == LOG_START) {
+                    if (previousLength >= 0 && record.readLong() != previousLength) {
+                        return -1;
+                    }
+                    validLength += length + 8;
+                    continue;
+                }
+                Change.Type type = Change.Type.values()[typeOrdinal];
+                String id = (type == Change.Type.PURGED) ? null : readString(record);
+                Bookmark bookmark = (type == Change.Type.CREATED || type == Change.Type.UPDATED) ?
+                        readBookmark(record, id) : null;
+                consumer.accept(new Change(0, type, id, bookmark));
+                validLength += length + 8;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * reads a snapshot file.
+     *
+     * @param path
+     *         the snapshot file
+     * @param consumer
+     *         consumer for the bookmarks as CREATED changes
+     * @return the next id stored in the snapshot, 0 if the snapshot is incomplete or damaged
+     * @throws IOException
+     *         if the file cannot be read
+     */
+    private static int readSnapshot(Path path, Consumer<Change> consumer) throws IOException {
+        try (InputStream fileIn = new BufferedInputStream(Files.newInputStream(path))) {
+            CheckedInputStream checkedIn = new CheckedInputStream(fileIn, new CRC32());
+            DataInputStream in = new DataInputStream(checkedIn);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                return 0;
+            }
+            int nextId = in.readInt();
+            List<Change> changes = new ArrayList<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                String id = readString(in);
+                changes.add(new Change(0, Change.Type.CREATED, id, readBookmark(in, id)));
+            }
+            long checksum = checkedIn.getChecksum().getValue();
+            if (new DataInputStream(fileIn).readLong() != checksum || nextId < 1) {
+                return 0;
+            }
+            changes.forEach(consumer);
+            return nextId;
+        } catch (EOFException | IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * reads a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in
+     *         the input
+     * @return the string, may be null
+     * @throws IOException
+     *         on read errors
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * builds a log record from its payload: length, checksum and payload.
+     *
+     * @param payload
+     *         the payload
+     * @return the record, ready to be written
+     */
+    private static ByteBuffer record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return record;
+    }
+
+    /**
+     * starts a new generation. The changes written afterwards go to the new log, the snapshot for the new generation
+     * must contain the bookmarks at the time of the rotation. The old log is forced to disk by the next sync, not here,
+     * so the caller may hold locks while rotating.
+     *
+     * @return the new generation
+     * @throws TabooException
+     *         if the journal has failed or the new log cannot be created
+     */
+    long rotate() {
+        checkNotFailed();
+        synchronized (appendLock) {
+            try {
+                ByteBuffer logStart = record(ByteBuffer.allocate(9).put(LOG_START).putLong(appended).array());
+                FileChannel nextChannel = FileChannel.open(logPath(generation + 1), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                try {
+                    writeFully(nextChannel, logStart, 0);
+                } catch (IOException e) {
+                    nextChannel.close();
+                    throw e;
+                }
+                retiredChannels.add(channel);
+                channel = nextChannel;
+                generation++;
+                appended = logStart.limit();
+                totalAppended += logStart.limit();
+                return generation;
+            } catch (IOException e) {
+                throw new TabooException("rotating the bookmark journal in " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * checks if the current log is large enough that a snapshot should be written.
+     *
+     * @return true if a snapshot is due
+     */
+    boolean snapshotDue() {
+        synchronized (appendLock) {
+            return appended >= snapshotThreshold;
+        }
+    }
+
+    /**
+     * gets the path of a snapshot file.
+     *
+     * @param snapshotGeneration
+     *         the generation
+     * @return the path
+     */
+    private Path snapshotPath(long snapshotGeneration) {
+        return directory.resolve("snapshot-" + snapshotGeneration + ".dat");
+    }
+
+    /**
+     * forces the logs to disk up to a position. If another thread is forcing the logs, this thread waits and then
+     * checks if its data was already included. Logs of older generations are forced before the current one and closed
+     * afterwards.
+     *
+     * @param end
+     *         the position returned from {@link #write(Change.Type, String, Bookmark)} that must be on disk
+     * @throws TabooException
+     *         if the logs cannot be forced, the journal has failed then
+     */
+    void sync(long end) {
+        if (totalSynced >= end) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (totalSynced >= end) {
+                return;
+            }
+            checkNotFailed();
+            long syncEnd;
+            List<FileChannel> syncChannels;
+            synchronized (appendLock) {
+                syncEnd = totalAppended;
+                syncChannels = new ArrayList<>(retiredChannels);
+                syncChannels.add(channel);
+            }
+            try {
+                for (FileChannel syncChannel : syncChannels) {
+                    syncChannel.force(false);
+                }
+                List<FileChannel> forcedRetiredChannels = syncChannels.subList(0, syncChannels.size() - 1);
+                synchronized (appendLock) {
+                    retiredChannels.removeAll(forcedRetiredChannels);
+                }
+                for (FileChannel retiredChannel : forcedRetiredChannels) {
+                    retiredChannel.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+                throw new TabooException("forcing the bookmark journal in " + directory + " to disk", e);
+            }
+            totalSynced = syncEnd;
+        }
+    }
+
+    /**
+     * forces everything that has been written to disk.
+     *
+     * @throws TabooException
+     *         if the logs cannot be forced, the journal has failed then
+     */
+    void syncAll() {
+        long end;
+        synchronized (appendLock) {
+            end = totalAppended;
+        }
+        sync(end);
+    }
+
+    /**
+     * writes a change to the log without forcing it to disk, that is done by {@link #sync(long)} with the returned
+     * position. When the write fails, the log is left as if the record had not been written.
+     *
+     * @param type
+     *         the kind of change
+     * @param id
+     *         the id of the bookmark, null for a purge
+     * @param bookmark
+     *         the bookmark after the change, null for deletes and purges
+     * @return the position up to which the log must be forced for this record
+     * @throws TabooException
+     *         if the journal has failed or the change cannot be written
+     */
+    long write(Change.Type type, String id, Bookmark bookmark) {
+        checkNotFailed();
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(type.ordinal());
+            if (type != Change.Type.PURGED) {
+                writeString(out, id);
+            }
+            if (null != bookmark) {
+                writeBookmark(out, bookmark);
+            }
+            out.flush();
+            ByteBuffer record = record(payload.toByteArray());
+            synchronized (appendLock) {
+                // a partially written record is overwritten by the next one, as appended is not advanced
+                writeFully(channel, record, appended);
+                appended += record.limit();
+                totalAppended += record.limit();
+                return totalAppended;
+            }
+        } catch (IOException e) {
+            throw new TabooException("writing the bookmark journal in " + directory, e);
+        }
+    }
+
+    /**
+     * writes a bookmark without its id.
+     *
+     * @param out
+     *         the output
+     * @param bookmark
+     *         the bookmark
+     * @throws IOException
+     *         on write errors
+     */
+    private static void writeBookmark(DataOutputStream out, Bookmark bookmark) throws IOException {
+        writeString(out, bookmark.getUrl());
+        writeString(out, bookmark.getTitle());
+        Collection<String> tags = bookmark.getTags();
+        out.writeInt(tags.size());
+        for (String tag : tags) {
+            writeString(out, tag);
+        }
+    }
+
+    /**
+     * writes a buffer completely to a file at a position.
+     *
+     * @param fileChannel
+     *         the file
+     * @param buffer
+     *         the buffer
+     * @param position
+     *         the position in the file
+     * @throws IOException
+     *         on write errors
+     */
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long filePosition = position;
+        while (buffer.hasRemaining()) {
+            filePosition += fileChannel.write(buffer, filePosition);
+        }
+    }
+
+    /**
+     * writes the snapshot of a generation to a temporary file which is then renamed, so that a snapshot file is either
+     * complete or missing. Afterwards the files of the older generations are deleted.
+     *
+     * @param snapshotGeneration
+     *         the generation returned from {@link #rotate()}
+     * @param nextId
+     *         the next id at the time of the rotation
+     * @param bookmarks
+     *         the bookmarks at the time of the rotation
+     * @throws TabooException
+     *         if the snapshot cannot be written
+     */
+    void writeSnapshot(long snapshotGeneration, int nextId, Collection<Bookmark> bookmarks) {
+        Path snapshot = snapshotPath(snapshotGeneration);
+        Path tempFile = directory.resolve(snapshot.getFileName() + ".tmp");
+        try {
+            try (FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                OutputStream fileOut = new BufferedOutputStream(Channels.newOutputStream(fileChannel));
+                CheckedOutputStream checkedOut = new CheckedOutputStream(fileOut, new CRC32());
+                DataOutputStream out = new DataOutputStream(checkedOut);
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(nextId);
+                out.writeInt(bookmarks.size());
+                for (Bookmark bookmark : bookmarks) {
+                    writeString(out, bookmark.getId());
+                    writeBookmark(out, bookmark);
+                }
+                out.flush();
+                new DataOutputStream(fileOut).writeLong(checkedOut.getChecksum().getValue());
+                fileOut.flush();
+                fileChannel.force(true);
+            }
+            Files.move(tempFile, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            deleteGenerationsBefore(snapshotGeneration);
+            LOG.info("wrote snapshot {} with {} bookmarks", snapshot, bookmarks.size());
+        } catch (IOException e) {
+            throw new TabooException("writing the bookmark snapshot " + snapshot, e);
+        }
+    }
+
+    /**
+     * writes a string as length and UTF-8 bytes, null is written as length -1.
+     *
+     * @param out
+     *         the output
+     * @param s
+     *         the string, may be null
+     * @throws IOException
+     *         on write errors
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (null == s) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
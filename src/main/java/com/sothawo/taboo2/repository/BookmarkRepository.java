@@ -7,9 +7,16 @@ package com.sothawo.taboo2.repository;
 
 import com.sothawo.taboo2.AlreadyExistsException;
 import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ChangesExpiredException;
+import com.sothawo.taboo2.ImportResult;
 import com.sothawo.taboo2.NotFoundException;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Implementations of this interface store and retrieve Bookmarks. Extends AutoCloseable so it might be used in contexts
@@ -50,6 +57,15 @@ public interface BookmarkRepository extends AutoCloseable {
      */
     Collection<Bookmark> dumpBookmarks();
 
+    /**
+     * passes all bookmarks without their ids to the consumer, one after the other. Implementations should not keep all
+     * bookmarks in memory, so that large repositories can be streamed.
+     *
+     * @param consumer
+     *         the consumer for the bookmarks
+     */
+    void dumpBookmarks(Consumer<Bookmark> consumer);
+
     /**
      * returns all bookmarks in the repository.
      *
@@ -76,7 +92,28 @@ public interface BookmarkRepository extends AutoCloseable {
     Bookmark getBookmarkById(String id);
 
     /**
-     * returns the bookmarks that contain the given string. The search must be case insensitive.
+     * returns a page of the bookmarks matching the optional tags and search string, ordered by id. The page starts
+     * after the bookmark encoded in the cursor, implementations must not load the full result to build a page.
+     *
+     * @param tags
+     *         the tags to be searched, may be null
+     * @param opAnd
+     *         if true, the tags are to be combined using AND, otherwise OR
+     * @param s
+     *         the string to search for, may be null
+     * @param cursor
+     *         the cursor from the previous page, null for the first page
+     * @param limit
+     *         the maximum number of bookmarks in the page, must be positive
+     * @return the page
+     * @throws IllegalArgumentException
+     *         if the cursor is invalid or the limit is not positive
+     * @see PageCursor
+     */
+    BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit);
+
+    /**
+     * returns the bookmarks whose title or url contains the given string. The search must be case insensitive.
      *
      * @param s
      *         the substring to search
@@ -108,11 +145,69 @@ public interface BookmarkRepository extends AutoCloseable {
      */
     Collection<Bookmark> getBookmarksWithTagsAndSearch(Collection<String> tags, boolean opAnd, String s);
 
+    /**
+     * returns the changes made after a version, for each created, updated or deleted bookmark and for each purge. The
+     * log may be compacted, then only the last change of a bookmark is returned and very old changes are not available.
+     *
+     * @param since
+     *         the version the client has, from {@link #getVersion()} or a previous result
+     * @return the changes and the current version
+     * @throws ChangesExpiredException
+     *         if the changes since the version are not available
+     */
+    Changes getChanges(long since);
+
+    /**
+     * counts the bookmarks of a selection for every tag. Without tags and search string all bookmarks are counted,
+     * which gives the usage count of every tag.
+     *
+     * @param tags
+     *         the tags of the selection, may be null
+     * @param opAnd
+     *         if true, the tags are to be combined using AND, otherwise OR
+     * @param s
+     *         the search string of the selection, may be null
+     * @return the tags of the selected bookmarks with the number of selected bookmarks having them, sorted by tag
+     */
+    Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s);
+
+    /**
+     * returns the version of the data in the repository. The version increases with every change of the data, so it
+     * can be used as entity tag for results. It must be read before the data it is used for, a result that already
+     * contains a later change is then sent with an older version, which only leads to an unneeded reload.
+     *
+     * @return the version
+     */
+    long getVersion();
+
+    /**
+     * creates a batch of bookmarks in the repository. Bookmarks whose url already exists - in the repository or earlier
+     * in the batch - are not imported but reported as conflicts.
+     *
+     * @param bookmarks
+     *         the new bookmarks, must not have their ids set
+     * @return the result with the number of imported bookmarks and the conflicting urls
+     * @throws IllegalArgumentException
+     *         if one of the bookmarks has an id or no url
+     */
+    ImportResult importBookmarks(Collection<Bookmark> bookmarks);
+
     /**
      * removes all bookmarks and tags from the repository.
      */
     void purge();
 
+    /**
+     * returns the tags starting with a prefix for autocompletion, the tags used by the most bookmarks first.
+     *
+     * @param prefix
+     *         the lowercase prefix, the empty string matches all tags
+     * @param limit
+     *         the maximum number of tags, must be positive
+     * @return the tags, may be empty, not null
+     */
+    List<String> suggestTags(String prefix, int limit);
+
     /**
      * updates a bookmark.
      *
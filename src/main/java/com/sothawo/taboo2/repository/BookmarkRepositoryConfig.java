@@ -15,6 +15,7 @@
 */
 package com.sothawo.taboo2.repository;
 
+import com.google.common.io.BaseEncoding;
 import com.sothawo.taboo2.repository.jpa.DBManager;
 import com.sothawo.taboo2.repository.jpa.H2Repository;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +23,14 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.env.Environment;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 /**
  * configuration for BookmarkRepositories. The class must produce a BookmarkRepository implementation for each of the
@@ -31,6 +40,33 @@ import org.springframework.core.env.Environment;
  */
 @Configuration
 public class BookmarkRepositoryConfig {
+    /** property with the number of changes after which the change log is compacted. */
+    private static final String PROPERTY_CHANGE_LOG_SIZE = "taboo2.repository.changelog.size";
+
+    /** property with the journal directory of the in-memory repository, if not set the data is not persisted. */
+    private static final String PROPERTY_INMEMORY_DIRECTORY = "taboo2.repository.inmemory.directory";
+
+    /** property with the data file of the memory-mapped repository. */
+    private static final String PROPERTY_MAPPED_FILE = "taboo2.repository.mapped.file";
+
+    /** property with the maximum number of cached query results, 0 disables the cache. */
+    private static final String PROPERTY_CACHE_SIZE = "taboo2.repository.cache.size";
+
+    /** property that enables a partition of the bookmarks per user. */
+    private static final String PROPERTY_PARTITIONED = "taboo2.repository.partitioned";
+
+    /** property with the user whose calls go to the default partition, which has the data from before partitioning. */
+    private static final String PROPERTY_PARTITIONED_DEFAULT_USER = "taboo2.repository.partitioned.default.user";
+
+    /** prefix of the properties with the storage locations of single partitions. */
+    private static final String PROPERTY_PARTITION_PREFIX = "taboo2.repository.partition.";
+
+    /** suffix of the properties with the storage locations of single partitions. */
+    private static final String PROPERTY_PARTITION_LOCATION_SUFFIX = ".location";
+
+    /** partition keys that can be used in file names without encoding. */
+    private static final Pattern PLAIN_PARTITION_KEY = Pattern.compile("[A-Za-z0-9_-]+");
+
     /** the application's environment. */
     @Autowired
     private Environment env;
@@ -38,14 +74,50 @@ public class BookmarkRepositoryConfig {
 // -------------------------- OTHER METHODS --------------------------
 
     /**
-     * in-memory implementation, used when repo-inmemory profile is active.
+     * configures a repository from the properties. Sets the change log size if it is configured, wraps the
+     * repository in an InstrumentedBookmarkRepository and that in a CachingBookmarkRepository if the cache size
+     * property is set to a positive value. The metrics so only show the calls that are not answered from the cache.
+     *
+     * @param repository
+     *         the repository
+     * @return the instrumented repository or the caching repository
+     */
+    private BookmarkRepository configured(AbstractBookmarkRepository repository) {
+        Integer changeLogSize = env.getProperty(PROPERTY_CHANGE_LOG_SIZE, Integer.class);
+        if (null != changeLogSize) {
+            repository.setChangeLogSize(changeLogSize);
+        }
+        BookmarkRepository instrumented = new InstrumentedBookmarkRepository(repository);
+        int cacheSize = env.getProperty(PROPERTY_CACHE_SIZE, Integer.class, 0);
+        return (cacheSize > 0) ? new CachingBookmarkRepository(instrumented, cacheSize) : instrumented;
+    }
+
+    /**
+     * returns the name of the current user.
+     *
+     * @return the name of the authenticated user, null if the call is not authenticated
+     */
+    private static String currentUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (null == authentication || !authentication.isAuthenticated() ||
+                authentication instanceof AnonymousAuthenticationToken) {
+            return null;
+        }
+        return authentication.getName();
+    }
+
+    /**
+     * in-memory implementation, used when repo-inmemory profile is active. Is durable when the journal directory
+     * property is set.
      *
      * @return BookmarkRepository in-memory implementation.
      */
     @Bean(name = "defaultBookmarkRepository")
     @Profile("repo-inmemory")
     public BookmarkRepository defaultBookmarkRepository() {
-        return new InMemoryRepository();
+        return partitioned(env.getProperty(PROPERTY_INMEMORY_DIRECTORY), directory ->
+                configured((null == directory) ? new InMemoryRepository() :
+                        new InMemoryRepository(Paths.get(directory))));
     }
 
     /**
@@ -57,9 +129,22 @@ public class BookmarkRepositoryConfig {
     @Bean(name = "h2BookmarkRepository")
     @Profile("repo-h2")
     public BookmarkRepository h2BookmarkRepository() {
-        String jdbcUrl = env.getProperty("h2.jdbcUrl", "undefined property h2.jdbcurl");
-        DBManager.updateDB(jdbcUrl, "db/db-changelog.xml");
-        return new H2Repository(jdbcUrl);
+        return partitioned(env.getProperty("h2.jdbcUrl", "undefined property h2.jdbcurl"), jdbcUrl -> {
+            DBManager.updateDB(jdbcUrl, "db/db-changelog.xml");
+            return configured(new H2Repository(jdbcUrl));
+        });
+    }
+
+    /**
+     * memory-mapped implementation, used when repo-mapped profile is active.
+     *
+     * @return BookmarkRepository memory-mapped implementation.
+     */
+    @Bean(name = "mappedBookmarkRepository")
+    @Profile("repo-mapped")
+    public BookmarkRepository mappedBookmarkRepository() {
+        return partitioned(env.getProperty(PROPERTY_MAPPED_FILE, "bookmarks.dat"),
+                file -> configured(new MappedRepository(Paths.get(file))));
     }
 
     /**
@@ -74,4 +159,71 @@ public class BookmarkRepositoryConfig {
     public BookmarkRepository nullBookmarkRepository() {
         return null;
     }
+
+    /**
+     * creates the repository for a storage location. If partitioning is enabled, a PartitionedBookmarkRepository is
+     * returned that creates a repository per user. The default partition uses the configured location, the location
+     * of a user's partition is taken from the property taboo2.repository.partition.&lt;user&gt;.location or derived
+     * from the configured location by appending the user name to the file name. The calls of the user configured with
+     * taboo2.repository.partitioned.default.user go to the default partition, so the bookmarks stored before
+     * partitioning was enabled are kept as that user's bookmarks.
+     *
+     * @param location
+     *         the configured location, may be null
+     * @param factory
+     *         creates the repository for a location
+     * @return the repository
+     */
+    private BookmarkRepository partitioned(String location, Function<String, BookmarkRepository> factory) {
+        if (!env.getProperty(PROPERTY_PARTITIONED, Boolean.class, false)) {
+            return factory.apply(location);
+        }
+        String defaultUser = env.getProperty(PROPERTY_PARTITIONED_DEFAULT_USER);
+        return new PartitionedBookmarkRepository(partition -> factory.apply(
+                PartitionedBookmarkRepository.DEFAULT_PARTITION.equals(partition) ? location :
+                        env.getProperty(PROPERTY_PARTITION_PREFIX + partition + PROPERTY_PARTITION_LOCATION_SUFFIX,
+                                partitionLocation(location, partition))),
+                () -> partitionKey(currentUser(), defaultUser));
+    }
+
+    /**
+     * returns the partition key for a user.
+     *
+     * @param user
+     *         the name of the current user, may be null
+     * @param defaultUser
+     *         the user whose calls go to the default partition, may be null
+     * @return the user name, null for the default partition
+     */
+    static String partitionKey(String user, String defaultUser) {
+        return (null != user && user.equals(defaultUser)) ? null : user;
+    }
+
+    /**
+     * derives the location of a partition from the configured location by appending the partition key to the file
+     * name, before the extension and before the options of a jdbc url: bookmarks.dat becomes bookmarks-user.dat.
+     * Keys with other characters than letters, digits, '_' and '-' are hex encoded.
+     *
+     * @param location
+     *         the configured location, may be null
+     * @param partition
+     *         the partition key
+     * @return the location of the partition, null if location is null
+     */
+    static String partitionLocation(String location, String partition) {
+        if (null == location) {
+            return null;
+        }
+        String suffix = '-' + (PLAIN_PARTITION_KEY.matcher(partition).matches() ? partition :
+                BaseEncoding.base16().lowerCase().encode(partition.getBytes(StandardCharsets.UTF_8)));
+        int end = location.indexOf(';');
+        if (end < 0) {
+            end = location.length();
+        }
+        int extension = location.lastIndexOf('.', end - 1);
+        if (extension > Math.max(location.lastIndexOf('/', end - 1), location.lastIndexOf('\\', end - 1)) + 1) {
+            end = extension;
+        }
+        return location.substring(0, end) + suffix + location.substring(end);
+    }
 }
@@ -0,0 +1,400 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Striped;
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ImportResult;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * BookmarkRepository decorator that caches the results of the tag and search queries and the list of all tags. The
+ * query results are kept in a size bounded cache which evicts the least recently used entries, the keys are the
+ * normalized queries (distinct sorted tags, lowercase search string).
+ * <p>
+ * Creates and updates invalidate only the entries whose result may contain the changed bookmark, before or after the
+ * change. For searches this is the matching rule of the repositories: the search string is contained in the title or
+ * the url. Updates of the same bookmark are serialized, so the bookmark before the change is the one that is replaced.
+ * Deletes, imports and purges clear the cache, a delete does not load the bookmark before it is deleted.
+ * <p>
+ * A query that runs while a change is made does not store its result, so no outdated result can be cached. The cached
+ * collections are unmodifiable, the contained Bookmark objects must not be modified by the caller.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@ManagedResource(objectName = "com.sothawo.taboo2:type=CachingBookmarkRepository",
+        description = "query result cache of the bookmark repository")
+public class CachingBookmarkRepository implements BookmarkRepository {
+// ------------------------------ FIELDS ------------------------------
+
+    /** default maximum number of cached query results. */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    /** number of lock stripes for the id locks. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** the repository doing the work. */
+    private final BookmarkRepository delegate;
+
+    /** the cached query results. */
+    private final Cache<Query, Collection<Bookmark>> queries;
+
+    /** the cached list of all tags, null if not cached. */
+    private volatile Collection<String> allTags;
+
+    /** locks for updating, striped by bookmark id. */
+    private final Striped<Lock> idLocks = Striped.lock(LOCK_STRIPES);
+
+    /** counts the changes, a query only stores its result if no change was made while it was running. */
+    private final AtomicLong changes = new AtomicLong();
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a CachingBookmarkRepository.
+     *
+     * @param delegate
+     *         the repository doing the work
+     * @param maximumSize
+     *         the maximum number of cached query results
+     */
+    public CachingBookmarkRepository(BookmarkRepository delegate, int maximumSize) {
+        this.delegate = Objects.requireNonNull(delegate);
+        queries = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    @ManagedAttribute(description = "number of query results evicted from the cache")
+    public long getEvictionCount() {
+        return queries.stats().evictionCount();
+    }
+
+    @ManagedAttribute(description = "number of query results found in the cache")
+    public long getHitCount() {
+        return queries.stats().hitCount();
+    }
+
+    @ManagedAttribute(description = "number of query results not found in the cache")
+    public long getMissCount() {
+        return queries.stats().missCount();
+    }
+
+    @ManagedAttribute(description = "number of cached query results")
+    public long getSize() {
+        return queries.size();
+    }
+
+    /**
+     * gets the statistics of the query result cache.
+     *
+     * @return the statistics
+     */
+    public CacheStats getStats() {
+        return queries.stats();
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() throws Exception {
+        invalidateAll();
+        delegate.close();
+    }
+
+// --------------------- Interface BookmarkRepository ---------------------
+
+    @Override
+    public Bookmark createBookmark(Bookmark bookmark) {
+        Bookmark createdBookmark = delegate.createBookmark(bookmark);
+        invalidate(null, createdBookmark);
+        return createdBookmark;
+    }
+
+    @Override
+    public void deleteBookmark(String id) {
+        try {
+            delegate.deleteBookmark(id);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public Collection<Bookmark> dumpBookmarks() {
+        return delegate.dumpBookmarks();
+    }
+
+    @Override
+    public void dumpBookmarks(Consumer<Bookmark> consumer) {
+        delegate.dumpBookmarks(consumer);
+    }
+
+    @Override
+    public Collection<Bookmark> getAllBookmarks() {
+        return delegate.getAllBookmarks();
+    }
+
+    @Override
+    public Collection<String> getAllTags() {
+        Collection<String> tags = allTags;
+        if (null == tags) {
+            long changesBefore = changes.get();
+            tags = Collections.unmodifiableCollection(delegate.getAllTags());
+            synchronized (this) {
+                if (changes.get() == changesBefore) {
+                    allTags = tags;
+                }
+            }
+        }
+        return tags;
+    }
+
+    @Override
+    public Bookmark getBookmarkById(String id) {
+        return delegate.getBookmarkById(id);
+    }
+
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        return delegate.getBookmarksPage(tags, opAnd, s, cursor, limit);
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithSearch(String s) {
+        return cachedQuery(new Query(null, false, s), () -> delegate.getBookmarksWithSearch(s));
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTags(Collection<String> tags, boolean opAnd) {
+        return cachedQuery(new Query(tags, opAnd, null), () -> delegate.getBookmarksWithTags(tags, opAnd));
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTagsAndSearch(Collection<String> tags, boolean opAnd, String s) {
+        return cachedQuery(new Query(tags, opAnd, s), () -> delegate.getBookmarksWithTagsAndSearch(tags, opAnd, s));
+    }
+
+    @Override
+    public Changes getChanges(long since) {
+        return delegate.getChanges(since);
+    }
+
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        return delegate.getTagCounts(tags, opAnd, s);
+    }
+
+    @Override
+    public long getVersion() {
+        return delegate.getVersion();
+    }
+
+    @Override
+    public ImportResult importBookmarks(Collection<Bookmark> bookmarks) {
+        try {
+            return delegate.importBookmarks(bookmarks);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void purge() {
+        try {
+            delegate.purge();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        return delegate.suggestTags(prefix, limit);
+    }
+
+    @Override
+    public void updateBookmark(Bookmark bookmark) {
+        if (null == Objects.requireNonNull(bookmark).getId()) {
+            // let the delegate report the error
+            delegate.updateBookmark(bookmark);
+            return;
+        }
+        Lock idLock = idLocks.get(bookmark.getId());
+        idLock.lock();
+        try {
+            Bookmark previousBookmark = delegate.getBookmarkById(bookmark.getId());
+            try {
+                delegate.updateBookmark(bookmark);
+            } finally {
+                invalidate(previousBookmark, bookmark);
+            }
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * returns the cached result of a query or runs the query and caches the result.
+     *
+     * @param query
+     *         the normalized query
+     * @param loader
+     *         runs the query on the delegate
+     * @return the result
+     */
+    private Collection<Bookmark> cachedQuery(Query query, Supplier<Collection<Bookmark>> loader) {
+        Collection<Bookmark> result = queries.getIfPresent(query);
+        if (null == result) {
+            long changesBefore = changes.get();
+            result = Collections.unmodifiableCollection(loader.get());
+            synchronized (this) {
+                if (changes.get() == changesBefore) {
+                    queries.put(query, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * invalidates the cached results that may be affected by a change of a bookmark. The list of all tags is kept when
+     * a bookmark was created and all its tags are already known.
+     *
+     * @param bookmark
+     *         the bookmark before the change, null if it was created
+     * @param changedBookmark
+     *         the bookmark after the change
+     */
+    private synchronized void invalidate(Bookmark bookmark, Bookmark changedBookmark) {
+        changes.incrementAndGet();
+        Collection<String> tags = allTags;
+        if (null != bookmark || null == tags || !tags.containsAll(changedBookmark.getTags())) {
+            allTags = null;
+        }
+        queries.asMap().keySet().removeIf(query -> query.mayContain(bookmark) || query.mayContain(changedBookmark));
+    }
+
+    /**
+     * clears the cache.
+     */
+    @ManagedOperation(description = "clears the cache")
+    public synchronized void invalidateAll() {
+        changes.incrementAndGet();
+        allTags = null;
+        queries.invalidateAll();
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Factory implementation, the created repository caches an InMemoryRepository. The optional first argument is the
+     * maximum cache size.
+     */
+    public static class Factory implements BookmarkRepositoryFactory {
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface BookmarkRepositoryFactory ---------------------
+
+        @Override
+        public BookmarkRepository create(String[] args) {
+            int maximumSize = (null != args && args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MAXIMUM_SIZE;
+            return new CachingBookmarkRepository(new InMemoryRepository(), maximumSize);
+        }
+    }
+
+    /**
+     * normalized query, used as cache key.
+     */
+    private static final class Query {
+        /** the distinct sorted tags, null if the query has no tags. */
+        private final Set<String> tags;
+
+        /** the tag combination, false if the query has no tags. */
+        private final boolean opAnd;
+
+        /** the lowercase search string, null if the query has no search. */
+        private final String search;
+
+        Query(Collection<String> tags, boolean opAnd, String search) {
+            this.tags = (null == tags) ? null : Collections.unmodifiableSet(new TreeSet<>(tags));
+            this.opAnd = (null != tags) && opAnd;
+            this.search = (null == search) ? null : search.toLowerCase();
+        }
+
+        /**
+         * checks if the result of this query may contain a bookmark.
+         *
+         * @param bookmark
+         *         the bookmark, may be null
+         * @return false if the bookmark cannot be in the result
+         */
+        boolean mayContain(Bookmark bookmark) {
+            return null != bookmark && tagsMayMatch(bookmark) && searchMayMatch(bookmark);
+        }
+
+        private boolean searchMayMatch(Bookmark bookmark) {
+            if (null == search) {
+                return true;
+            }
+            return (null != bookmark.getTitle() && bookmark.getTitle().toLowerCase().contains(search)) ||
+                    (null != bookmark.getUrl() && bookmark.getUrl().toLowerCase().contains(search));
+        }
+
+        private boolean tagsMayMatch(Bookmark bookmark) {
+            if (null == tags) {
+                return true;
+            }
+            Collection<String> bookmarkTags = bookmark.getTags();
+            return opAnd ? bookmarkTags.containsAll(tags) : !Collections.disjoint(tags, bookmarkTags);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Query query = (Query) o;
+            return opAnd == query.opAnd && Objects.equals(tags, query.tags) && Objects.equals(search, query.search);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tags, opAnd, search);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ChangesExpiredException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only log of the changes of a repository. Every change gets the next sequence number which is the version of
+ * the repository after the change.
+ * <p>
+ * When the log grows beyond its maximum size, it is compacted: for every bookmark only the last change is kept, which
+ * still brings every client to the current state. If that is not enough, the oldest changes are dropped; clients that
+ * have not seen them get a {@link ChangesExpiredException} and must load all data again. A purge clears the log, as
+ * the purge entry replaces all previous changes.
+ * <p>
+ * The class is thread safe.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+final class ChangeLog {
+// ------------------------------ FIELDS ------------------------------
+
+    /** default maximum number of entries. */
+    static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+    /** the changes ordered by sequence number. */
+    private final List<Change> changes = new ArrayList<>();
+
+    /** the maximum number of entries before compacting. */
+    private int maximumSize;
+
+    /** the version of the last change. */
+    private long version;
+
+    /** the oldest version for which the log has all later changes. */
+    private long oldestVersion;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a ChangeLog.
+     *
+     * @param version
+     *         the initial version
+     * @param maximumSize
+     *         the maximum number of entries
+     */
+    ChangeLog(long version, int maximumSize) {
+        this.version = version;
+        this.oldestVersion = version;
+        setMaximumSize(maximumSize);
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * sets the maximum number of entries.
+     *
+     * @param maximumSize
+     *         the maximum number of entries, must be positive
+     */
+    synchronized void setMaximumSize(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximum size must be positive");
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * gets the version of the last change.
+     *
+     * @return the version
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * adds a change.
+     *
+     * @param type
+     *         the kind of change
+     * @param id
+     *         the id of the bookmark, null for a purge
+     * @param bookmark
+     *         the bookmark after the change, null for deletes and purges. The log keeps a copy.
+     */
+    synchronized void add(Change.Type type, String id, Bookmark bookmark) {
+        if (type == Change.Type.PURGED) {
+            changes.clear();
+        }
+        changes.add(new Change(++version, type, id, (null == bookmark) ? null : bookmark.clone()));
+        if (changes.size() > maximumSize) {
+            compact();
+        }
+    }
+
+    /**
+     * compacts the log to at most half of the maximum size, so that the next compaction is not needed immediately.
+     */
+    private void compact() {
+        Set<String> seenIds = new HashSet<>();
+        List<Change> compacted = new ArrayList<>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Change change = changes.get(i);
+            if (null == change.getId() || seenIds.add(change.getId())) {
+                compacted.add(change);
+            }
+        }
+        changes.clear();
+        for (int i = compacted.size() - 1; i >= 0; i--) {
+            changes.add(compacted.get(i));
+        }
+
+        int drop = changes.size() - maximumSize / 2;
+        if (drop > 0) {
+            oldestVersion = changes.get(drop - 1).getSequence();
+            changes.subList(0, drop).clear();
+        }
+    }
+
+    /**
+     * returns the changes after a version.
+     *
+     * @param since
+     *         the version the client has
+     * @return the changes
+     * @throws ChangesExpiredException
+     *         if the changes since the version are not in the log anymore or the version is unknown
+     */
+    synchronized Changes since(long since) {
+        if (since < oldestVersion || since > version) {
+            throw new ChangesExpiredException("no changes available since version " + since);
+        }
+        int low = 0;
+        int high = changes.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (changes.get(middle).getSequence() <= since) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return new Changes(new ArrayList<>(changes.subList(low, changes.size())), version);
+    }
+}
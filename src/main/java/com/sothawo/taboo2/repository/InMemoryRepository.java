@@ -5,33 +5,144 @@
  */
 package com.sothawo.taboo2.repository;
 
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sothawo.taboo2.AlreadyExistsException;
 import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Change;
 import com.sothawo.taboo2.NotFoundException;
+import com.sothawo.taboo2.TabooException;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 /**
- * InMemory BookmarkRepository implementation. Just offers functionality, no performance.
+ * InMemory BookmarkRepository implementation. Keeps a bitmap tag index, so that tag queries do not need to scan all
+ * bookmarks. The numeric bookmark ids are used as document ids in the index.
+ * <p>
+ * The implementation is thread safe. The maps are concurrent maps, the uniqueness of the url is guaranteed by
+ * atomically claiming the url in the url map. Updates and deletes of the same bookmark are serialized by a lock striped
+ * by the bookmark id, so different bookmarks can be changed in parallel. Readers don't lock at all and get copies of the
+ * internal collections; the stored Bookmark objects must not be modified by the caller.
+ * <p>
+ * When created with a directory, the repository is durable: every change is written to a {@link BookmarkJournal}
+ * before it is applied, so a change that cannot be written is not made. The call returns after the journal is forced
+ * to disk; the force is awaited after the locks are released, so that concurrent writers share it. When the force
+ * fails, the change stays applied in memory, but the call fails and the journal accepts no further changes. When the
+ * log has grown large enough a snapshot is written in the background. On creation the data is restored from the
+ * journal.
  *
  * @author P.J. Meisch (pj.meisch@sothawo.com).
  */
 public class InMemoryRepository extends AbstractBookmarkRepository {
 // ------------------------------ FIELDS ------------------------------
 
-    /** id generator */
-    private static final AtomicInteger nextId = new AtomicInteger(1);
+    /** Logger for the class. */
+    private final static Logger LOG = LoggerFactory.getLogger(InMemoryRepository.class);
+
+    /** number of lock stripes for the id locks. */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * id generator, per instance so that the ids used as document ids in the tag index are dense. An id is only
+     * allocated after the url of the new bookmark has been claimed, so rejected duplicates do not leave gaps.
+     */
+    private final AtomicInteger nextId = new AtomicInteger(1);
 
     /** map for storing the url -> bookmarks */
-    private final Map<String, Bookmark> bookmarks = new HashMap<>();
+    private final ConcurrentMap<String, Bookmark> bookmarks = new ConcurrentHashMap<>();
+
+    /** secondary index id -> bookmark, contains the same objects as the url map. */
+    private final ConcurrentMap<Integer, Bookmark> bookmarksById = new ConcurrentHashMap<>();
+
+    /** tag index with the bookmark ids as documents. */
+    private final BitmapTagIndex tagIndex = new BitmapTagIndex();
+
+    /** locks for updating and deleting, striped by bookmark id. */
+    private final Striped<Lock> idLocks = Striped.lock(LOCK_STRIPES);
+
+    /**
+     * write operations share the read lock, purge needs the write lock, so that no write operation can leave
+     * partial data after a purge.
+     */
+    private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
+
+    /** the journal of the durable mode, null if the repository is not durable. */
+    private final BookmarkJournal journal;
+
+    /** writes the snapshots of the durable mode. */
+    private final ExecutorService snapshotExecutor;
+
+    /** true while a snapshot is written. */
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a repository that keeps the data only in memory.
+     */
+    public InMemoryRepository() {
+        journal = null;
+        snapshotExecutor = null;
+    }
+
+    /**
+     * creates a durable repository that persists its changes in a directory and restores the data from it.
+     *
+     * @param directory
+     *         the directory for the journal, created if needed
+     */
+    public InMemoryRepository(Path directory) {
+        this(directory, BookmarkJournal.DEFAULT_SNAPSHOT_THRESHOLD);
+    }
+
+    /**
+     * creates a durable repository.
+     *
+     * @param directory
+     *         the directory for the journal, created if needed
+     * @param snapshotThreshold
+     *         size of the log in bytes after which a snapshot is written
+     */
+    InMemoryRepository(Path directory, long snapshotThreshold) {
+        this(new BookmarkJournal(directory, snapshotThreshold));
+    }
+
+    /**
+     * creates a durable repository with a journal that is not yet loaded.
+     *
+     * @param journal
+     *         the journal
+     */
+    InMemoryRepository(BookmarkJournal journal) {
+        this.journal = journal;
+        int restoredNextId = journal.load(this::restore);
+        nextId.accumulateAndGet(restoredNextId, Math::max);
+        snapshotExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("bookmark-snapshot-%d").setDaemon(true).build());
+    }
 
 // ------------------------ INTERFACE METHODS ------------------------
 
@@ -40,6 +151,11 @@ public class InMemoryRepository extends AbstractBookmarkRepository {
 
     @Override
     public void close() throws Exception {
+        if (null != journal) {
+            snapshotExecutor.shutdown();
+            snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            journal.close();
+        }
     }
 
 // --------------------- Interface BookmarkRepository ---------------------
@@ -55,12 +171,36 @@ public class InMemoryRepository extends AbstractBookmarkRepository {
         if (null == bookmark.getUrl() || bookmark.getUrl().isEmpty()) {
             throw new IllegalArgumentException("bookmark url is not set");
         }
-        if (bookmarks.containsKey(bookmark.getUrl())) {
-            throw new AlreadyExistsException("bookmark with url: " + bookmark.getUrl());
+
+        // the clone without id holds the url until the bookmark with its id replaces it
+        Bookmark claim = bookmark.clone();
+        Bookmark storedBookmark = bookmark.clone();
+
+        long journalPosition;
+        purgeLock.readLock().lock();
+        try {
+            // claiming the url is the atomic check for uniqueness, the id is only allocated when the claim succeeds
+            if (null != bookmarks.putIfAbsent(claim.getUrl(), claim)) {
+                throw new AlreadyExistsException("bookmark with url: " + bookmark.getUrl());
+            }
+            int id = nextId.getAndIncrement();
+            storedBookmark.setId(String.valueOf(id));
+            try {
+                journalPosition = writeAhead(Change.Type.CREATED, storedBookmark.getId(), storedBookmark);
+            } catch (RuntimeException e) {
+                bookmarks.remove(claim.getUrl(), claim);
+                throw e;
+            }
+            bookmarks.put(storedBookmark.getUrl(), storedBookmark);
+            bookmarksById.put(id, storedBookmark);
+            tagIndex.add(id, storedBookmark.getTags());
+            recordChange(Change.Type.CREATED, storedBookmark.getId(), storedBookmark);
+        } finally {
+            purgeLock.readLock().unlock();
         }
+        awaitJournal(journalPosition);
 
-        bookmark.setId(String.valueOf(nextId.getAndIncrement()));
-        bookmarks.put(bookmark.getUrl(), bookmark.clone());
+        bookmark.setId(storedBookmark.getId());
         return bookmark;
     }
 
@@ -74,33 +214,87 @@ public class InMemoryRepository extends AbstractBookmarkRepository {
      */
     @Override
     public void deleteBookmark(String id) {
-        Bookmark bookmark = getBookmarkById(id);
-        String url = bookmark.getUrl();
-        bookmarks.remove(url);
+        Integer bookmarkId = parseId(Objects.requireNonNull(id));
+        if (null == bookmarkId) {
+            throw new NotFoundException("no bookmark with id " + id);
+        }
+        Lock idLock = idLocks.get(bookmarkId);
+        long journalPosition;
+        purgeLock.readLock().lock();
+        idLock.lock();
+        try {
+            Bookmark bookmark = bookmarksById.get(bookmarkId);
+            if (null == bookmark) {
+                throw new NotFoundException("no bookmark with id " + id);
+            }
+            journalPosition = writeAhead(Change.Type.DELETED, bookmark.getId(), null);
+            bookmarksById.remove(bookmarkId);
+            bookmarks.remove(bookmark.getUrl(), bookmark);
+            tagIndex.remove(bookmarkId, bookmark.getTags());
+            recordChange(Change.Type.DELETED, bookmark.getId(), null);
+        } finally {
+            idLock.unlock();
+            purgeLock.readLock().unlock();
+        }
+        awaitJournal(journalPosition);
     }
 
+    /**
+     * returns a snapshot of all bookmarks.
+     *
+     * @return the bookmarks
+     */
     @Override
     public Collection<Bookmark> getAllBookmarks() {
-        return bookmarks.values();
+        return new ArrayList<>(bookmarksById.values());
     }
 
     @Override
     public Collection<String> getAllTags() {
-        return bookmarks.values().stream().flatMap(bookmark -> bookmark.getTags().stream())
-                .collect(Collectors.toSet());
+        return tagIndex.tags();
     }
 
     @Override
     public Bookmark getBookmarkById(String id) {
-        String idToSearch = Objects.requireNonNull(id);
-        return bookmarks.values().stream()
-                .filter(b -> b.getId().equals(idToSearch))
-                .findFirst()
-                .orElseThrow(() -> new NotFoundException("no bookmark with id " + id));
+        Integer bookmarkId = parseId(Objects.requireNonNull(id));
+        Bookmark bookmark = (null == bookmarkId) ? null : bookmarksById.get(bookmarkId);
+        if (null == bookmark) {
+            throw new NotFoundException("no bookmark with id " + id);
+        }
+        return bookmark.clone();
     }
 
     /**
-     * returns the bookmarks where the title contains the given string. The search must be case insensitive.
+     * returns a page of bookmarks. The candidates are iterated in id order starting after the cursor, either from the
+     * tag index or - as the ids are dense - from the id range, until the page is full.
+     *
+     * @see BookmarkRepository#getBookmarksPage(Collection, boolean, String, String, int)
+     */
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        checkPageLimit(limit);
+        final long after = PageCursor.decode(cursor);
+        final String textToSearch = (null == s) ? null : s.toLowerCase();
+
+        List<Bookmark> page = new ArrayList<>();
+        long first = Math.max(after + 1, 1);
+        if (first < Integer.MAX_VALUE) {
+            RoaringBitmap candidates = (null == tags) ? RoaringBitmap.bitmapOfRange(first, nextId.get()) :
+                    tagIndex.find(tags, opAnd);
+            PeekableIntIterator iterator = candidates.getIntIterator();
+            iterator.advanceIfNeeded((int) first);
+            while (iterator.hasNext() && page.size() < limit) {
+                Bookmark bookmark = bookmarksById.get(iterator.next());
+                if (null != bookmark && (null == textToSearch || containsSearch(bookmark, textToSearch))) {
+                    page.add(bookmark);
+                }
+            }
+        }
+        return pageOf(page, limit);
+    }
+
+    /**
+     * returns the bookmarks where the title or the url contains the given string. The search must be case insensitive.
      *
      * @param s
      *         the substring to search
@@ -108,19 +302,96 @@ public class InMemoryRepository extends AbstractBookmarkRepository {
      */
     @Override
     public Collection<Bookmark> getBookmarksWithSearch(String s) {
-        final String titleToSearch = Objects.requireNonNull(s).toLowerCase();
-        return bookmarks.values().stream()
-                .filter(bookmark -> Objects.nonNull(bookmark.getTitle()))
-                .filter(bookmark -> bookmark.getTitle().toLowerCase().contains(titleToSearch))
+        final String textToSearch = Objects.requireNonNull(s).toLowerCase();
+        return bookmarksById.values().stream()
+                .filter(bookmark -> containsSearch(bookmark, textToSearch))
                 .collect(Collectors.toList());
     }
 
+    /**
+     * returns the bookmarks for a tag combination, evaluated on the bitmap tag index.
+     *
+     * @param tags
+     *         the tags to be searched
+     * @param opAnd
+     *         if true, the tags are to be combined using AND, otherwise OR
+     * @return the found bookmarks
+     */
+    @Override
+    public Collection<Bookmark> getBookmarksWithTags(Collection<String> tags, boolean opAnd) {
+        RoaringBitmap docs = tagIndex.find(tags, opAnd);
+        List<Bookmark> foundBookmarks = new ArrayList<>(docs.getCardinality());
+        IntIterator iterator = docs.getIntIterator();
+        while (iterator.hasNext()) {
+            // a bookmark might have been deleted since the index was queried
+            Bookmark bookmark = bookmarksById.get(iterator.next());
+            if (null != bookmark) {
+                foundBookmarks.add(bookmark);
+            }
+        }
+        return foundBookmarks;
+    }
+
+    /**
+     * counts on the tag index. The selection is a bitmap from the tag index, restricted to the bookmarks whose title or
+     * url contains the search string.
+     *
+     * @see BookmarkRepository#getTagCounts(Collection, boolean, String)
+     */
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        RoaringBitmap docs = (null == tags) ? null : tagIndex.find(tags, opAnd);
+        if (null != s) {
+            final String textToSearch = s.toLowerCase();
+            RoaringBitmap found = new RoaringBitmap();
+            if (null == docs) {
+                bookmarksById.forEach((id, bookmark) -> {
+                    if (containsSearch(bookmark, textToSearch)) {
+                        found.add(id);
+                    }
+                });
+            } else {
+                IntIterator iterator = docs.getIntIterator();
+                while (iterator.hasNext()) {
+                    int id = iterator.next();
+                    Bookmark bookmark = bookmarksById.get(id);
+                    if (null != bookmark && containsSearch(bookmark, textToSearch)) {
+                        found.add(id);
+                    }
+                }
+            }
+            docs = found;
+        }
+        return tagIndex.counts(docs);
+    }
+
     /**
      * removes all bookmarks from the reository.
      */
     @Override
     public void purge() {
-        bookmarks.clear();
+        long journalPosition;
+        purgeLock.writeLock().lock();
+        try {
+            journalPosition = writeAhead(Change.Type.PURGED, null, null);
+            bookmarks.clear();
+            bookmarksById.clear();
+            tagIndex.clear();
+            recordChange(Change.Type.PURGED, null, null);
+        } finally {
+            purgeLock.writeLock().unlock();
+        }
+        awaitJournal(journalPosition);
+    }
+
+    /**
+     * returns the tags for a prefix from the tag index, ranked by the cardinality of their postings.
+     *
+     * @see BookmarkRepository#suggestTags(String, int)
+     */
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        return tagIndex.suggest(prefix, limit);
     }
 
     @Override
@@ -129,31 +400,180 @@ public class InMemoryRepository extends AbstractBookmarkRepository {
         if (null == id || id.isEmpty()) {
             throw new IllegalArgumentException();
         }
-        // check if there is no different bookmark with this url
-        Bookmark found = bookmarks.get(bookmark.getUrl());
-        if (null != found && !id.equals(found.getId())) {
-            throw new AlreadyExistsException("bookmark with url " + bookmark.getUrl());
+        Integer bookmarkId = parseId(id);
+        Lock idLock = idLocks.get(null == bookmarkId ? id : bookmarkId);
+        long journalPosition;
+        purgeLock.readLock().lock();
+        idLock.lock();
+        try {
+            // check if there is no different bookmark with this url, a claim of a bookmark being created has no id
+            Bookmark found = bookmarks.get(bookmark.getUrl());
+            if (null != found && !id.equals(found.getId())) {
+                throw new AlreadyExistsException("bookmark with url " + bookmark.getUrl());
+            }
+            Bookmark previousBookmark = (null == bookmarkId) ? null : bookmarksById.get(bookmarkId);
+            if (null == previousBookmark) {
+                throw new NotFoundException("no bookmark with id " + id);
+            }
+
+            Bookmark storedBookmark = bookmark.clone();
+            boolean urlChanged = !previousBookmark.getUrl().equals(storedBookmark.getUrl());
+            // the new url might have been claimed concurrently since the check above
+            if (urlChanged && null != bookmarks.putIfAbsent(storedBookmark.getUrl(), storedBookmark)) {
+                throw new AlreadyExistsException("bookmark with url " + bookmark.getUrl());
+            }
+            try {
+                journalPosition = writeAhead(Change.Type.UPDATED, storedBookmark.getId(), storedBookmark);
+            } catch (RuntimeException e) {
+                if (urlChanged) {
+                    bookmarks.remove(storedBookmark.getUrl(), storedBookmark);
+                }
+                throw e;
+            }
+            if (urlChanged) {
+                bookmarks.remove(previousBookmark.getUrl(), previousBookmark);
+            } else {
+                bookmarks.put(storedBookmark.getUrl(), storedBookmark);
+            }
+            bookmarksById.put(bookmarkId, storedBookmark);
+            tagIndex.remove(bookmarkId, previousBookmark.getTags());
+            tagIndex.add(bookmarkId, storedBookmark.getTags());
+            recordChange(Change.Type.UPDATED, storedBookmark.getId(), storedBookmark);
+        } finally {
+            idLock.unlock();
+            purgeLock.readLock().unlock();
         }
-        deleteBookmark(id);
-        bookmarks.put(bookmark.getUrl(), bookmark);
+        awaitJournal(journalPosition);
     }
 
 // -------------------------- OTHER METHODS --------------------------
 
     /**
-     * get all the bookmarks that have a given tag.
+     * waits until the journal is forced to disk up to a position, to be called without holding any locks. Starts a
+     * snapshot in the background if one is due.
      *
-     * @param tag
-     *         the tag
-     * @return a Set of Bookmarks, may be empty not null
-     */
-    protected Set<Bookmark> getBookmarksWithTag(String tag) {
-        final Set<Bookmark> foundBookmarks = new HashSet<>();
-        bookmarks.values()
-                .stream()
-                .filter(bookmark -> bookmark.getTags().contains(tag))
-                .forEach(foundBookmarks::add);
-        return foundBookmarks;
+     * @param journalPosition
+     *         the position returned from {@link #writeAhead(Change.Type, String, Bookmark)}
+     * @throws TabooException
+     *         if the journal cannot be forced
+     */
+    private void awaitJournal(long journalPosition) {
+        if (null != journal) {
+            journal.sync(journalPosition);
+            if (journal.snapshotDue() && snapshotRunning.compareAndSet(false, true)) {
+                snapshotExecutor.execute(this::writeSnapshot);
+            }
+        }
+    }
+
+    /**
+     * checks if the title or the url of a bookmark contains a search string.
+     *
+     * @param bookmark
+     *         the bookmark
+     * @param textToSearch
+     *         the lower case search string
+     * @return true if title or url contain the string
+     */
+    private static boolean containsSearch(Bookmark bookmark, String textToSearch) {
+        return (null != bookmark.getTitle() && bookmark.getTitle().toLowerCase().contains(textToSearch)) ||
+                (null != bookmark.getUrl() && bookmark.getUrl().toLowerCase().contains(textToSearch));
+    }
+
+    /**
+     * converts a bookmark id to the int value used in the maps and the tag index.
+     *
+     * @param id
+     *         the bookmark id
+     * @return the int id or null if id is not a number
+     */
+    private static Integer parseId(String id) {
+        try {
+            return Integer.valueOf(id);
+        } catch (NumberFormatException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * applies a change from the journal when the repository is restored.
+     *
+     * @param change
+     *         the change
+     */
+    private void restore(Change change) {
+        switch (change.getType()) {
+            case CREATED:
+            case UPDATED:
+                Bookmark bookmark = change.getBookmark();
+                int id = Integer.parseInt(bookmark.getId());
+                Bookmark previousBookmark = bookmarksById.put(id, bookmark);
+                if (null != previousBookmark) {
+                    bookmarks.remove(previousBookmark.getUrl(), previousBookmark);
+                    tagIndex.remove(id, previousBookmark.getTags());
+                }
+                bookmarks.put(bookmark.getUrl(), bookmark);
+                tagIndex.add(id, bookmark.getTags());
+                nextId.accumulateAndGet(id + 1, Math::max);
+                break;
+            case DELETED:
+                nextId.accumulateAndGet(Integer.parseInt(change.getId()) + 1, Math::max);
+                Bookmark deletedBookmark = bookmarksById.remove(Integer.parseInt(change.getId()));
+                if (null != deletedBookmark) {
+                    bookmarks.remove(deletedBookmark.getUrl(), deletedBookmark);
+                    tagIndex.remove(Integer.parseInt(change.getId()), deletedBookmark.getTags());
+                }
+                break;
+            case PURGED:
+                bookmarks.clear();
+                bookmarksById.clear();
+                tagIndex.clear();
+                break;
+        }
+    }
+
+    /**
+     * writes a change to the journal if the repository is durable, before the change is applied. The caller must hold
+     * the locks for the change and call {@link #awaitJournal(long)} after releasing them.
+     *
+     * @param type
+     *         the kind of change
+     * @param id
+     *         the id of the bookmark, null for a purge
+     * @param bookmark
+     *         the bookmark after the change, null for deletes and purges
+     * @return the position the journal must be forced to, 0 if the repository is not durable
+     * @throws TabooException
+     *         if the change cannot be written
+     */
+    private long writeAhead(Change.Type type, String id, Bookmark bookmark) {
+        return (null == journal) ? 0 : journal.write(type, id, bookmark);
+    }
+
+    /**
+     * writes a snapshot. The journal is rotated and the bookmarks are copied while no change can be made, the old log
+     * is forced and the snapshot file is written afterwards.
+     */
+    private void writeSnapshot() {
+        try {
+            long generation;
+            int snapshotNextId;
+            List<Bookmark> snapshot;
+            purgeLock.writeLock().lock();
+            try {
+                generation = journal.rotate();
+                snapshotNextId = nextId.get();
+                snapshot = new ArrayList<>(bookmarksById.values());
+            } finally {
+                purgeLock.writeLock().unlock();
+            }
+            journal.syncAll();
+            journal.writeSnapshot(generation, snapshotNextId, snapshot);
+        } catch (TabooException e) {
+            LOG.error("writing the bookmark snapshot failed", e);
+        } finally {
+            snapshotRunning.set(false);
+        }
     }
 
 // -------------------------- INNER CLASSES --------------------------
@@ -167,8 +587,18 @@ public class InMemoryRepository extends AbstractBookmarkRepository {
 
 // --------------------- Interface BookmarkRepositoryFactory ---------------------
 
+        /**
+         * the optional first argument is the journal directory for a durable repository.
+         *
+         * @param args
+         *         arguments for the BookmarkRepository
+         * @return the repository
+         */
         @Override
         public BookmarkRepository create(String[] args) {
+            if (null != args && args.length > 0) {
+                return new InMemoryRepository(Paths.get(args[0]));
+            }
             return new InMemoryRepository();
         }
     }
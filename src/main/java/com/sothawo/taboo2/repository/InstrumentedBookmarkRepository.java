@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ImportResult;
+import com.sothawo.taboo2.Metrics;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * BookmarkRepository decorator that records latency, exceptions and result sizes of every call in {@link Metrics},
+ * labeled with the name of the called method.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class InstrumentedBookmarkRepository implements BookmarkRepository {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the repository doing the work. */
+    private final BookmarkRepository delegate;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates an InstrumentedBookmarkRepository.
+     *
+     * @param delegate
+     *         the repository doing the work
+     */
+    public InstrumentedBookmarkRepository(BookmarkRepository delegate) {
+        this.delegate = Objects.requireNonNull(delegate);
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() throws Exception {
+        delegate.close();
+    }
+
+// --------------------- Interface BookmarkRepository ---------------------
+
+    @Override
+    public Bookmark createBookmark(Bookmark bookmark) {
+        return timed("createBookmark", () -> delegate.createBookmark(bookmark));
+    }
+
+    @Override
+    public void deleteBookmark(String id) {
+        timed("deleteBookmark", () -> {
+            delegate.deleteBookmark(id);
+            return null;
+        });
+    }
+
+    @Override
+    public Collection<Bookmark> dumpBookmarks() {
+        return timed("dumpBookmarks", delegate::dumpBookmarks, Collection::size);
+    }
+
+    @Override
+    public void dumpBookmarks(Consumer<Bookmark> consumer) {
+        AtomicInteger count = new AtomicInteger();
+        timed("dumpBookmarksStreamed", () -> {
+            delegate.dumpBookmarks(bookmark -> {
+                count.incrementAndGet();
+                consumer.accept(bookmark);
+            });
+            return count;
+        }, AtomicInteger::get);
+    }
+
+    @Override
+    public Collection<Bookmark> getAllBookmarks() {
+        return timed("getAllBookmarks", delegate::getAllBookmarks, Collection::size);
+    }
+
+    @Override
+    public Collection<String> getAllTags() {
+        return timed("getAllTags", delegate::getAllTags, Collection::size);
+    }
+
+    @Override
+    public Bookmark getBookmarkById(String id) {
+        return timed("getBookmarkById", () -> delegate.getBookmarkById(id));
+    }
+
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        return timed("getBookmarksPage", () -> delegate.getBookmarksPage(tags, opAnd, s, cursor, limit),
+                page -> page.getBookmarks().size());
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithSearch(String s) {
+        return timed("getBookmarksWithSearch", () -> delegate.getBookmarksWithSearch(s), Collection::size);
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTags(Collection<String> tags, boolean opAnd) {
+        return timed("getBookmarksWithTags", () -> delegate.getBookmarksWithTags(tags, opAnd), Collection::size);
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTagsAndSearch(Collection<String> tags, boolean opAnd, String s) {
+        return timed("getBookmarksWithTagsAndSearch", () -> delegate.getBookmarksWithTagsAndSearch(tags, opAnd, s),
+                Collection::size);
+    }
+
+    @Override
+    public Changes getChanges(long since) {
+        return timed("getChanges", () -> delegate.getChanges(since), changes -> changes.getChanges().size());
+    }
+
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        return timed("getTagCounts", () -> delegate.getTagCounts(tags, opAnd, s), Map::size);
+    }
+
+    @Override
+    public long getVersion() {
+        return timed("getVersion", delegate::getVersion);
+    }
+
+    @Override
+    public ImportResult importBookmarks(Collection<Bookmark> bookmarks) {
+        return timed("importBookmarks", () -> delegate.importBookmarks(bookmarks), ImportResult::getImported);
+    }
+
+    @Override
+    public void purge() {
+        timed("purge", () -> {
+            delegate.purge();
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        return timed("suggestTags", () -> delegate.suggestTags(prefix, limit), List::size);
+    }
+
+    @Override
+    public void updateBookmark(Bookmark bookmark) {
+        timed("updateBookmark", () -> {
+            delegate.updateBookmark(bookmark);
+            return null;
+        });
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * calls the delegate and records latency and exceptions.
+     *
+     * @param method
+     *         the name of the method
+     * @param call
+     *         calls the delegate
+     * @param <T>
+     *         the result type
+     * @return the result of the call
+     */
+    private static <T> T timed(String method, Supplier<T> call) {
+        return timed(method, call, null);
+    }
+
+    /**
+     * calls the delegate and records latency, exceptions and the size of the result.
+     *
+     * @param method
+     *         the name of the method
+     * @param call
+     *         calls the delegate
+     * @param size
+     *         returns the number of elements in the result, null if the size is not recorded
+     * @param <T>
+     *         the result type
+     * @return the result of the call
+     */
+    private static <T> T timed(String method, Supplier<T> call, ToIntFunction<T> size) {
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            if (null != size && null != result) {
+                Metrics.REPOSITORY_RESULT_SIZE.labels(method).observe(size.applyAsInt(result));
+            }
+            return result;
+        } catch (RuntimeException e) {
+            Metrics.REPOSITORY_ERRORS.labels(method, e.getClass().getSimpleName()).inc();
+            throw e;
+        } finally {
+            Metrics.REPOSITORY_LATENCY.labels(method).observe(Metrics.secondsSince(start));
+        }
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Factory implementation, the created repository instruments an InMemoryRepository.
+     */
+    public static class Factory implements BookmarkRepositoryFactory {
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface BookmarkRepositoryFactory ---------------------
+
+        @Override
+        public BookmarkRepository create(String[] args) {
+            return new InstrumentedBookmarkRepository(new InMemoryRepository());
+        }
+    }
+}
@@ -0,0 +1,1011 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.AlreadyExistsException;
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.NotFoundException;
+import com.sothawo.taboo2.TabooException;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * BookmarkRepository implementation that keeps the bookmarks in a memory-mapped file instead of the Java heap. Bookmark
+ * objects are only created when they are returned, so the heap use does not grow with the number of bookmarks.
+ * <p>
+ * The file consists of segments of a fixed size, each mapped with a MappedByteBuffer. The records are appended, a
+ * record does not span segments:
+ * <pre>
+ * int length | int id | byte flags | url | title | int tag count | tags
+ * </pre>
+ * The strings are stored as int length and UTF-8 bytes, a null title has the length -1. A length of 0 marks the end of
+ * the data, a length of -1 continues at the start of the next segment. An update appends a new record and flags the
+ * old one as deleted. When the deleted records take more than half of the used file and at least one segment, the
+ * file is compacted: the live records are written to a new file, which then replaces the data file. After a purge the
+ * file is reused from the start.
+ * <p>
+ * Two indexes are kept in direct buffers outside of the heap: a table from the bookmark id to the offset of its record,
+ * and an open addressing hash table from the url hash to the bookmark id, where the url is compared in the record. The
+ * bitmap tag index stays on the heap, it only holds the tags and compressed bitmaps.
+ * <p>
+ * When the file exists, the indexes are rebuilt from its records; the data is forced to disk on close. Changes are not
+ * forced when the call returns, use the durable InMemoryRepository where every change must survive a crash.
+ * <p>
+ * The implementation is thread safe, the changes are serialized by a write lock, readers share a read lock. A dump
+ * only holds the read lock while it reads a chunk of bookmarks, not while the consumer processes them.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class MappedRepository extends AbstractBookmarkRepository {
+// ------------------------------ FIELDS ------------------------------
+
+    /** default size of the mapped segments. */
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** number of bookmarks that a dump reads under the read lock before passing them to the consumer. */
+    private static final int DUMP_CHUNK_SIZE = 1000;
+
+    /** size of the record header: length, id and flags. */
+    private static final int HEADER_SIZE = 9;
+
+    /** offset of the flags in a record. */
+    private static final int FLAGS_OFFSET = 8;
+
+    /** flag of a deleted record. */
+    private static final byte FLAG_DELETED = 1;
+
+    /** length value that continues the data in the next segment. */
+    private static final int NEXT_SEGMENT = -1;
+
+    /** initial number of ids in the id table. */
+    private static final int INITIAL_ID_CAPACITY = 1024;
+
+    /** initial number of slots in the url table, must be a power of 2. */
+    private static final int INITIAL_URL_CAPACITY = 2048;
+
+    /** size of a slot in the url table: url hash and bookmark id. */
+    private static final int URL_SLOT_SIZE = 8;
+
+    /** bookmark id of a removed slot in the url table, empty slots have id 0. */
+    private static final int REMOVED = -1;
+
+    /** the size of the segments. */
+    private final int segmentSize;
+
+    /** the data file. */
+    private final Path file;
+
+    /** the channel of the data file, replaced by a compaction. */
+    private FileChannel channel;
+
+    /** the mapped segments of the data file. */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    /** the tag index with the bookmark ids as documents. */
+    private final BitmapTagIndex tagIndex = new BitmapTagIndex();
+
+    /** changes need the write lock, readers the read lock. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** the file offset where the next record is written. */
+    private long writePosition;
+
+    /** the number of bytes in deleted records, reclaimed by a compaction. */
+    private long deletedBytes;
+
+    /** the next bookmark id. */
+    private int nextId = 1;
+
+    /** id -> record offset + 1, 0 if there is no bookmark with the id. */
+    private ByteBuffer idTable;
+
+    /** the url hash table. */
+    private ByteBuffer urlTable;
+
+    /** number of used slots in the url table, including removed ones. */
+    private int urlSlotsUsed;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a repository that uses a data file.
+     *
+     * @param file
+     *         the data file, created if needed
+     */
+    public MappedRepository(Path file) {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * creates a repository with a segment size.
+     *
+     * @param file
+     *         the data file, created if needed
+     * @param segmentSize
+     *         the size of the mapped segments
+     */
+    MappedRepository(Path file, int segmentSize) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        idTable = ByteBuffer.allocateDirect(INITIAL_ID_CAPACITY * 8);
+        urlTable = ByteBuffer.allocateDirect(INITIAL_URL_CAPACITY * URL_SLOT_SIZE);
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (null != parent) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long size = channel.size();
+            do {
+                segment((long) segments.size() * segmentSize);
+            } while ((long) segments.size() * segmentSize < size);
+        } catch (IOException e) {
+            throw new TabooException("opening the bookmark file " + file, e);
+        }
+        load();
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() throws Exception {
+        lock.writeLock().lock();
+        try {
+            segments.forEach(MappedByteBuffer::force);
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+// --------------------- Interface BookmarkRepository ---------------------
+
+    @Override
+    public Bookmark createBookmark(Bookmark bookmark) {
+        if (null == bookmark) {
+            throw new IllegalArgumentException("bookmark is null");
+        }
+        if (null != bookmark.getId()) {
+            throw new IllegalArgumentException("is is not null");
+        }
+        if (null == bookmark.getUrl() || bookmark.getUrl().isEmpty()) {
+            throw new IllegalArgumentException("bookmark url is not set");
+        }
+
+        lock.writeLock().lock();
+        try {
+            byte[] url = utf8(bookmark.getUrl());
+            if (0 != findUrl(bookmark.getUrl().hashCode(), url)) {
+                throw new AlreadyExistsException("bookmark with url: " + bookmark.getUrl());
+            }
+            int id = nextId++;
+            Bookmark storedBookmark = bookmark.clone();
+            storedBookmark.setId(String.valueOf(id));
+            setOffset(id, append(id, storedBookmark));
+            addUrl(bookmark.getUrl().hashCode(), id);
+            tagIndex.add(id, storedBookmark.getTags());
+            recordChange(Change.Type.CREATED, storedBookmark.getId(), storedBookmark);
+            bookmark.setId(storedBookmark.getId());
+            return bookmark;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteBookmark(String id) {
+        Integer bookmarkId = parseId(Objects.requireNonNull(id));
+        lock.writeLock().lock();
+        try {
+            long offset = (null == bookmarkId) ? -1 : offset(bookmarkId);
+            if (offset < 0) {
+                throw new NotFoundException("no bookmark with id " + id);
+            }
+            Bookmark bookmark = read(offset);
+            removeUrl(bookmark.getUrl().hashCode(), bookmarkId);
+            tagIndex.remove(bookmarkId, bookmark.getTags());
+            markDeleted(offset);
+            setOffset(bookmarkId, -1);
+            recordChange(Change.Type.DELETED, String.valueOf(bookmarkId), null);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * passes the bookmarks in chunks to the consumer, only the bookmarks of one chunk are materialized. A chunk is read
+     * under the read lock, which is released before the consumer gets the bookmarks, so a slow consumer does not block
+     * the changes. Changes made during the dump are included if they affect a chunk that has not yet been read.
+     *
+     * @param consumer
+     *         the consumer for the bookmarks
+     */
+    @Override
+    public void dumpBookmarks(Consumer<Bookmark> consumer) {
+        int id = 1;
+        boolean complete = false;
+        while (!complete) {
+            List<Bookmark> chunk = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                for (; id < nextId && chunk.size() < DUMP_CHUNK_SIZE; id++) {
+                    long offset = offset(id);
+                    if (offset >= 0) {
+                        Bookmark bookmark = read(offset);
+                        bookmark.setId(null);
+                        chunk.add(bookmark);
+                    }
+                }
+                complete = id >= nextId;
+            } finally {
+                lock.readLock().unlock();
+            }
+            chunk.forEach(consumer);
+        }
+    }
+
+    @Override
+    public Collection<Bookmark> getAllBookmarks() {
+        lock.readLock().lock();
+        try {
+            List<Bookmark> allBookmarks = new ArrayList<>();
+            for (int id = 1; id < nextId; id++) {
+                long offset = offset(id);
+                if (offset >= 0) {
+                    allBookmarks.add(read(offset));
+                }
+            }
+            return allBookmarks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<String> getAllTags() {
+        return tagIndex.tags();
+    }
+
+    @Override
+    public Bookmark getBookmarkById(String id) {
+        Integer bookmarkId = parseId(Objects.requireNonNull(id));
+        lock.readLock().lock();
+        try {
+            long offset = (null == bookmarkId) ? -1 : offset(bookmarkId);
+            if (offset < 0) {
+                throw new NotFoundException("no bookmark with id " + id);
+            }
+            return read(offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns a page of bookmarks. The candidates are iterated in id order starting after the cursor, either from the
+     * tag index or from the id range, until the page is full.
+     *
+     * @see BookmarkRepository#getBookmarksPage(Collection, boolean, String, String, int)
+     */
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        checkPageLimit(limit);
+        final long after = PageCursor.decode(cursor);
+        final String textToSearch = (null == s) ? null : s.toLowerCase();
+
+        List<Bookmark> page = new ArrayList<>();
+        long first = Math.max(after + 1, 1);
+        lock.readLock().lock();
+        try {
+            if (first < Integer.MAX_VALUE) {
+                RoaringBitmap candidates = (null == tags) ? RoaringBitmap.bitmapOfRange(first, nextId) :
+                        tagIndex.find(tags, opAnd);
+                PeekableIntIterator iterator = candidates.getIntIterator();
+                iterator.advanceIfNeeded((int) first);
+                while (iterator.hasNext() && page.size() < limit) {
+                    long offset = offset(iterator.next());
+                    if (offset >= 0 && (null == textToSearch || containsSearch(offset, textToSearch))) {
+                        page.add(read(offset));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return pageOf(page, limit);
+    }
+
+    /**
+     * returns the bookmarks where the title or the url contains the given string, case insensitive. Only title and url
+     * are read from the records, the bookmarks are materialized for the matches.
+     *
+     * @param s
+     *         the substring to search
+     * @return the found bookmarks
+     */
+    @Override
+    public Collection<Bookmark> getBookmarksWithSearch(String s) {
+        final String textToSearch = Objects.requireNonNull(s).toLowerCase();
+        lock.readLock().lock();
+        try {
+            List<Bookmark> foundBookmarks = new ArrayList<>();
+            for (int id = 1; id < nextId; id++) {
+                long offset = offset(id);
+                if (offset >= 0 && containsSearch(offset, textToSearch)) {
+                    foundBookmarks.add(read(offset));
+                }
+            }
+            return foundBookmarks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTags(Collection<String> tags, boolean opAnd) {
+        lock.readLock().lock();
+        try {
+            RoaringBitmap docs = tagIndex.find(tags, opAnd);
+            List<Bookmark> foundBookmarks = new ArrayList<>(docs.getCardinality());
+            IntIterator iterator = docs.getIntIterator();
+            while (iterator.hasNext()) {
+                long offset = offset(iterator.next());
+                if (offset >= 0) {
+                    foundBookmarks.add(read(offset));
+                }
+            }
+            return foundBookmarks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * counts on the tag index. The selection is a bitmap from the tag index, restricted to the bookmarks whose title
+     * or url contains the search string; only title and url are read from the records.
+     *
+     * @see BookmarkRepository#getTagCounts(Collection, boolean, String)
+     */
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        lock.readLock().lock();
+        try {
+            RoaringBitmap docs = (null == tags) ? null : tagIndex.find(tags, opAnd);
+            if (null != s) {
+                final String textToSearch = s.toLowerCase();
+                RoaringBitmap candidates = (null == docs) ? RoaringBitmap.bitmapOfRange(1, nextId) : docs;
+                RoaringBitmap found = new RoaringBitmap();
+                IntIterator iterator = candidates.getIntIterator();
+                while (iterator.hasNext()) {
+                    int id = iterator.next();
+                    long offset = offset(id);
+                    if (offset >= 0 && containsSearch(offset, textToSearch)) {
+                        found.add(id);
+                    }
+                }
+                docs = found;
+            }
+            return tagIndex.counts(docs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * removes all bookmarks, the file is reused from the start. The ids are not reset, the file keeps a deleted record
+     * with the highest id.
+     */
+    @Override
+    public void purge() {
+        lock.writeLock().lock();
+        try {
+            writePosition = 0;
+            deletedBytes = 0;
+            segments.get(0).putInt(0, 0);
+            clear(idTable);
+            clear(urlTable);
+            urlSlotsUsed = 0;
+            tagIndex.clear();
+            appendHighestIdPlaceholder();
+            recordChange(Change.Type.PURGED, null, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * returns the tags for a prefix from the tag index, ranked by the cardinality of their postings.
+     *
+     * @see BookmarkRepository#suggestTags(String, int)
+     */
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        return tagIndex.suggest(prefix, limit);
+    }
+
+    @Override
+    public void updateBookmark(Bookmark bookmark) {
+        String id = Objects.requireNonNull(bookmark).getId();
+        if (null == id || id.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        Integer bookmarkId = parseId(id);
+        lock.writeLock().lock();
+        try {
+            // check if there is no different bookmark with this url
+            int hash = bookmark.getUrl().hashCode();
+            int found = findUrl(hash, utf8(bookmark.getUrl()));
+            if (0 != found && !id.equals(String.valueOf(found))) {
+                throw new AlreadyExistsException("bookmark with url " + bookmark.getUrl());
+            }
+            long previousOffset = (null == bookmarkId) ? -1 : offset(bookmarkId);
+            if (previousOffset < 0) {
+                throw new NotFoundException("no bookmark with id " + id);
+            }
+
+            Bookmark previousBookmark = read(previousOffset);
+            Bookmark storedBookmark = bookmark.clone();
+            setOffset(bookmarkId, append(bookmarkId, storedBookmark));
+            markDeleted(previousOffset);
+            if (0 == found) {
+                removeUrl(previousBookmark.getUrl().hashCode(), bookmarkId);
+                addUrl(hash, bookmarkId);
+            }
+            tagIndex.remove(bookmarkId, previousBookmark.getTags());
+            tagIndex.add(bookmarkId, storedBookmark.getTags());
+            recordChange(Change.Type.UPDATED, id, storedBookmark);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * adds an entry to the url table, which is grown when it is half full.
+     *
+     * @param hash
+     *         the hash of the url
+     * @param id
+     *         the bookmark id
+     */
+    private void addUrl(int hash, int id) {
+        if (2 * (urlSlotsUsed + 1) > urlTable.capacity() / URL_SLOT_SIZE) {
+            rehashUrls();
+        }
+        int mask = urlTable.capacity() / URL_SLOT_SIZE - 1;
+        int slot = spread(hash) & mask;
+        while (urlTable.getInt(slot * URL_SLOT_SIZE + 4) > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (urlTable.getInt(slot * URL_SLOT_SIZE + 4) == 0) {
+            urlSlotsUsed++;
+        }
+        urlTable.putInt(slot * URL_SLOT_SIZE, hash);
+        urlTable.putInt(slot * URL_SLOT_SIZE + 4, id);
+    }
+
+    /**
+     * appends the record of a bookmark to the file.
+     *
+     * @param id
+     *         the bookmark id
+     * @param bookmark
+     *         the bookmark
+     * @return the offset of the record
+     */
+    private long append(int id, Bookmark bookmark) {
+        byte[] url = utf8(bookmark.getUrl());
+        byte[] title = (null == bookmark.getTitle()) ? null : utf8(bookmark.getTitle());
+        List<byte[]> tags = new ArrayList<>();
+        int length = HEADER_SIZE + 4 + url.length + 4 + ((null == title) ? 0 : title.length) + 4;
+        for (String tag : bookmark.getTags()) {
+            byte[] tagBytes = utf8(tag);
+            tags.add(tagBytes);
+            length += 4 + tagBytes.length;
+        }
+        // the record and the following end marker must fit into a segment
+        if (length + 4 > segmentSize) {
+            throw new IllegalArgumentException("bookmark too large: " + bookmark.getUrl());
+        }
+        long offset = reserve(length);
+        ByteBuffer buffer = segment(offset).duplicate();
+        buffer.position(positionInSegment(offset) + 4);
+        buffer.putInt(id);
+        buffer.put((byte) 0);
+        buffer.putInt(url.length).put(url);
+        if (null == title) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(title.length).put(title);
+        }
+        buffer.putInt(tags.size());
+        for (byte[] tag : tags) {
+            buffer.putInt(tag.length).put(tag);
+        }
+        buffer.putInt(0);
+        // the length replaces the previous end marker when the record is complete
+        buffer.putInt(positionInSegment(offset), length);
+        writePosition = offset + length;
+        return offset;
+    }
+
+    /**
+     * appends a deleted record with the highest id given out if there is no record for it, so that the id is not
+     * reused after reopening.
+     */
+    private void appendHighestIdPlaceholder() {
+        if (nextId > 1 && offset(nextId - 1) < 0) {
+            Bookmark placeholder = new Bookmark();
+            placeholder.setUrl("");
+            markDeleted(append(nextId - 1, placeholder));
+        }
+    }
+
+    /**
+     * fills a buffer with zeros.
+     *
+     * @param buffer
+     *         the buffer
+     */
+    private static void clear(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i += 8) {
+            buffer.putLong(i, 0);
+        }
+    }
+
+    /**
+     * rewrites the live records in id order into a new file, which then replaces the data file. The record of the
+     * highest id is kept as a deleted record if that bookmark was deleted, so that the id is not reused after
+     * reopening. If the compaction fails, the repository continues with the old file.
+     *
+     * @throws TabooException
+     *         if the new file cannot be written
+     */
+    private void compact() {
+        Path compactFile = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel oldChannel = channel;
+        List<MappedByteBuffer> oldSegments = new ArrayList<>(segments);
+        long oldWritePosition = writePosition;
+        long oldDeletedBytes = deletedBytes;
+        ByteBuffer compactIdTable = ByteBuffer.allocateDirect(idTable.capacity());
+        try {
+            channel = FileChannel.open(compactFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.clear();
+            writePosition = 0;
+            deletedBytes = 0;
+            segment(0).putInt(0, 0);
+            for (int id = 1; id < nextId; id++) {
+                long oldOffset = offset(id);
+                if (oldOffset >= 0) {
+                    ByteBuffer record = oldSegments.get((int) (oldOffset / segmentSize)).duplicate();
+                    int position = positionInSegment(oldOffset);
+                    record.limit(position + record.getInt(position)).position(position);
+                    compactIdTable.putLong(id * 8, copy(record) + 1);
+                }
+            }
+            appendHighestIdPlaceholder();
+            segments.forEach(MappedByteBuffer::force);
+            Files.move(compactFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (channel != oldChannel) {
+                    channel.close();
+                }
+                Files.deleteIfExists(compactFile);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            channel = oldChannel;
+            segments.clear();
+            segments.addAll(oldSegments);
+            writePosition = oldWritePosition;
+            deletedBytes = oldDeletedBytes;
+            throw new TabooException("compacting the bookmark file " + file, e);
+        }
+        idTable = compactIdTable;
+        try {
+            oldChannel.close();
+        } catch (IOException e) {
+            throw new TabooException("closing the bookmark file " + file + " after the compaction", e);
+        }
+    }
+
+    /**
+     * compacts the file when the deleted records take more than half of the used file and at least one segment.
+     *
+     * @throws TabooException
+     *         if the compaction fails
+     */
+    private void compactIfNeeded() {
+        if (deletedBytes >= segmentSize && 2 * deletedBytes > writePosition) {
+            compact();
+        }
+    }
+
+    /**
+     * checks if the title or the url of a record contains a search string, without materializing the bookmark.
+     *
+     * @param offset
+     *         the offset of the record
+     * @param textToSearch
+     *         the lower case search string
+     * @return true if title or url contain the string
+     */
+    private boolean containsSearch(long offset, String textToSearch) {
+        ByteBuffer buffer = segment(offset).duplicate();
+        buffer.position(positionInSegment(offset) + HEADER_SIZE);
+        String url = readString(buffer);
+        String title = readString(buffer);
+        return (null != title && title.toLowerCase().contains(textToSearch)) ||
+                (null != url && url.toLowerCase().contains(textToSearch));
+    }
+
+    /**
+     * appends a copy of a record to the file.
+     *
+     * @param record
+     *         the record between position and limit
+     * @return the offset of the copy
+     */
+    private long copy(ByteBuffer record) {
+        int length = record.remaining();
+        long offset = reserve(length);
+        ByteBuffer buffer = segment(offset).duplicate();
+        buffer.position(positionInSegment(offset));
+        buffer.put(record);
+        buffer.putInt(0);
+        writePosition = offset + length;
+        return offset;
+    }
+
+    /**
+     * searches an url in the url table.
+     *
+     * @param hash
+     *         the hash of the url
+     * @param url
+     *         the UTF-8 bytes of the url
+     * @return the bookmark id or 0 if the url is not found
+     */
+    private int findUrl(int hash, byte[] url) {
+        int mask = urlTable.capacity() / URL_SLOT_SIZE - 1;
+        int slot = spread(hash) & mask;
+        int id;
+        while ((id = urlTable.getInt(slot * URL_SLOT_SIZE + 4)) != 0) {
+            if (id > 0 && urlTable.getInt(slot * URL_SLOT_SIZE) == hash && urlEquals(offset(id), url)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * rebuilds the indexes from the records in the file.
+     */
+    private void load() {
+        long position = 0;
+        while (true) {
+            ByteBuffer segment = segment(position);
+            int length = segment.getInt(positionInSegment(position));
+            if (length == NEXT_SEGMENT) {
+                position = ((position / segmentSize) + 1) * segmentSize;
+                if (position >= (long) segments.size() * segmentSize) {
+                    break;
+                }
+            } else if (length < HEADER_SIZE || positionInSegment(position) + length + 4 > segmentSize) {
+                // 0 is the end marker, other values are the remains of an incomplete write
+                break;
+            } else {
+                int id = segment.getInt(positionInSegment(position) + 4);
+                if (segment.get(positionInSegment(position) + FLAGS_OFFSET) != FLAG_DELETED) {
+                    Bookmark bookmark = read(position);
+                    setOffset(id, position);
+                    addUrl(bookmark.getUrl().hashCode(), id);
+                    tagIndex.add(id, bookmark.getTags());
+                } else {
+                    deletedBytes += length;
+                }
+                nextId = Math.max(nextId, id + 1);
+                position += length;
+            }
+        }
+        writePosition = position;
+        segment(position).putInt(positionInSegment(position), 0);
+    }
+
+    /**
+     * flags a record as deleted.
+     *
+     * @param offset
+     *         the offset of the record
+     */
+    private void markDeleted(long offset) {
+        ByteBuffer segment = segment(offset);
+        segment.put(positionInSegment(offset) + FLAGS_OFFSET, FLAG_DELETED);
+        deletedBytes += segment.getInt(positionInSegment(offset));
+    }
+
+    /**
+     * returns the record offset of a bookmark id.
+     *
+     * @param id
+     *         the bookmark id
+     * @return the offset or -1 if there is no bookmark with the id
+     */
+    private long offset(int id) {
+        if (id <= 0 || id >= idTable.capacity() / 8) {
+            return -1;
+        }
+        return idTable.getLong(id * 8) - 1;
+    }
+
+    /**
+     * converts a bookmark id to its int value.
+     *
+     * @param id
+     *         the bookmark id
+     * @return the int id or null if id is not a number
+     */
+    private static Integer parseId(String id) {
+        try {
+            return Integer.valueOf(id);
+        } catch (NumberFormatException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * returns the position of a file offset in its segment.
+     *
+     * @param offset
+     *         the file offset
+     * @return the position in the segment
+     */
+    private int positionInSegment(long offset) {
+        return (int) (offset % segmentSize);
+    }
+
+    /**
+     * materializes the bookmark of a record.
+     *
+     * @param offset
+     *         the offset of the record
+     * @return the bookmark
+     */
+    private Bookmark read(long offset) {
+        ByteBuffer buffer = segment(offset).duplicate();
+        buffer.position(positionInSegment(offset) + 4);
+        Bookmark bookmark = new Bookmark();
+        bookmark.setId(String.valueOf(buffer.getInt()));
+        buffer.get();
+        bookmark.setUrl(readString(buffer));
+        bookmark.setTitle(readString(buffer));
+        int tagCount = buffer.getInt();
+        for (int i = 0; i < tagCount; i++) {
+            bookmark.addTag(readString(buffer));
+        }
+        return bookmark;
+    }
+
+    /**
+     * reads a string at the position of a buffer.
+     *
+     * @param buffer
+     *         the buffer
+     * @return the string, may be null
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * doubles the size of the url table, dropping the removed entries. The hashes are kept in the table, so the
+     * records need not be read.
+     */
+    private void rehashUrls() {
+        ByteBuffer oldTable = urlTable;
+        int capacity = oldTable.capacity() / URL_SLOT_SIZE;
+        urlTable = ByteBuffer.allocateDirect(capacity * 2 * URL_SLOT_SIZE);
+        urlSlotsUsed = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int id = oldTable.getInt(slot * URL_SLOT_SIZE + 4);
+            if (id > 0) {
+                addUrl(oldTable.getInt(slot * URL_SLOT_SIZE), id);
+            }
+        }
+    }
+
+    /**
+     * marks the url table entry of a bookmark as removed.
+     *
+     * @param hash
+     *         the hash of the url
+     * @param id
+     *         the bookmark id
+     */
+    private void removeUrl(int hash, int id) {
+        int mask = urlTable.capacity() / URL_SLOT_SIZE - 1;
+        int slot = spread(hash) & mask;
+        int slotId;
+        while ((slotId = urlTable.getInt(slot * URL_SLOT_SIZE + 4)) != 0) {
+            if (slotId == id) {
+                urlTable.putInt(slot * URL_SLOT_SIZE + 4, REMOVED);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * returns the offset where a record of a length is written. If it does not fit into the current segment, the data
+     * continues at the start of the next one.
+     *
+     * @param length
+     *         the length of the record
+     * @return the offset for the record
+     */
+    private long reserve(int length) {
+        if (positionInSegment(writePosition) + length + 4 > segmentSize) {
+            segment(writePosition).putInt(positionInSegment(writePosition), NEXT_SEGMENT);
+            writePosition = ((writePosition / segmentSize) + 1) * segmentSize;
+        }
+        return writePosition;
+    }
+
+    /**
+     * returns the segment that contains a file offset, mapping it if needed.
+     *
+     * @param offset
+     *         the file offset
+     * @return the segment
+     */
+    private MappedByteBuffer segment(long offset) {
+        int index = (int) (offset / segmentSize);
+        while (segments.size() <= index) {
+            try {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize,
+                        segmentSize));
+            } catch (IOException e) {
+                throw new TabooException("mapping the bookmark file", e);
+            }
+        }
+        return segments.get(index);
+    }
+
+    /**
+     * sets the record offset of a bookmark id, growing the id table if needed.
+     *
+     * @param id
+     *         the bookmark id
+     * @param offset
+     *         the offset, -1 to remove the id
+     */
+    private void setOffset(int id, long offset) {
+        if (id >= idTable.capacity() / 8) {
+            int capacity = idTable.capacity() / 8;
+            while (capacity <= id) {
+                capacity *= 2;
+            }
+            ByteBuffer newTable = ByteBuffer.allocateDirect(capacity * 8);
+            idTable.clear();
+            newTable.put(idTable);
+            idTable = newTable;
+        }
+        idTable.putLong(id * 8, offset + 1);
+    }
+
+    /**
+     * spreads the bits of a hash, so that urls with similar hashes get different slots.
+     *
+     * @param hash
+     *         the hash
+     * @return the spread hash
+     */
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * compares the url of a record with an url.
+     *
+     * @param offset
+     *         the offset of the record
+     * @param url
+     *         the UTF-8 bytes of the url
+     * @return true if the urls are equal
+     */
+    private boolean urlEquals(long offset, byte[] url) {
+        ByteBuffer segment = segment(offset);
+        int position = positionInSegment(offset) + HEADER_SIZE;
+        if (segment.getInt(position) != url.length) {
+            return false;
+        }
+        position += 4;
+        for (int i = 0; i < url.length; i++) {
+            if (segment.get(position + i) != url[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * encodes a string as UTF-8.
+     *
+     * @param s
+     *         the string
+     * @return the bytes
+     */
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Factory class implementation.
+     */
+    public static class Factory implements BookmarkRepositoryFactory {
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface BookmarkRepositoryFactory ---------------------
+
+        /**
+         * the first argument is the data file.
+         *
+         * @param args
+         *         arguments for the BookmarkRepository
+         * @return the repository
+         */
+        @Override
+        public BookmarkRepository create(String[] args) {
+            if (null == args || args.length < 1) {
+                throw new IllegalArgumentException("missing data file argument");
+            }
+            return new MappedRepository(Paths.get(args[0]));
+        }
+    }
+}
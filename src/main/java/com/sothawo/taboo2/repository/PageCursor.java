@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encoding and decoding of the opaque cursors used for paging. The repositories page by the numeric bookmark id, the
+ * cursor contains the id of the last bookmark of the previous page.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class PageCursor {
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * decodes a cursor.
+     *
+     * @param cursor
+     *         the cursor, may be null for the first page
+     * @return the id after which the next page starts, 0 for the first page
+     * @throws IllegalArgumentException
+     *         if the cursor is invalid
+     */
+    public static long decode(String cursor) {
+        if (null == cursor || cursor.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException as well
+            throw new IllegalArgumentException("invalid cursor " + cursor);
+        }
+    }
+
+    /**
+     * encodes a cursor.
+     *
+     * @param lastId
+     *         the id of the last bookmark of the page
+     * @return the cursor
+     */
+    public static String encode(long lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(String.valueOf(lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private PageCursor() {
+    }
+}
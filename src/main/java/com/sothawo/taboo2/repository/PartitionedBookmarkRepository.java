@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ImportResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * BookmarkRepository that keeps the bookmarks of each user in a separate repository, the partition. Every call is
+ * routed to the partition of the current user, so a query only touches the data of its user. The partitions are
+ * created on first use by a factory, which decides where the data of a user is stored. Calls without a current user go
+ * to the default partition.
+ * <p>
+ * Bookmark ids and versions are those of the partition, so they are only unique within a partition.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class PartitionedBookmarkRepository implements BookmarkRepository {
+// ------------------------------ FIELDS ------------------------------
+
+    /** Logger for the class. */
+    private final static Logger LOG = LoggerFactory.getLogger(PartitionedBookmarkRepository.class);
+
+    /** key of the partition for calls without a current user. */
+    public static final String DEFAULT_PARTITION = "";
+
+    /** creates the repository for a partition key. */
+    private final Function<String, BookmarkRepository> partitionFactory;
+
+    /** returns the partition key of the current call, null for the default partition. */
+    private final Supplier<String> currentPartition;
+
+    /** the partitions by key. */
+    private final ConcurrentMap<String, BookmarkRepository> partitions = new ConcurrentHashMap<>();
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a PartitionedBookmarkRepository.
+     *
+     * @param partitionFactory
+     *         creates the repository for a partition key, {@link #DEFAULT_PARTITION} for the default partition
+     * @param currentPartition
+     *         returns the partition key of the current call, usually the name of the authenticated user, null for the
+     *         default partition
+     */
+    public PartitionedBookmarkRepository(Function<String, BookmarkRepository> partitionFactory,
+                                         Supplier<String> currentPartition) {
+        this.partitionFactory = Objects.requireNonNull(partitionFactory);
+        this.currentPartition = Objects.requireNonNull(currentPartition);
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * gets the key of the partition the current call is routed to.
+     *
+     * @return the partition key, {@link #DEFAULT_PARTITION} for calls without a current user
+     */
+    public String getCurrentPartitionKey() {
+        String key = currentPartition.get();
+        return (null == key) ? DEFAULT_PARTITION : key;
+    }
+
+    /**
+     * gets the keys of the partitions that have been used.
+     *
+     * @return the partition keys
+     */
+    public Collection<String> getPartitionKeys() {
+        return new ArrayList<>(partitions.keySet());
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() throws Exception {
+        Exception closeException = null;
+        for (BookmarkRepository partition : partitions.values()) {
+            try {
+                partition.close();
+            } catch (Exception e) {
+                if (null == closeException) {
+                    closeException = e;
+                } else {
+                    closeException.addSuppressed(e);
+                }
+            }
+        }
+        partitions.clear();
+        if (null != closeException) {
+            throw closeException;
+        }
+    }
+
+// --------------------- Interface BookmarkRepository ---------------------
+
+    @Override
+    public Bookmark createBookmark(Bookmark bookmark) {
+        return partition().createBookmark(bookmark);
+    }
+
+    @Override
+    public void deleteBookmark(String id) {
+        partition().deleteBookmark(id);
+    }
+
+    @Override
+    public Collection<Bookmark> dumpBookmarks() {
+        return partition().dumpBookmarks();
+    }
+
+    @Override
+    public void dumpBookmarks(Consumer<Bookmark> consumer) {
+        partition().dumpBookmarks(consumer);
+    }
+
+    @Override
+    public Collection<Bookmark> getAllBookmarks() {
+        return partition().getAllBookmarks();
+    }
+
+    @Override
+    public Collection<String> getAllTags() {
+        return partition().getAllTags();
+    }
+
+    @Override
+    public Bookmark getBookmarkById(String id) {
+        return partition().getBookmarkById(id);
+    }
+
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        return partition().getBookmarksPage(tags, opAnd, s, cursor, limit);
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithSearch(String s) {
+        return partition().getBookmarksWithSearch(s);
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTags(Collection<String> tags, boolean opAnd) {
+        return partition().getBookmarksWithTags(tags, opAnd);
+    }
+
+    @Override
+    public Collection<Bookmark> getBookmarksWithTagsAndSearch(Collection<String> tags, boolean opAnd, String s) {
+        return partition().getBookmarksWithTagsAndSearch(tags, opAnd, s);
+    }
+
+    @Override
+    public Changes getChanges(long since) {
+        return partition().getChanges(since);
+    }
+
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        return partition().getTagCounts(tags, opAnd, s);
+    }
+
+    @Override
+    public long getVersion() {
+        return partition().getVersion();
+    }
+
+    @Override
+    public ImportResult importBookmarks(Collection<Bookmark> bookmarks) {
+        return partition().importBookmarks(bookmarks);
+    }
+
+    @Override
+    public void purge() {
+        partition().purge();
+    }
+
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        return partition().suggestTags(prefix, limit);
+    }
+
+    @Override
+    public void updateBookmark(Bookmark bookmark) {
+        partition().updateBookmark(bookmark);
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * returns the repository of a partition, it is created if it does not yet exist.
+     *
+     * @param key
+     *         the partition key
+     * @return the repository
+     */
+    public BookmarkRepository getPartition(String key) {
+        return partitions.computeIfAbsent(Objects.requireNonNull(key), k -> {
+            LOG.info("creating bookmark partition '{}'", k);
+            return Objects.requireNonNull(partitionFactory.apply(k));
+        });
+    }
+
+    /**
+     * returns the repository of the current partition.
+     *
+     * @return the repository
+     */
+    private BookmarkRepository partition() {
+        return getPartition(getCurrentPartitionKey());
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Factory implementation, the created repository has InMemoryRepository partitions and routes all calls to the
+     * partition given by the optional first argument.
+     */
+    public static class Factory implements BookmarkRepositoryFactory {
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface BookmarkRepositoryFactory ---------------------
+
+        @Override
+        public BookmarkRepository create(String[] args) {
+            String key = (null != args && args.length > 0) ? args[0] : null;
+            return new PartitionedBookmarkRepository(partition -> new InMemoryRepository(), () -> key);
+        }
+    }
+}
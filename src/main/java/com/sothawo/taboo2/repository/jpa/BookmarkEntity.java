@@ -5,7 +5,9 @@
  */
 package com.sothawo.taboo2.repository.jpa;
 
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
@@ -56,6 +58,9 @@ public class BookmarkEntity implements Serializable {
     /** the booksmark's tag. */
     private Set<TagEntity> tags = new HashSet<>();
 
+    /** the trigrams of url and title for the search, see {@link BookmarkTrigrams}. */
+    private Set<String> trigrams = new HashSet<>();
+
 // --------------------- GETTER / SETTER METHODS ---------------------
 
     @Id
@@ -97,6 +102,17 @@ public class BookmarkEntity implements Serializable {
         this.url = url;
     }
 
+    @ElementCollection
+    @CollectionTable(name = "BOOKMARK_TRIGRAM", joinColumns = {@JoinColumn(name = "BOOKMARK_ID")})
+    @Column(name = "TRIGRAM", length = BookmarkTrigrams.LENGTH)
+    public Set<String> getTrigrams() {
+        return trigrams;
+    }
+
+    public void setTrigrams(Set<String> trigrams) {
+        this.trigrams = null != trigrams ? trigrams : new HashSet<>();
+    }
+
 // ------------------------ CANONICAL METHODS ------------------------
 
     @Override
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository.jpa;
+
+import com.sothawo.taboo2.Bookmark;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+
+/**
+ * Reads Bookmarks directly from a JDBC ResultSet which has one row per bookmark and tag as produced by {@link
+ * #SELECT_BOOKMARKS}. The rows must be ordered by the bookmark id, the rows of one bookmark are combined into one
+ * Bookmark object which is passed on as soon as it is complete, so the result set can be streamed.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+final class BookmarkRowReader {
+// ------------------------------ FIELDS ------------------------------
+
+    /**
+     * select for bookmarks with their tags, needs a where clause (optional) and an order by b.ID. The URL and TITLE
+     * columns are selected crosswise, as the BookmarkEntity stores the url in the TITLE column and the title in the URL
+     * column.
+     */
+    static final String SELECT_BOOKMARKS = "select b.ID, b.TITLE as BOOKMARK_URL, b.URL as BOOKMARK_TITLE, t.TAG " +
+            "from BOOKMARK b left join BOOKMARK_TAG bt on bt.BOOKMARK_ID = b.ID left join TAG t on t.ID = bt.TAG_ID ";
+
+    /** the order by clause needed by the reader. */
+    static final String ORDER_BY_ID = " order by b.ID";
+
+    /** the column with the title, to be used in where clauses. */
+    static final String TITLE_COLUMN = "b.URL";
+
+    /** the column with the url, to be used in where clauses. */
+    static final String URL_COLUMN = "b.TITLE";
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * reads all rows from the result set and passes the built bookmarks to the consumer.
+     *
+     * @param resultSet
+     *         the result set from a {@link #SELECT_BOOKMARKS} query
+     * @param consumer
+     *         the consumer for the bookmarks
+     * @return the number of bookmarks read
+     * @throws SQLException
+     *         on database errors
+     */
+    static int read(ResultSet resultSet, Consumer<Bookmark> consumer) throws SQLException {
+        int count = 0;
+        Bookmark bookmark = null;
+        long bookmarkId = 0;
+        while (resultSet.next()) {
+            long id = resultSet.getLong(1);
+            if (null == bookmark || id != bookmarkId) {
+                if (null != bookmark) {
+                    consumer.accept(bookmark);
+                    count++;
+                }
+                bookmarkId = id;
+                bookmark = aBookmark()
+                        .withId(String.valueOf(id))
+                        .withUrl(resultSet.getString(2))
+                        .withTitle(resultSet.getString(3))
+                        .build();
+            }
+            String tag = resultSet.getString(4);
+            if (null != tag) {
+                bookmark.addTag(tag);
+            }
+        }
+        if (null != bookmark) {
+            consumer.accept(bookmark);
+            count++;
+        }
+        return count;
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private BookmarkRowReader() {
+    }
+}
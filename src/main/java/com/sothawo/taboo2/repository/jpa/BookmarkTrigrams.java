@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository.jpa;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits the title and url of a bookmark into the lowercase trigrams - all substrings of three characters - which are
+ * stored in the BOOKMARK_TRIGRAM table. Every substring of three or more characters of a title or url consists of
+ * trigrams of that text, so a bookmark that contains a search string has all the trigrams of the search string. The
+ * lookup of the trigrams in the index on the TRIGRAM column therefore selects a superset of the matching bookmarks,
+ * which is then checked with the substring match.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+final class BookmarkTrigrams {
+// ------------------------------ FIELDS ------------------------------
+
+    /** length of a trigram, the length of the TRIGRAM column. */
+    static final int LENGTH = 3;
+
+    /** insert statement for a trigram. */
+    static final String INSERT_TRIGRAM = "insert into BOOKMARK_TRIGRAM (BOOKMARK_ID, TRIGRAM) values (?, ?)";
+
+    /** condition for one trigram of the search string, needs the trigram as parameter. */
+    private static final String TRIGRAM_CONDITION =
+            "b.ID in (select t.BOOKMARK_ID from BOOKMARK_TRIGRAM t where t.TRIGRAM = ?)";
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * adds the parameters for the condition built by {@link #conditions(Set)} to a parameter list.
+     *
+     * @param searchTrigrams
+     *         the trigrams of the search string
+     * @param parameters
+     *         the parameter list
+     */
+    static void addParameters(Set<String> searchTrigrams, List<Object> parameters) {
+        parameters.addAll(searchTrigrams);
+    }
+
+    /**
+     * builds the where condition for the trigrams of a search string, one subquery for each trigram combined with and.
+     *
+     * @param searchTrigrams
+     *         the trigrams of the search string
+     * @return the condition
+     */
+    static String conditions(Set<String> searchTrigrams) {
+        return String.join(" and ", Collections.nCopies(searchTrigrams.size(), TRIGRAM_CONDITION));
+    }
+
+    /**
+     * splits texts into trigrams.
+     *
+     * @param texts
+     *         the texts, null values are ignored
+     * @return the distinct lowercase trigrams in the order of their first occurrence
+     */
+    static Set<String> of(String... texts) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (String text : texts) {
+            if (null != text) {
+                String lowerText = text.toLowerCase();
+                for (int i = 0; i + LENGTH <= lowerText.length(); i++) {
+                    trigrams.add(lowerText.substring(i, i + LENGTH));
+                }
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * returns the trigrams of a search string that are looked up. These are trigrams that do not overlap and the last
+     * one, together they cover every character of the search string; looking up the overlapping ones as well would not
+     * narrow the candidates much more.
+     *
+     * @param search
+     *         the search string
+     * @return the distinct lowercase trigrams, empty if the search string is shorter than a trigram
+     */
+    static Set<String> ofSearch(String search) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        String lowerSearch = search.toLowerCase();
+        int length = lowerSearch.length();
+        if (length >= LENGTH) {
+            for (int i = 0; i + LENGTH <= length; i += LENGTH) {
+                trigrams.add(lowerSearch.substring(i, i + LENGTH));
+            }
+            trigrams.add(lowerSearch.substring(length - LENGTH));
+        }
+        return trigrams;
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private BookmarkTrigrams() {
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2015 sothawo
+ *
+ * http://www.sothawo.com
+ */
+package com.sothawo.taboo2.repository.jpa;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Liquibase change that fills the BOOKMARK_TRIGRAM table for the existing bookmarks. Used once by the changeset that
+ * creates the table, afterwards the trigrams are maintained by the H2Repository.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class BookmarkTrigramsChange implements CustomTaskChange {
+// ------------------------------ FIELDS ------------------------------
+
+    /** number of inserts sent in one batch. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** number of trigrams inserted. */
+    private int count;
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface CustomChange ---------------------
+
+    @Override
+    public String getConfirmationMessage() {
+        return "inserted " + count + " bookmark trigrams";
+    }
+
+    @Override
+    public void setUp() {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        return new ValidationErrors();
+    }
+
+// --------------------- Interface CustomTaskChange ---------------------
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+        // the BOOKMARK table has the url in the TITLE column and the title in the URL column
+        try (Statement select = connection.createStatement();
+             ResultSet resultSet = select.executeQuery("select ID, TITLE, URL from BOOKMARK");
+             PreparedStatement insert = connection.prepareStatement(BookmarkTrigrams.INSERT_TRIGRAM)) {
+            while (resultSet.next()) {
+                long id = resultSet.getLong(1);
+                for (String trigram : BookmarkTrigrams.of(resultSet.getString(3), resultSet.getString(2))) {
+                    insert.setLong(1, id);
+                    insert.setString(2, trigram);
+                    insert.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+        } catch (SQLException e) {
+            throw new CustomChangeException("filling BOOKMARK_TRIGRAM", e);
+        }
+    }
+}
@@ -5,6 +5,8 @@
  */
 package com.sothawo.taboo2.repository.jpa;
 
+import com.sothawo.taboo2.Metrics;
+
 import javax.persistence.EntityManager;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
@@ -33,14 +35,21 @@ public interface EntityManagerAutoCloseable extends EntityManager, AutoCloseable
                 new Class<?>[]{EntityManagerAutoCloseable.class},
                 new InvocationHandler() {
                     private EntityManager em;
+                    private long created;
 
                     @Override
                     public Object invoke(Object proxy1, Method method, Object[] args) throws Throwable {
-                        return method.invoke(em, args);
+                        Object result = method.invoke(em, args);
+                        // record the time the EntityManager was open
+                        if ("close".equals(method.getName())) {
+                            Metrics.JPA_ENTITY_MANAGER_OPEN.observe(Metrics.secondsSince(created));
+                        }
+                        return result;
                     }
 
                     private InvocationHandler init(EntityManager em) {
                         this.em = em;
+                        this.created = System.nanoTime();
                         return this;
                     }
                 }.init(em));
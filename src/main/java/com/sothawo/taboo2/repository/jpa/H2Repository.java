@@ -5,13 +5,26 @@
  */
 package com.sothawo.taboo2.repository.jpa;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
 import com.sothawo.taboo2.AlreadyExistsException;
 import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.ImportResult;
+import com.sothawo.taboo2.Metrics;
 import com.sothawo.taboo2.NotFoundException;
 import com.sothawo.taboo2.repository.AbstractBookmarkRepository;
+import com.sothawo.taboo2.repository.BitmapTagIndex;
 import com.sothawo.taboo2.repository.BookmarkRepository;
 import com.sothawo.taboo2.repository.BookmarkRepositoryFactory;
+import com.sothawo.taboo2.repository.PageCursor;
 import org.slf4j.Logger;
+import org.hibernate.Session;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityTransaction;
@@ -22,16 +35,26 @@ import javax.persistence.TypedQuery;
 import javax.persistence.spi.PersistenceProvider;
 import javax.persistence.spi.PersistenceProviderResolver;
 import javax.persistence.spi.PersistenceProviderResolverHolder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
@@ -50,9 +73,49 @@ public class H2Repository extends AbstractBookmarkRepository {
     /** Logger. */
     private final static Logger LOG = LoggerFactory.getLogger(H2Repository.class);
 
+    /** max number of ids in a single query when loading bookmarks by id. */
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    /** number of bookmarks that are imported in one transaction. */
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+
+    /** number of rows fetched at once when streaming bookmarks. */
+    private static final int DUMP_FETCH_SIZE = 500;
+
+    /** number of lock stripes for the id locks. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** substring match on title and url, needs the lowercase search pattern twice as parameter. */
+    private static final String TITLE_OR_URL_LIKE =
+            "(lower(" + BookmarkRowReader.TITLE_COLUMN + ") like ? escape '\\'" +
+                    " or lower(" + BookmarkRowReader.URL_COLUMN + ") like ? escape '\\')";
+
     /** Entity Manager Factory, autocloseable variant */
     private EntityManagerFactoryAutoCloseable emf;
 
+    /**
+     * cached tag postings for the tag queries, loaded on first use and then kept up to date by the write operations of
+     * this repository; the database is used by this process only. Loading and updating is synchronized on the index.
+     */
+    private final BitmapTagIndex tagIndex = new BitmapTagIndex();
+
+    /** flag whether the tag index has been loaded. */
+    private volatile boolean tagIndexLoaded = false;
+
+    /**
+     * locks for the changes of bookmarks, striped by bookmark id. Updates and deletes hold them from the start of the
+     * transaction, creates and imports from the moment the new ids are known, which is before the commit, until the
+     * change is recorded. So the changes of the same bookmark reach the tag index and the change log in the order of
+     * their commits.
+     */
+    private final Striped<Lock> idLocks = Striped.lock(LOCK_STRIPES);
+
+    /**
+     * write operations share the read lock, purge needs the write lock, so that no change committed before a purge is
+     * recorded after it.
+     */
+    private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
+
 // -------------------------- STATIC METHODS --------------------------
 
     static {
@@ -120,6 +183,8 @@ public class H2Repository extends AbstractBookmarkRepository {
             throw new IllegalArgumentException();
         }
 
+        Lock idLock = null;
+        purgeLock.readLock().lock();
         try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
             // search existing
             List resultList = em.createNamedQuery(BookmarkEntity.BOOKMARK_BY_URL).setParameter("url", bookmark.getUrl())
@@ -136,7 +201,7 @@ public class H2Repository extends AbstractBookmarkRepository {
             BookmarkEntity bookmarkEntity = new BookmarkEntity();
             bookmarkEntity.setUrl(bookmark.getUrl());
             bookmarkEntity.setTitle(bookmark.getTitle());
-
+            bookmarkEntity.setTrigrams(BookmarkTrigrams.of(bookmark.getTitle(), bookmark.getUrl()));
 
             // build the TagEntities
             TypedQuery<TagEntity> findTagQuery =
@@ -158,20 +223,39 @@ public class H2Repository extends AbstractBookmarkRepository {
             em.persist(bookmarkEntity);
             em.flush();
 
-            tx.commit();
+            // the id is known now, no other transaction sees the bookmark before the commit
+            idLock = idLocks.get(bookmarkEntity.getId());
+            idLock.lock();
+            commit(tx);
 
-            return bookmarkFromEntity(bookmarkEntity);
+            Bookmark createdBookmark = bookmarkFromEntity(bookmarkEntity);
+            updateTagIndex(bookmarkEntity.getId(), Collections.emptySet(), createdBookmark.getTags());
+            recordChange(Change.Type.CREATED, createdBookmark.getId(), createdBookmark);
+            return createdBookmark;
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             LOG.error("db error on creating bookmark", e);
             return null;
+        } finally {
+            if (null != idLock) {
+                idLock.unlock();
+            }
+            purgeLock.readLock().unlock();
         }
     }
 
     @Override
     public void deleteBookmark(String id) {
-        try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
-            Long bookmarkId = Long.valueOf(id);
+        Long bookmarkId;
+        try {
+            bookmarkId = Long.valueOf(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("non numeric id");
+        }
 
+        Lock idLock = idLocks.get(bookmarkId);
+        purgeLock.readLock().lock();
+        idLock.lock();
+        try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
             EntityTransaction tx = em.getTransaction();
             tx.begin();
 
@@ -180,6 +264,8 @@ public class H2Repository extends AbstractBookmarkRepository {
                 throw new NotFoundException("no bookmark with id " + id);
             }
 
+            Set<String> previousTags = bookmarkEntity.getTags().stream().map(TagEntity::getTag)
+                    .collect(Collectors.toSet());
             for (TagEntity tagEntity : bookmarkEntity.getTags()) {
                 Set<BookmarkEntity> tagBookmarks = tagEntity.getBookmarks();
                 tagEntity.getBookmarks().remove(bookmarkEntity);
@@ -189,25 +275,54 @@ public class H2Repository extends AbstractBookmarkRepository {
             }
             em.remove(bookmarkEntity);
 
-            tx.commit();
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("non numeric id");
+            commit(tx);
+            updateTagIndex(bookmarkId, previousTags, Collections.emptySet());
+            recordChange(Change.Type.DELETED, id, null);
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             LOG.error("db error on deleting bookmark", e);
+        } finally {
+            idLock.unlock();
+            purgeLock.readLock().unlock();
         }
     }
 
+    /**
+     * streams the bookmarks from a forward only result set. The query is executed lazily by H2, so the rows are read
+     * from the database as they are consumed and not materialized in memory first.
+     *
+     * @param consumer
+     *         the consumer for the bookmarks
+     */
     @Override
-    public Collection<Bookmark> getAllBookmarks() {
+    public void dumpBookmarks(Consumer<Bookmark> consumer) {
         try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
-            Set<Bookmark> bookmarks = em
-                    .createNamedQuery(BookmarkEntity.ALL_BOOKMARKS, BookmarkEntity.class)
-                    .getResultList()
-                    .stream()
-                    .map(this::bookmarkFromEntity)
-                    .collect(Collectors.toSet());
+            em.unwrap(Session.class).doWork(connection -> {
+                try (Statement settings = connection.createStatement()) {
+                    settings.execute("set LAZY_QUERY_EXECUTION TRUE");
+                    try (PreparedStatement statement = connection.prepareStatement(BookmarkRowReader.SELECT_BOOKMARKS
+                            + BookmarkRowReader.ORDER_BY_ID, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                        statement.setFetchSize(DUMP_FETCH_SIZE);
+                        try (ResultSet resultSet = statement.executeQuery()) {
+                            int count = BookmarkRowReader.read(resultSet, bookmark -> {
+                                bookmark.setId(null);
+                                consumer.accept(bookmark);
+                            });
+                            LOG.info("dumped {} bookmarks", count);
+                        }
+                    } finally {
+                        settings.execute("set LAZY_QUERY_EXECUTION FALSE");
+                    }
+                }
+            });
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            LOG.error("db error on dumping bookmarks", e);
+        }
+    }
 
-            return bookmarks;
+    @Override
+    public Collection<Bookmark> getAllBookmarks() {
+        try {
+            return queryBookmarks(BookmarkRowReader.SELECT_BOOKMARKS + BookmarkRowReader.ORDER_BY_ID);
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             LOG.error("db error on getting all bookmarks", e);
             return Collections.emptySet();
@@ -232,38 +347,137 @@ public class H2Repository extends AbstractBookmarkRepository {
 
     @Override
     public Bookmark getBookmarkById(String id) {
-        try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
-            Optional<Bookmark> bookmarkOptional =
-                    Optional.ofNullable(em.find(BookmarkEntity.class, Long.valueOf(id)))
-                            .map(this::bookmarkFromEntity);
-            return bookmarkOptional.orElseThrow(() -> new NotFoundException("no bookmark with id " + id));
+        try {
+            Long bookmarkId = Long.valueOf(id);
+            return queryBookmarks(BookmarkRowReader.SELECT_BOOKMARKS + "where b.ID = ?" +
+                    BookmarkRowReader.ORDER_BY_ID, bookmarkId)
+                    .stream()
+                    .findFirst()
+                    .orElseThrow(() -> new NotFoundException("no bookmark with id " + id));
         } catch (Exception e) {
             throw new NotFoundException("no bookmark with id " + id, e);
         }
     }
 
+    /**
+     * returns a page of bookmarks. Without tags the page is selected in the database by the id range; with tags the
+     * candidate ids are taken in order from the cached tag index and loaded in chunks until the page is full.
+     *
+     * @see BookmarkRepository#getBookmarksPage(Collection, boolean, String, String, int)
+     */
+    @Override
+    public BookmarksPage getBookmarksPage(Collection<String> tags, boolean opAnd, String s, String cursor, int limit) {
+        checkPageLimit(limit);
+        final long after = PageCursor.decode(cursor);
+        try {
+            List<Bookmark> page;
+            if (null == tags) {
+                List<Object> parameters = new ArrayList<>();
+                parameters.add(after);
+                String pageIds = "select b.ID from BOOKMARK b where b.ID > ?" +
+                        ((null == s) ? "" : " and " + searchCondition(s, parameters)) +
+                        BookmarkRowReader.ORDER_BY_ID + " limit ?";
+                parameters.add(limit);
+                page = queryBookmarks(BookmarkRowReader.SELECT_BOOKMARKS + "where b.ID in (" + pageIds + ')' +
+                        BookmarkRowReader.ORDER_BY_ID, parameters.toArray());
+            } else {
+                ensureTagIndexLoaded();
+                page = queryPageWithIdsFrom(tagIndex.find(tags, opAnd), after, s, limit);
+            }
+            return pageOf(page, limit);
+        } catch (IllegalStateException | PersistenceException e) {
+            LOG.error("db error on getting a page of bookmarks", e);
+            return new BookmarksPage(Collections.emptyList(), null);
+        }
+    }
+
+    /**
+     * returns the bookmarks where the title or the url contains the search string, case insensitive. The candidates are
+     * looked up by the trigrams of the search string in the indexed BOOKMARK_TRIGRAM table.
+     *
+     * @param s
+     *         the search string
+     * @return the found bookmarks
+     */
     @Override
     public Collection<Bookmark> getBookmarksWithSearch(String s) {
-        try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
+        try {
             if (null == s || s.isEmpty()) {
                 throw new IllegalArgumentException("empty search string");
             }
-            Set<Bookmark> bookmarks = em
-                    .createNamedQuery(BookmarkEntity.BOOKMARKS_WITH_TITLE, BookmarkEntity.class)
-                    .setParameter("s", '%' + s + '%')
-                    .getResultList()
-                    .stream()
-                    .map(this::bookmarkFromEntity)
-                    .collect(Collectors.toSet());
-            return bookmarks;
+            List<Object> parameters = new ArrayList<>();
+            return queryBookmarks(BookmarkRowReader.SELECT_BOOKMARKS + "where " + searchCondition(s, parameters) +
+                    BookmarkRowReader.ORDER_BY_ID, parameters.toArray());
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             LOG.error("db error on getting bookmarks with search string", e);
             return Collections.emptySet();
         }
     }
 
+    /**
+     * returns the bookmarks for a tag combination. The combination is evaluated on the cached bitmap tag index, only
+     * the found bookmarks are loaded from the database.
+     *
+     * @param tags
+     *         the tags to be searched
+     * @param opAnd
+     *         if true, the tags are to be combined using AND, otherwise OR
+     * @return the found bookmarks
+     */
+    @Override
+    public Collection<Bookmark> getBookmarksWithTags(Collection<String> tags, boolean opAnd) {
+        try {
+            ensureTagIndexLoaded();
+            RoaringBitmap docs = tagIndex.find(tags, opAnd);
+            return loadBookmarks(docs);
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            LOG.error("db error on getting bookmarks with tags", e);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * counts on the tag index. With a search string, the ids of the matching bookmarks are selected from the database
+     * and intersected with the tag selection, the bookmarks are not loaded.
+     *
+     * @see BookmarkRepository#getTagCounts(Collection, boolean, String)
+     */
+    @Override
+    public Map<String, Integer> getTagCounts(Collection<String> tags, boolean opAnd, String s) {
+        try {
+            ensureTagIndexLoaded();
+            RoaringBitmap docs = (null == tags) ? null : tagIndex.find(tags, opAnd);
+            if (null != s) {
+                RoaringBitmap found = querySearchDocs(s);
+                docs = (null == docs) ? found : RoaringBitmap.and(docs, found);
+            }
+            return tagIndex.counts(docs);
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            LOG.error("db error on counting tags", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * imports the bookmarks in chunks. Each chunk is written with JDBC batch inserts in one transaction; the existing
+     * urls and tags of a chunk are selected with one query each. If a chunk fails - for example because a bookmark with
+     * one of the urls was created concurrently - the bookmarks of that chunk are created one by one.
+     *
+     * @see BookmarkRepository#importBookmarks(Collection)
+     */
+    @Override
+    public ImportResult importBookmarks(Collection<Bookmark> bookmarks) {
+        checkImportBookmarks(bookmarks);
+        ImportResult result = new ImportResult(0, Collections.emptyList());
+        for (List<Bookmark> chunk : Iterables.partition(bookmarks, IMPORT_CHUNK_SIZE)) {
+            result = result.plus(importChunk(chunk));
+        }
+        return result;
+    }
+
     @Override
     public void purge() {
+        purgeLock.writeLock().lock();
         try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
             EntityTransaction tx = em.getTransaction();
             tx.begin();
@@ -271,9 +485,31 @@ public class H2Repository extends AbstractBookmarkRepository {
             em.createQuery("delete from BookmarkEntity b").executeUpdate();
             em.createQuery("delete from TagEntity t").executeUpdate();
 
-            tx.commit();
+            commit(tx);
+            synchronized (tagIndex) {
+                tagIndex.clear();
+            }
+            recordChange(Change.Type.PURGED, null, null);
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             LOG.error("db error on purging data", e);
+        } finally {
+            purgeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * returns the tags for a prefix from the tag index, ranked by the number of bookmarks having them.
+     *
+     * @see BookmarkRepository#suggestTags(String, int)
+     */
+    @Override
+    public List<String> suggestTags(String prefix, int limit) {
+        try {
+            ensureTagIndexLoaded();
+            return tagIndex.suggest(prefix, limit);
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            LOG.error("db error on suggesting tags", e);
+            return Collections.emptyList();
         }
     }
 
@@ -290,6 +526,9 @@ public class H2Repository extends AbstractBookmarkRepository {
             throw new NotFoundException("no bookmark with id " + bookmark.getId());
         }
 
+        Lock idLock = idLocks.get(updateBookmarkId);
+        purgeLock.readLock().lock();
+        idLock.lock();
         try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
             EntityTransaction tx = em.getTransaction();
             tx.begin();
@@ -315,9 +554,14 @@ public class H2Repository extends AbstractBookmarkRepository {
             }
             bookmarkEntity.setUrl(bookmark.getUrl());
             bookmarkEntity.setTitle(bookmark.getTitle());
+            Set<String> trigrams = BookmarkTrigrams.of(bookmark.getTitle(), bookmark.getUrl());
+            bookmarkEntity.getTrigrams().retainAll(trigrams);
+            bookmarkEntity.getTrigrams().addAll(trigrams);
 
             // keep the old tags
             Set<TagEntity> previousTagEntities = new HashSet<>(bookmarkEntity.getTags());
+            Set<String> previousTags = previousTagEntities.stream().map(TagEntity::getTag)
+                    .collect(Collectors.toSet());
 
             // build the new TagEntities
             TypedQuery<TagEntity> findTagQuery =
@@ -352,9 +596,14 @@ public class H2Repository extends AbstractBookmarkRepository {
 
             em.merge(bookmarkEntity);
 
-            tx.commit();
+            commit(tx);
+            updateTagIndex(updateBookmarkId, previousTags, bookmark.getTags());
+            recordChange(Change.Type.UPDATED, bookmark.getId(), bookmark);
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             LOG.error("db error on updating bookmark", e);
+        } finally {
+            idLock.unlock();
+            purgeLock.readLock().unlock();
         }
     }
 
@@ -379,25 +628,397 @@ public class H2Repository extends AbstractBookmarkRepository {
         return createdBookmark;
     }
 
-    @Override
-    protected Set<Bookmark> getBookmarksWithTag(String tag) {
-        Set<Bookmark> bookmarks = new HashSet<>();
+    /**
+     * commits a transaction and records the duration of the commit.
+     *
+     * @param tx
+     *         the transaction
+     */
+    private static void commit(EntityTransaction tx) {
+        long start = System.nanoTime();
+        try {
+            tx.commit();
+        } finally {
+            Metrics.JPA_COMMIT.observe(Metrics.secondsSince(start));
+        }
+    }
+
+    /**
+     * converts a database id to the document id used in the tag index.
+     *
+     * @param id
+     *         database id
+     * @return document id
+     */
+    private static int docId(Long id) {
+        return Math.toIntExact(id);
+    }
+
+    /**
+     * loads the tag index from the database if this has not been done yet.
+     */
+    private void ensureTagIndexLoaded() {
+        if (tagIndexLoaded) {
+            return;
+        }
+        synchronized (tagIndex) {
+            if (!tagIndexLoaded) {
+                try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
+                    tagIndex.clear();
+                    List<Object[]> rows = em
+                            .createQuery("select b.id, t.tag from BookmarkEntity b join b.tags t", Object[].class)
+                            .getResultList();
+                    for (Object[] row : rows) {
+                        tagIndex.add(docId((Long) row[0]), Collections.singleton((String) row[1]));
+                    }
+                    tagIndexLoaded = true;
+                    LOG.info("loaded tag index with {} bookmark/tag entries", rows.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * imports a chunk of bookmarks in one transaction.
+     *
+     * @param chunk
+     *         the bookmarks
+     * @return the import result
+     */
+    private ImportResult importChunk(List<Bookmark> chunk) {
+        // the first bookmark with an url wins, the following are conflicts
+        Map<String, Bookmark> bookmarksByUrl = new LinkedHashMap<>();
+        List<String> conflicts = new ArrayList<>();
+        for (Bookmark bookmark : chunk) {
+            if (null != bookmarksByUrl.putIfAbsent(bookmark.getUrl(), bookmark)) {
+                conflicts.add(bookmark.getUrl());
+            }
+        }
+
+        purgeLock.readLock().lock();
         try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
-            em.createNamedQuery(TagEntity.FIND_BY_TAG, TagEntity.class)
-                    .setParameter("tag", tag)
-                    .getSingleResult()
-                    .getBookmarks()
-                    .stream()
-                    .map(this::bookmarkFromEntity)
-                    .forEach(bookmarks::add);
-        } catch (NoResultException ignored) {
-            // ignore
-        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
-            LOG.error("db error on getting tag", e);
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+            List<Lock> chunkLocks = Collections.emptyList();
+            try {
+                Map<Long, Bookmark> createdBookmarks = em.unwrap(Session.class)
+                        .doReturningWork(connection -> insertChunk(connection, bookmarksByUrl, conflicts));
+                // bulkGet returns the locks in a fixed order, so concurrent imports cannot deadlock
+                chunkLocks = ImmutableList.copyOf(idLocks.bulkGet(createdBookmarks.keySet()));
+                chunkLocks.forEach(Lock::lock);
+                commit(tx);
+                createdBookmarks.forEach((id, bookmark) -> {
+                    updateTagIndex(id, Collections.emptySet(), bookmark.getTags());
+                    Bookmark createdBookmark = bookmark.clone();
+                    createdBookmark.setId(id.toString());
+                    recordChange(Change.Type.CREATED, createdBookmark.getId(), createdBookmark);
+                });
+                return new ImportResult(createdBookmarks.size(), conflicts);
+            } catch (IllegalStateException | PersistenceException e) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+                LOG.warn("db error on batch import, importing bookmarks one by one", e);
+            } finally {
+                Lists.reverse(chunkLocks).forEach(Lock::unlock);
+            }
+        } finally {
+            purgeLock.readLock().unlock();
+        }
+        return super.importBookmarks(chunk);
+    }
+
+    /**
+     * inserts the bookmarks of a chunk with batch statements. The urls that already exist are removed from the map and
+     * added to the conflicts.
+     *
+     * @param connection
+     *         the connection with the open transaction
+     * @param bookmarksByUrl
+     *         the bookmarks to insert by url
+     * @param conflicts
+     *         the list for the conflicting urls
+     * @return map from the ids of the inserted bookmarks to the bookmarks
+     * @throws SQLException
+     *         on database errors
+     */
+    private static Map<Long, Bookmark> insertChunk(Connection connection, Map<String, Bookmark> bookmarksByUrl,
+                                                   List<String> conflicts) throws SQLException {
+        String selectBookmarkIds = "select b.ID, " + BookmarkRowReader.URL_COLUMN + " from BOOKMARK b where " +
+                BookmarkRowReader.URL_COLUMN + " in ";
+        for (String url : queryIds(connection, selectBookmarkIds, bookmarksByUrl.keySet()).keySet()) {
+            bookmarksByUrl.remove(url);
+            conflicts.add(url);
+        }
+        if (bookmarksByUrl.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        // resolve the tags and insert the missing ones
+        Set<String> tags = bookmarksByUrl.values().stream()
+                .flatMap(bookmark -> bookmark.getTags().stream())
+                .collect(Collectors.toSet());
+        String selectTagIds = "select t.ID, t.TAG from TAG t where t.TAG in ";
+        Map<String, Long> tagIds = queryIds(connection, selectTagIds, tags);
+        Set<String> newTags = new HashSet<>(tags);
+        newTags.removeAll(tagIds.keySet());
+        if (!newTags.isEmpty()) {
+            try (PreparedStatement statement = connection.prepareStatement("insert into TAG (TAG) values (?)")) {
+                for (String tag : newTags) {
+                    statement.setString(1, tag);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            tagIds.putAll(queryIds(connection, selectTagIds, newTags));
+        }
+
+        // the BOOKMARK table has the url in the TITLE column and the title in the URL column
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into BOOKMARK (TITLE, URL) values (?, ?)")) {
+            for (Bookmark bookmark : bookmarksByUrl.values()) {
+                statement.setString(1, bookmark.getUrl());
+                statement.setString(2, bookmark.getTitle());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        Map<String, Long> bookmarkIds = queryIds(connection, selectBookmarkIds, bookmarksByUrl.keySet());
+
+        Map<Long, Bookmark> createdBookmarks = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into BOOKMARK_TAG (BOOKMARK_ID, TAG_ID) values (?, ?)")) {
+            for (Bookmark bookmark : bookmarksByUrl.values()) {
+                Long bookmarkId = bookmarkIds.get(bookmark.getUrl());
+                createdBookmarks.put(bookmarkId, bookmark);
+                for (String tag : bookmark.getTags()) {
+                    statement.setLong(1, bookmarkId);
+                    statement.setLong(2, tagIds.get(tag));
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(BookmarkTrigrams.INSERT_TRIGRAM)) {
+            for (Bookmark bookmark : bookmarksByUrl.values()) {
+                for (String trigram : BookmarkTrigrams.of(bookmark.getTitle(), bookmark.getUrl())) {
+                    statement.setLong(1, bookmarkIds.get(bookmark.getUrl()));
+                    statement.setString(2, trigram);
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+        return createdBookmarks;
+    }
+
+    /**
+     * loads the bookmarks with the given ids from the database. The ids are passed in chunks, so the number of queries
+     * only depends on the number of ids.
+     *
+     * @param docs
+     *         the ids of the bookmarks
+     * @return the bookmarks
+     */
+    private Collection<Bookmark> loadBookmarks(RoaringBitmap docs) {
+        List<Bookmark> bookmarks = new ArrayList<>(docs.getCardinality());
+        List<Object> ids = new ArrayList<>(MAX_IDS_PER_QUERY);
+        for (int doc : docs) {
+            ids.add((long) doc);
+            if (ids.size() == MAX_IDS_PER_QUERY) {
+                bookmarks.addAll(queryBookmarksWithIds(ids, null));
+                ids.clear();
+            }
+        }
+        if (!ids.isEmpty()) {
+            bookmarks.addAll(queryBookmarksWithIds(ids, null));
         }
         return bookmarks;
     }
 
+    /**
+     * runs a bookmark query with plain JDBC on a connection of the entity manager. The query must be built from {@link
+     * BookmarkRowReader#SELECT_BOOKMARKS}, so that bookmarks and tags are loaded in one round trip.
+     *
+     * @param sql
+     *         the query
+     * @param parameters
+     *         the query parameters
+     * @return the bookmarks
+     */
+    private List<Bookmark> queryBookmarks(String sql, Object... parameters) {
+        try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
+            return em.unwrap(Session.class).doReturningWork(connection -> {
+                List<Bookmark> bookmarks = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for (int i = 0; i < parameters.length; i++) {
+                        statement.setObject(i + 1, parameters[i]);
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        BookmarkRowReader.read(resultSet, bookmarks::add);
+                    }
+                }
+                return bookmarks;
+            });
+        }
+    }
+
+    /**
+     * loads the bookmarks with the given ids.
+     *
+     * @param ids
+     *         the ids
+     * @param search
+     *         optional search string, may be null
+     * @return the bookmarks
+     */
+    private List<Bookmark> queryBookmarksWithIds(List<Object> ids, String search) {
+        String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+        List<Object> parameters = new ArrayList<>(ids);
+        return queryBookmarks(BookmarkRowReader.SELECT_BOOKMARKS + "where b.ID in (" + placeholders + ')' +
+                ((null == search) ? "" : " and " + searchCondition(search, parameters)) +
+                BookmarkRowReader.ORDER_BY_ID, parameters.toArray());
+    }
+
+    /**
+     * selects the ids for a set of values. The query must select the id and the value and end with an IN operator
+     * without the value list; it is executed in chunks of {@link #MAX_IDS_PER_QUERY} values.
+     *
+     * @param connection
+     *         the connection
+     * @param sql
+     *         the query
+     * @param values
+     *         the values
+     * @return map from the found values to their ids
+     * @throws SQLException
+     *         on database errors
+     */
+    private static Map<String, Long> queryIds(Connection connection, String sql, Collection<String> values)
+            throws SQLException {
+        Map<String, Long> ids = new HashMap<>();
+        for (List<String> chunk : Iterables.partition(values, MAX_IDS_PER_QUERY)) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    sql + '(' + String.join(",", Collections.nCopies(chunk.size(), "?")) + ')')) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        ids.put(resultSet.getString(2), resultSet.getLong(1));
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * loads a page of the bookmarks with the given ids starting after a given id. Without a search string only as many
+     * ids as needed for the page are loaded, with a search string the ids are loaded in chunks until the page is full.
+     *
+     * @param docs
+     *         the candidate ids
+     * @param after
+     *         the id after which the page starts
+     * @param search
+     *         optional search string, may be null
+     * @param limit
+     *         the size of the page
+     * @return the bookmarks of the page
+     */
+    private List<Bookmark> queryPageWithIdsFrom(RoaringBitmap docs, long after, String search, int limit) {
+        List<Bookmark> page = new ArrayList<>();
+        if (after >= Integer.MAX_VALUE) {
+            return page;
+        }
+        PeekableIntIterator iterator = docs.getIntIterator();
+        iterator.advanceIfNeeded((int) Math.max(after + 1, 0));
+        List<Object> ids = new ArrayList<>();
+        while (iterator.hasNext() && page.size() < limit) {
+            int needed = limit - page.size();
+            int chunkSize = (null == search) ? Math.min(needed, MAX_IDS_PER_QUERY) : MAX_IDS_PER_QUERY;
+            ids.clear();
+            while (iterator.hasNext() && ids.size() < chunkSize) {
+                ids.add((long) iterator.next());
+            }
+            List<Bookmark> found = queryBookmarksWithIds(ids, search);
+            page.addAll(found.subList(0, Math.min(found.size(), needed)));
+        }
+        return page;
+    }
+
+    /**
+     * selects the ids of the bookmarks matching a search string.
+     *
+     * @param search
+     *         the search string
+     * @return the ids as tag index documents
+     */
+    private RoaringBitmap querySearchDocs(String search) {
+        List<Object> parameters = new ArrayList<>();
+        String sql = "select b.ID from BOOKMARK b where " + searchCondition(search, parameters);
+        try (EntityManagerAutoCloseable em = (EntityManagerAutoCloseable) emf.createEntityManager()) {
+            return em.unwrap(Session.class).doReturningWork(connection -> {
+                RoaringBitmap docs = new RoaringBitmap();
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for (int i = 0; i < parameters.size(); i++) {
+                        statement.setObject(i + 1, parameters.get(i));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            docs.add(docId(resultSet.getLong(1)));
+                        }
+                    }
+                }
+                return docs;
+            });
+        }
+    }
+
+    /**
+     * builds the where condition for a search string and adds its parameters. The trigrams of the search string are
+     * looked up in the trigram table, which selects the candidates by index; the substring match on title and url
+     * decides. A search string shorter than a trigram is only matched as substring, which scans the table.
+     *
+     * @param search
+     *         the search string
+     * @param parameters
+     *         the parameter list to add to
+     * @return the condition
+     */
+    private static String searchCondition(String search, List<Object> parameters) {
+        Set<String> searchTrigrams = BookmarkTrigrams.ofSearch(search);
+        BookmarkTrigrams.addParameters(searchTrigrams, parameters);
+        String pattern = '%' + search.toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + '%';
+        parameters.add(pattern);
+        parameters.add(pattern);
+        return searchTrigrams.isEmpty() ? TITLE_OR_URL_LIKE :
+                BookmarkTrigrams.conditions(searchTrigrams) + " and " + TITLE_OR_URL_LIKE;
+    }
+
+    /**
+     * updates the tag index after a committed change of a bookmark's tags. Nothing needs to be done when the index is
+     * not yet loaded, it will contain the change when it is loaded. Updates and deletes call this while holding the id
+     * lock of the bookmark, so that the deltas of one bookmark are applied in the order of the commits.
+     *
+     * @param id
+     *         the id of the bookmark
+     * @param previousTags
+     *         the tags the bookmark had before the change
+     * @param tags
+     *         the tags the bookmark has after the change
+     */
+    private void updateTagIndex(Long id, Collection<String> previousTags, Collection<String> tags) {
+        synchronized (tagIndex) {
+            if (tagIndexLoaded) {
+                tagIndex.remove(docId(id), previousTags);
+                tagIndex.add(docId(id), tags);
+            }
+        }
+    }
+
 // -------------------------- INNER CLASSES --------------------------
 
     /**
@@ -0,0 +1,117 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.FilterChain;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the AccessLogFilter class.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class AccessLogFilterTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private final Logger accessLogger = (Logger) LoggerFactory.getLogger(AccessLogFilter.ACCESS_LOGGER);
+    private final Logger payloadLogger = (Logger) LoggerFactory.getLogger(AccessLogFilter.PAYLOAD_LOGGER);
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+
+    /** reads the request body like a controller. */
+    private final FilterChain readingChain = (request, response) ->
+            StreamUtils.copyToByteArray(request.getInputStream());
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Before
+    public void attachAppender() throws Exception {
+        appender.start();
+        accessLogger.addAppender(appender);
+        accessLogger.setLevel(Level.INFO);
+    }
+
+    @After
+    public void detachAppender() throws Exception {
+        accessLogger.detachAppender(appender);
+        accessLogger.setLevel(null);
+        payloadLogger.setLevel(null);
+    }
+
+    @Test
+    public void errorsAreLoggedWhenNotSampled() throws Exception {
+        AccessLogFilter filter = new AccessLogFilter(0, 1000);
+
+        filter.doFilter(new MockHttpServletRequest("GET", "/taboo2/bookmarks"), new MockHttpServletResponse(),
+                readingChain);
+        filter.doFilter(new MockHttpServletRequest("GET", "/taboo2/bookmarks/42"), new MockHttpServletResponse(),
+                (request, response) -> ((MockHttpServletResponse) response).setStatus(404));
+
+        assertThat(appender.list, hasSize(1));
+        assertThat(appender.list.get(0).getFormattedMessage(), containsString("uri=\"/taboo2/bookmarks/42\""));
+        assertThat(appender.list.get(0).getFormattedMessage(), containsString("status=404"));
+    }
+
+    @Test
+    public void payloadIsLoggedWhenEnabled() throws Exception {
+        payloadLogger.setLevel(Level.DEBUG);
+        AccessLogFilter filter = new AccessLogFilter(1, 10);
+
+        filter.doFilter(postRequest("{\"url\":\"http://www.sothawo.com\"}"), new MockHttpServletResponse(),
+                readingChain);
+
+        assertThat(appender.list, hasSize(1));
+        assertThat(appender.list.get(0).getFormattedMessage(), containsString("payload=\"{\\\"url\\\":\\\"ht...\""));
+    }
+
+    @Test
+    public void payloadIsNotLoggedByDefault() throws Exception {
+        payloadLogger.setLevel(Level.INFO);
+        AccessLogFilter filter = new AccessLogFilter(1, 1000);
+
+        filter.doFilter(postRequest("{\"url\":\"http://www.sothawo.com\"}"), new MockHttpServletResponse(),
+                readingChain);
+
+        assertThat(appender.list, hasSize(1));
+        assertThat(appender.list.get(0).getFormattedMessage(), containsString("method=POST"));
+        assertThat(appender.list.get(0).getFormattedMessage(), not(containsString("payload")));
+    }
+
+    private static MockHttpServletRequest postRequest(String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/taboo2/bookmarks");
+        request.setContentType("application/json");
+        request.setCharacterEncoding("UTF-8");
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
@@ -2,7 +2,9 @@ package com.sothawo.taboo2;
 
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 
 import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -34,6 +36,38 @@ public class BookmarkTest {
         assertThat(tags, hasItems("tag1", "tag2"));
     }
 
+    @Test
+    public void setTagsReplacesTags() throws Exception {
+        Bookmark bookmark = aBookmark().addTag("tag1").build();
+        bookmark.setTags(Arrays.asList("TAG2", "tag3", "tag2"));
+
+        assertThat(bookmark.getTags(), hasSize(2));
+        assertThat(bookmark.getTags(), hasItems("tag2", "tag3"));
+        assertThat(bookmark.getTags(), not(hasItem("tag1")));
+    }
+
+    @Test
+    public void tagsAreComparedAsSets() throws Exception {
+        Collection<String> tags1 = aBookmark().addTag("tag1").addTag("tag2").build().getTags();
+        Collection<String> tags2 = aBookmark().addTag("tag2").addTag("tag1").build().getTags();
+
+        assertThat(tags1, equalTo(tags2));
+        assertThat(tags1.hashCode(), is(tags2.hashCode()));
+        assertThat(tags1, equalTo(new HashSet<>(Arrays.asList("tag1", "tag2"))));
+        assertThat(tags1.hashCode(), is(new HashSet<>(Arrays.asList("tag1", "tag2")).hashCode()));
+        assertThat(tags1.containsAll(aBookmark().addTag("tag2").build().getTags()), is(true));
+        assertThat(tags1.containsAll(aBookmark().addTag("tag3").build().getTags()), is(false));
+    }
+
+    @Test
+    public void tagStringsAreShared() throws Exception {
+        // the tag stays in the dictionary as long as a bookmark uses it
+        Bookmark bookmark1 = aBookmark().addTag(new String("shared")).build();
+        Bookmark bookmark2 = aBookmark().addTag(new String("shared")).build();
+
+        assertThat(bookmark1.getTags().iterator().next(), sameInstance(bookmark2.getTags().iterator().next()));
+    }
+
     @Test
     public void twoBookmarksWithSameUrlAreEqual() throws Exception {
         Bookmark bookmark1 = aBookmark().withUrl("uurrll").build();
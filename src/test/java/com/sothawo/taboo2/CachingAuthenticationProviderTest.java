@@ -0,0 +1,114 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the CachingAuthenticationProvider class.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class CachingAuthenticationProviderTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private final AtomicInteger passwordChecks = new AtomicInteger();
+    private final AtomicLong usersVersion = new AtomicLong(1);
+    private CachingAuthenticationProvider provider;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void changedUsersInvalidateTheCache() throws Exception {
+        provider.authenticate(token("answer", "42"));
+        usersVersion.incrementAndGet();
+        provider.authenticate(token("answer", "42"));
+
+        assertThat(passwordChecks.get(), is(2));
+    }
+
+    @Test
+    public void repeatedAuthenticationIsCached() throws Exception {
+        Authentication first = provider.authenticate(token("answer", "42"));
+        Authentication second = provider.authenticate(token("answer", "42"));
+
+        assertThat(passwordChecks.get(), is(1));
+        assertThat(second.isAuthenticated(), is(true));
+        assertThat(second.getName(), is("answer"));
+        assertThat(second.getAuthorities(), is(first.getAuthorities()));
+    }
+
+    @Before
+    public void setupProvider() throws Exception {
+        InMemoryUserDetailsManager users = new InMemoryUserDetailsManager(Collections.singletonList(
+                new User("answer", new BCryptPasswordEncoder(4).encode("42"),
+                        Collections.singletonList(new SimpleGrantedAuthority("user")))));
+        DaoAuthenticationProvider passwordCheck = new DaoAuthenticationProvider();
+        passwordCheck.setUserDetailsService(users);
+        passwordCheck.setPasswordEncoder(new BCryptPasswordEncoder(4));
+        passwordCheck.afterPropertiesSet();
+        AuthenticationProvider countingCheck = new AuthenticationProvider() {
+            @Override
+            public Authentication authenticate(Authentication authentication) {
+                passwordChecks.incrementAndGet();
+                return passwordCheck.authenticate(authentication);
+            }
+
+            @Override
+            public boolean supports(Class<?> authentication) {
+                return passwordCheck.supports(authentication);
+            }
+        };
+        provider = new CachingAuthenticationProvider(countingCheck, usersVersion::get, 10, 60);
+    }
+
+    private static UsernamePasswordAuthenticationToken token(String username, String password) {
+        return new UsernamePasswordAuthenticationToken(username, password);
+    }
+
+    @Test
+    public void wrongPasswordIsNotCached() throws Exception {
+        provider.authenticate(token("answer", "42"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                provider.authenticate(token("answer", "41"));
+                fail("BadCredentialsException expected");
+            } catch (BadCredentialsException ignored) {
+            }
+        }
+
+        assertThat(passwordChecks.get(), is(3));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import com.sothawo.taboo2.repository.BookmarkRepository;
+import com.sothawo.taboo2.repository.InMemoryRepository;
+import com.sothawo.taboo2.repository.PartitionedBookmarkRepository;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the LinkChecker class with a local http server.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class LinkCheckerTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private HttpServer server;
+    private String baseUrl;
+    private BookmarkRepository repository;
+    private LinkChecker linkChecker;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void deletedBookmarksAreDroppedOnRescan() throws Exception {
+        Bookmark ok = repository.createBookmark(aBookmark().withUrl(baseUrl + "/ok").build());
+        Bookmark missing = repository.createBookmark(aBookmark().withUrl(baseUrl + "/missing").build());
+        linkChecker.scan();
+        assertThat(linkChecker.getResults(false), hasSize(2));
+
+        repository.deleteBookmark(missing.getId());
+        linkChecker.scan();
+
+        assertThat(linkChecker.getResults(false), hasSize(1));
+        assertThat(linkChecker.getResult(ok.getId()), notNullValue());
+    }
+
+    @Test
+    public void hostsAreInterleaved() throws Exception {
+        List<Bookmark> bookmarks = Arrays.asList(
+                aBookmark().withUrl("http://a.com/1").build(),
+                aBookmark().withUrl("http://a.com/2").build(),
+                aBookmark().withUrl("http://a.com/3").build(),
+                aBookmark().withUrl("http://b.com/1").build(),
+                aBookmark().withUrl("http://c.com/1").build());
+
+        List<String> urls = LinkChecker.interleaveHosts(bookmarks).stream()
+                .map(Bookmark::getUrl)
+                .collect(Collectors.toList());
+
+        assertThat(urls, is(Arrays.asList("http://a.com/1", "http://b.com/1", "http://c.com/1", "http://a.com/2",
+                "http://a.com/3")));
+    }
+
+    @Test
+    public void partitionsHaveSeparateResults() throws Exception {
+        AtomicReference<String> currentUser = new AtomicReference<>();
+        try (BookmarkRepository partitionedRepository =
+                     new PartitionedBookmarkRepository(partition -> new InMemoryRepository(), currentUser::get)) {
+            LinkChecker partitionedLinkChecker = new LinkChecker(partitionedRepository, 4, 100.0);
+            try {
+                currentUser.set("alice");
+                Bookmark ok = partitionedRepository.createBookmark(aBookmark().withUrl(baseUrl + "/ok").build());
+                currentUser.set("bob");
+                Bookmark missing =
+                        partitionedRepository.createBookmark(aBookmark().withUrl(baseUrl + "/missing").build());
+                assertThat(missing.getId(), is(ok.getId()));
+
+                // the scan runs without a current user
+                currentUser.set(null);
+                partitionedLinkChecker.scan();
+
+                assertThat(partitionedLinkChecker.getResults(false), hasSize(0));
+                currentUser.set("alice");
+                assertThat(partitionedLinkChecker.getResults(false), hasSize(1));
+                assertThat(partitionedLinkChecker.getResult(ok.getId()).getStatus(), is(200));
+                currentUser.set("bob");
+                assertThat(partitionedLinkChecker.getResults(true), hasSize(1));
+                assertThat(partitionedLinkChecker.getResult(missing.getId()).getStatus(), is(404));
+            } finally {
+                partitionedLinkChecker.close();
+            }
+        }
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void resultOfUncheckedBookmarkIsNotFound() throws Exception {
+        linkChecker.getResult("42");
+    }
+
+    @Test
+    public void scanRecordsStatus() throws Exception {
+        Bookmark ok = repository.createBookmark(aBookmark().withUrl(baseUrl + "/ok").build());
+        Bookmark missing = repository.createBookmark(aBookmark().withUrl(baseUrl + "/missing").build());
+        Bookmark noHead = repository.createBookmark(aBookmark().withUrl(baseUrl + "/nohead").build());
+        Bookmark invalid = repository.createBookmark(aBookmark().withUrl("not an url").build());
+
+        linkChecker.scan();
+
+        assertThat(linkChecker.getResult(ok.getId()).getStatus(), is(200));
+        assertThat(linkChecker.getResult(ok.getId()).isBroken(), is(false));
+        assertThat(linkChecker.getResult(missing.getId()).getStatus(), is(404));
+        assertThat(linkChecker.getResult(noHead.getId()).getStatus(), is(200));
+        assertThat(linkChecker.getResult(invalid.getId()).getStatus(), is(0));
+        assertThat(linkChecker.getResult(invalid.getId()).getError(), notNullValue());
+        assertThat(linkChecker.getResults(true), hasSize(2));
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/missing", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.createContext("/nohead", exchange -> {
+            exchange.sendResponseHeaders("HEAD".equals(exchange.getRequestMethod()) ? 405 : 200, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        repository = new InMemoryRepository();
+        linkChecker = new LinkChecker(repository, 4, 100.0);
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        linkChecker.close();
+        repository.close();
+        server.stop(0);
+    }
+}
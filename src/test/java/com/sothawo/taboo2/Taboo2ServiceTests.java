@@ -20,6 +20,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sothawo.taboo2.repository.BookmarkRepository;
 import mockit.Deencapsulation;
+import mockit.Delegate;
 import mockit.Expectations;
 import mockit.Injectable;
 import mockit.Verifications;
@@ -33,6 +34,7 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import java.util.ArrayList;
@@ -40,17 +42,24 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.endsWith;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
 
@@ -69,6 +78,10 @@ public class Taboo2ServiceTests {
 
     // couple of convenience constants
     private final static String TABOO2_BOOKMARKS = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_BOOKMARKS;
+    private final static String TABOO2_CHANGES = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_CHANGES;
+    private final static String TABOO2_IMPORT = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_IMPORT;
+    private final static String TABOO2_LINKS = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_LINKS;
+    private final static String TABOO2_METRICS = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_METRICS;
     private final static String TABOO2_DUMP_BOOKMARKS = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_DUMP_BOOKMARKS;
     private final static String TABOO2_TAGS = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_TAGS;
     private final static String TABOO2_TITLE = Taboo2Service.MAPPING_TABOO2 + Taboo2Service.MAPPING_TITLE;
@@ -285,6 +298,98 @@ public class Taboo2ServiceTests {
         }};
     }
 
+    @Test
+    public void getAllTagsSetsETag() throws Exception {
+        new Expectations() {{
+            repository.getVersion();
+            result = 42L;
+            repository.getAllTags();
+            result = Collections.singletonList("tag1");
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_TAGS).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"42\""))
+                .andExpect(jsonPath("$.*", hasSize(1)));
+    }
+
+    @Test
+    public void getAllTagsWithCurrentETagYieldsNotModified() throws Exception {
+        new Expectations() {{
+            repository.getVersion();
+            result = 42L;
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_TAGS).accept(MediaType.APPLICATION_JSON).header("If-None-Match", "\"42\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        new Verifications() {{
+            repository.getAllTags();
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void getBookmarksWithOutdatedETag() throws Exception {
+        new Expectations() {{
+            repository.getVersion();
+            result = 43L;
+            repository.getAllBookmarks();
+            result = Collections.emptyList();
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_BOOKMARKS).accept(MediaType.APPLICATION_JSON).header("If-None-Match", "\"42\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"43\""));
+
+        new Verifications() {{
+            repository.getAllBookmarks();
+            times = 1;
+        }};
+    }
+
+    @Test
+    public void getBookmarksPage() throws Exception {
+        List<Bookmark> bookmarks = createBookmarks("1", "2");
+        Collection<String> tags = Collections.singletonList("tag1");
+
+        new Expectations() {{
+            repository.getBookmarksPage(tags, true, null, "cursor1", 2);
+            result = new BookmarksPage(bookmarks, "cursor2");
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_BOOKMARKS)
+                .param("tag", "tag1")
+                .param("limit", "2")
+                .param("cursor", "cursor1")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.bookmarks", hasSize(2)))
+                .andExpect(jsonPath("$.bookmarks[0].id", is(bookmarks.get(0).getId())))
+                .andExpect(jsonPath("$.nextCursor", is("cursor2")))
+        ;
+    }
+
+    @Test
+    public void getBookmarksPageWithInvalidLimitYieldsPreconditionFailed() throws Exception {
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_BOOKMARKS)
+                .param("limit", "0")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isPreconditionFailed())
+        ;
+
+        new Verifications() {{
+            repository.getBookmarksPage((Collection<String>) any, anyBoolean, anyString, anyString, anyInt);
+            times = 0;
+        }};
+    }
+
     @Test
     public void getBookmarksWithAllTags() throws Exception {
         Bookmark bookmark = createBookmarks("2").get(0);
@@ -405,6 +510,60 @@ public class Taboo2ServiceTests {
         }};
     }
 
+    @Test
+    public void getChanges() throws Exception {
+        Bookmark bookmark = aBookmark().withId("7").withUrl("url").withTitle("title").addTag("tag").build();
+        new Expectations() {{
+            repository.getChanges(40L);
+            result = new Changes(Arrays.asList(new Change(41L, Change.Type.CREATED, "7", bookmark),
+                    new Change(42L, Change.Type.DELETED, "3", null)), 42L);
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_CHANGES).param("since", "40").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.version", is(42)))
+                .andExpect(jsonPath("$.changes", hasSize(2)))
+                .andExpect(jsonPath("$.changes[0].type", is("CREATED")))
+                .andExpect(jsonPath("$.changes[0].bookmark.url", is("url")))
+                .andExpect(jsonPath("$.changes[1].type", is("DELETED")))
+                .andExpect(jsonPath("$.changes[1].id", is("3")));
+    }
+
+    @Test
+    public void getExpiredChangesYieldsGone() throws Exception {
+        new Expectations() {{
+            repository.getChanges(anyLong);
+            result = new ChangesExpiredException("expired");
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_CHANGES).param("since", "1").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isGone());
+    }
+
+    @Test
+    public void getTagFacets() throws Exception {
+        Map<String, Integer> counts = new TreeMap<>();
+        counts.put("tag1", 2);
+        counts.put("tag2", 1);
+        new Expectations() {{
+            repository.getTagCounts(Collections.singletonList("tag1"), false, "search");
+            result = counts;
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_TAGS + "/facets")
+                .param("tag", "tag1")
+                .param("op", "or")
+                .param("search", "search")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.tag1", is(2)))
+                .andExpect(jsonPath("$.tag2", is(1)))
+        ;
+    }
+
     @Test
     public void getExistingBookmark() throws Exception {
         final Bookmark bookmark = createBookmarks("11").get(0);
@@ -427,6 +586,26 @@ public class Taboo2ServiceTests {
         }};
     }
 
+    @Test
+    public void getLinkStatusOfUncheckedBookmarkYieldsNotFound() throws Exception {
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_LINKS + "/{id}", 11).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotFound())
+        ;
+    }
+
+    @Test
+    public void getMetrics() throws Exception {
+        Metrics.REQUEST_LATENCY.labels("getMetrics").observe(0.1);
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_METRICS).accept(MediaType.TEXT_PLAIN))
+                .andExpect(status().isOk())
+                .andExpect(content().string(
+                        containsString("taboo2_http_request_seconds_count{handler=\"getMetrics\"")))
+        ;
+    }
+
     @Test
     public void getNotExistingBookmarkYieldsNotFound() throws Exception {
         new Expectations() {{
@@ -449,16 +628,155 @@ public class Taboo2ServiceTests {
      * set up the Service to be tested from the WebApplication context and replace the contained BookmarkRepository with
      * a mock. Must be called before each test, as JMockit creates the repository for each test call.
      */
+    @Test
+    public void importBookmarksFromJsonArray() throws Exception {
+        List<Bookmark> bookmarks = createBookmarks("1", "2");
+        bookmarks.forEach(bookmark -> bookmark.setId(null));
+
+        new Expectations() {{
+            repository.importBookmarks(bookmarks);
+            result = new ImportResult(1, Collections.singletonList("url2"));
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(post(TABOO2_IMPORT)
+                .accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(convertObjectToJsonBytes(bookmarks)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported", is(1)))
+                .andExpect(jsonPath("$.conflicts", hasSize(1)))
+                .andExpect(jsonPath("$.conflicts[0]", is("url2")))
+                .andExpect(jsonPath("$.rejected", hasSize(0)))
+        ;
+    }
+
+    @Test
+    public void importBookmarksFromNdjsonRejectsInvalidBookmarks() throws Exception {
+        List<Bookmark> bookmarks = createBookmarks("1", "2", "3");
+        bookmarks.get(0).setId(null);
+        bookmarks.get(2).setId(null);
+        String content = new String(convertObjectToJsonBytes(bookmarks.get(0)), "UTF-8") + '\n' +
+                new String(convertObjectToJsonBytes(bookmarks.get(1)), "UTF-8") + '\n' +
+                new String(convertObjectToJsonBytes(bookmarks.get(2)), "UTF-8") + '\n';
+
+        new Expectations() {{
+            repository.importBookmarks(Arrays.asList(bookmarks.get(0), bookmarks.get(2)));
+            result = new ImportResult(2, Collections.emptyList());
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(post(TABOO2_IMPORT)
+                .accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.valueOf(Taboo2Service.CONTENT_TYPE_NDJSON))
+                .content(content))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported", is(2)))
+                .andExpect(jsonPath("$.rejected", hasSize(1)))
+                .andExpect(jsonPath("$.rejected[0]", is(1)))
+        ;
+    }
+
+    @Test
+    public void importBookmarksRejectsElementsThatAreNoBookmarks() throws Exception {
+        List<Bookmark> bookmarks = createBookmarks("1", "2");
+        bookmarks.forEach(bookmark -> bookmark.setId(null));
+        String content = new String(convertObjectToJsonBytes(bookmarks.get(0)), "UTF-8") + '\n' +
+                "null\n" +
+                "{\"url\":\"url\",\"unknown\":42}\n" +
+                new String(convertObjectToJsonBytes(bookmarks.get(1)), "UTF-8") + '\n';
+
+        new Expectations() {{
+            repository.importBookmarks(bookmarks);
+            result = new ImportResult(2, Collections.emptyList());
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(post(TABOO2_IMPORT)
+                .accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.valueOf(Taboo2Service.CONTENT_TYPE_NDJSON))
+                .content(content))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported", is(2)))
+                .andExpect(jsonPath("$.rejected", hasSize(2)))
+                .andExpect(jsonPath("$.rejected[0]", is(1)))
+                .andExpect(jsonPath("$.rejected[1]", is(2)))
+        ;
+    }
+
+    @Test
+    public void importBookmarksReturnsPartialResultForMalformedData() throws Exception {
+        List<Bookmark> bookmarks = createBookmarks("1", "2");
+        bookmarks.forEach(bookmark -> bookmark.setId(null));
+        String content = new String(convertObjectToJsonBytes(bookmarks.get(0)), "UTF-8") + '\n' +
+                "{\"url\": oops}\n" +
+                new String(convertObjectToJsonBytes(bookmarks.get(1)), "UTF-8") + '\n';
+
+        new Expectations() {{
+            repository.importBookmarks(Collections.singletonList(bookmarks.get(0)));
+            result = new ImportResult(1, Collections.emptyList());
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(post(TABOO2_IMPORT)
+                .accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.valueOf(Taboo2Service.CONTENT_TYPE_NDJSON))
+                .content(content))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.imported", is(1)))
+                .andExpect(jsonPath("$.rejected", hasSize(1)))
+                .andExpect(jsonPath("$.rejected[0]", is(1)))
+        ;
+    }
+
     @Before
     public void setupTest() {
         Deencapsulation.setField(taboo2Service, repository);
         taboo2Service.logInfoToDebug();
     }
 
+    @Test
+    public void suggestTags() throws Exception {
+        new Expectations() {{
+            repository.suggestTags("ta", 5);
+            result = Arrays.asList("tag2", "tag1");
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_TAGS + "/suggest")
+                .param("prefix", "TA")
+                .param("limit", "5")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.*", hasSize(2)))
+                .andExpect(jsonPath("$[0]", is("tag2")))
+                .andExpect(jsonPath("$[1]", is("tag1")))
+        ;
+    }
+
+    @Test
+    public void suggestTagsWithInvalidLimitYieldsPreconditionFailed() throws Exception {
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_TAGS + "/suggest")
+                .param("prefix", "ta")
+                .param("limit", String.valueOf(Taboo2Service.MAX_SUGGEST_LIMIT + 1))
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isPreconditionFailed())
+        ;
+
+        new Verifications() {{
+            repository.suggestTags(anyString, anyInt);
+            times = 0;
+        }};
+    }
+
     @Test
     public void titleForBookmark() throws Exception {
         MockMvc mockMvc = standaloneSetup(taboo2Service).build();
-        mockMvc.perform(get(TABOO2_TITLE).param("url", Taboo2Service.MAGIC_TEST_URL))
+        MvcResult mvcResult = mockMvc.perform(get(TABOO2_TITLE).param("url", Taboo2Service.MAGIC_TEST_URL))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(mvcResult))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.url", is(Taboo2Service.MAGIC_TEST_URL)));
     }
@@ -598,4 +916,31 @@ public class Taboo2ServiceTests {
         }};
 
     }
+
+    @Test
+    public void dumpBookmarksAsNdjson() throws Exception {
+        List<Bookmark> bookmarks = createBookmarks("0", "1");
+        for (Bookmark bookmark : bookmarks) {
+            bookmark.setId(null);
+        }
+
+        new Expectations() {{
+            repository.dumpBookmarks((Consumer<Bookmark>) any);
+            result = new Delegate() {
+                @SuppressWarnings("unused")
+                void dumpBookmarks(Consumer<Bookmark> consumer) {
+                    bookmarks.forEach(consumer);
+                }
+            };
+        }};
+
+        MockMvc mockMvc = standaloneSetup(taboo2Service).build();
+        mockMvc.perform(get(TABOO2_DUMP_BOOKMARKS).param("format", "ndjson"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", Taboo2Service.CONTENT_TYPE_NDJSON + ";charset=UTF-8"))
+                .andExpect(content().string(
+                        "{\"id\":null,\"title\":\"title0\",\"url\":\"url0\",\"tags\":[\"tag0\"]}\n" +
+                        "{\"id\":null,\"title\":\"title1\",\"url\":\"url1\",\"tags\":[\"tag1\"]}\n"))
+        ;
+    }
 }
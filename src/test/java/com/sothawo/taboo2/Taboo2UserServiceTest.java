@@ -0,0 +1,120 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the Taboo2UserService class.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class Taboo2UserServiceTest {
+// ------------------------------ FIELDS ------------------------------
+
+    /** time to wait for the WatchService, which polls on some platforms. */
+    private static final long WATCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path usersFile;
+    private Taboo2UserService userService;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void changedFileIsReloaded() throws Exception {
+        long version = userService.getUsersVersion();
+        writeUsers("answer:hash42:user", "question:hash43:user");
+
+        long timeout = System.currentTimeMillis() + WATCH_TIMEOUT_MILLIS;
+        while (userService.getUsersVersion() == version && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+
+        assertThat(userService.loadUserByUsername("question").getPassword(), is("hash43"));
+    }
+
+    @Test
+    public void knownUserIsLoaded() throws Exception {
+        UserDetails user = userService.loadUserByUsername("answer");
+
+        assertThat(user.getPassword(), is("hash42"));
+        assertThat(user.getAuthorities().iterator().next().getAuthority(), is("user"));
+    }
+
+    @Test
+    public void unreadableFileKeepsTheUsers() throws Exception {
+        long version = userService.getUsersVersion();
+        Files.delete(usersFile);
+
+        userService.reload();
+
+        assertThat(userService.getUsersVersion(), is(version));
+        assertThat(userService.loadUserByUsername("answer").getPassword(), is("hash42"));
+    }
+
+    @Test(expected = UsernameNotFoundException.class)
+    public void unknownUserIsNotFound() throws Exception {
+        userService.loadUserByUsername("scanner");
+    }
+
+    @Before
+    public void startService() throws Exception {
+        usersFile = folder.getRoot().toPath().resolve("users.txt");
+        writeUsers("# comment", "answer:hash42:user", "invalid line");
+        Taboo2Configuration configuration = new Taboo2Configuration();
+        configuration.setUsers(usersFile.toString());
+        userService = new Taboo2UserService();
+        userService.taboo2Configuration = configuration;
+        userService.start();
+    }
+
+    @After
+    public void stopService() throws Exception {
+        userService.close();
+    }
+
+    /**
+     * replaces the users file like an editor does, by moving a new file in place.
+     *
+     * @param lines
+     *         the lines of the file
+     */
+    private void writeUsers(String... lines) throws Exception {
+        Path tempFile = folder.newFile().toPath();
+        Files.write(tempFile, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Files.move(tempFile, usersFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.taboo2;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the TitleLoader class with a local http server.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class TitleLoaderTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger pageRequests = new AtomicInteger();
+    private final CountDownLatch releasePage = new CountDownLatch(1);
+    private TitleLoader titleLoader;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void concurrentLoadsOfOneUrlShareTheRequest() throws Exception {
+        CompletableFuture<ResponseEntity<Bookmark>> first = titleLoader.loadTitle(baseUrl + "/page");
+        CompletableFuture<ResponseEntity<Bookmark>> second = titleLoader.loadTitle(baseUrl + "/page");
+        releasePage.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS).getBody().getTitle(), is("Das Grüße"));
+        assertThat(second.get(5, TimeUnit.SECONDS).getBody().getTitle(), is("Das Grüße"));
+        assertThat(pageRequests.get(), is(1));
+    }
+
+    @Test
+    public void failuresAreCached() throws Exception {
+        ResponseEntity<Bookmark> response = titleLoader.loadTitle(baseUrl + "/missing").get(5, TimeUnit.SECONDS);
+        titleLoader.loadTitle(baseUrl + "/missing").get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatusCode(), is(HttpStatus.NOT_FOUND));
+        assertThat(pageRequests.get(), is(1));
+    }
+
+    @Test
+    public void loadedTitlesAreCached() throws Exception {
+        releasePage.countDown();
+        titleLoader.loadTitle(baseUrl + "/page").get(5, TimeUnit.SECONDS);
+        ResponseEntity<Bookmark> response = titleLoader.loadTitle(baseUrl + "/page").get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertThat(response.getBody().getUrl(), is(baseUrl + "/page"));
+        assertThat(pageRequests.get(), is(1));
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/page", exchange -> {
+            pageRequests.incrementAndGet();
+            try {
+                releasePage.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // no charset in the header, the page declares it in the head
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(("<html><head><meta charset=\"ISO-8859-1\"><title>Das Grüße</title></head><body>")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                // a body that is never read completely
+                byte[] filler = new byte[64 * 1024];
+                for (int i = 0; i < 16; i++) {
+                    out.write(filler);
+                }
+                out.write("</body></html>".getBytes(StandardCharsets.ISO_8859_1));
+            } catch (java.io.IOException ignored) {
+                // the loader closes the connection after the head
+            }
+        });
+        server.createContext("/missing", exchange -> {
+            pageRequests.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        titleLoader = new TitleLoader();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        titleLoader.close();
+        server.stop(0);
+    }
+}
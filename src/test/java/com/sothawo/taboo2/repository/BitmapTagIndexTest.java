@@ -0,0 +1,99 @@
+package com.sothawo.taboo2.repository;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class BitmapTagIndexTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private BitmapTagIndex index;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void andCombinesAllTags() throws Exception {
+        assertThat(index.find(Arrays.asList("common", "tag2"), true).toArray(), is(new int[]{2}));
+    }
+
+    @Test
+    public void andWithUnknownTagIsEmpty() throws Exception {
+        assertThat(index.find(Arrays.asList("common", "unknown"), true).isEmpty(), is(true));
+    }
+
+    @Test
+    public void countsForSelection() throws Exception {
+        Map<String, Integer> counts = index.counts(RoaringBitmap.bitmapOf(1, 2));
+
+        assertThat(counts.keySet(), contains("common", "tag1", "tag2"));
+        assertThat(counts.get("common"), is(2));
+        assertThat(counts.get("tag1"), is(1));
+        assertThat(index.counts(null).get("tag3"), is(1));
+    }
+
+    @Test
+    public void orCombinesAnyTag() throws Exception {
+        assertThat(index.find(Arrays.asList("tag1", "tag3", "unknown"), false).toArray(), is(new int[]{1, 3}));
+    }
+
+    @Test
+    public void removedDocumentIsNotFound() throws Exception {
+        index.remove(1, Arrays.asList("tag1", "common"));
+
+        assertThat(index.find(Collections.singletonList("common"), true).toArray(), is(new int[]{2}));
+        assertThat(index.tags(), hasSize(3));
+        assertThat(index.tags(), hasItems("common", "tag2", "tag3"));
+    }
+
+    @Test
+    public void resultMayBeChangedWithoutChangingTheIndex() throws Exception {
+        index.find(Collections.singletonList("common"), true).add(42);
+
+        assertThat(index.find(Collections.singletonList("common"), true).toArray(), is(new int[]{1, 2}));
+    }
+
+    @Test
+    public void suggestRanksByUsage() throws Exception {
+        index.add(4, Collections.singletonList("tag3"));
+
+        assertThat(index.suggest("tag", 10), is(Arrays.asList("tag3", "tag1", "tag2")));
+        assertThat(index.suggest("tag", 2), is(Arrays.asList("tag3", "tag1")));
+        assertThat(index.suggest("", 1), is(Collections.singletonList("common")));
+        assertThat(index.suggest("x", 10), hasSize(0));
+    }
+
+    @Test
+    public void tagIsFoundAgainAfterItsPostingWasEmpty() throws Exception {
+        index.remove(3, Collections.singletonList("tag3"));
+        assertThat(index.tags(), not(hasItem("tag3")));
+
+        index.add(4, Collections.singletonList("tag3"));
+
+        assertThat(index.find(Collections.singletonList("tag3"), true).toArray(), is(new int[]{4}));
+        assertThat(index.suggest("tag3", 10), is(Collections.singletonList("tag3")));
+    }
+
+    @Before
+    public void setupIndex() throws Exception {
+        index = new BitmapTagIndex();
+        index.add(1, Arrays.asList("tag1", "common"));
+        index.add(2, Arrays.asList("tag2", "common"));
+        index.add(3, Collections.singletonList("tag3"));
+    }
+}
@@ -0,0 +1,113 @@
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+
+/**
+ * tests for the caching and invalidation of the CachingBookmarkRepository, the repository functions are tested in
+ * RepositoryTest.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class CachingBookmarkRepositoryTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private CachingBookmarkRepository repository;
+
+    private Bookmark javaBookmark;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void changeInvalidatesOnlyAffectedQueries() throws Exception {
+        repository.getBookmarksWithTags(Collections.singletonList("java"), true);
+        repository.getBookmarksWithTags(Collections.singletonList("cooking"), true);
+        repository.getBookmarksWithSearch("recipes");
+
+        repository.createBookmark(aBookmark().withUrl("url3").withTitle("more recipes").addTag("baking").build());
+
+        assertThat(repository.getBookmarksWithTags(Collections.singletonList("java"), true), hasSize(1));
+        assertThat(repository.getBookmarksWithTags(Collections.singletonList("cooking"), true), hasSize(1));
+        assertThat(repository.getStats().hitCount(), is(2L));
+        assertThat(repository.getBookmarksWithSearch("recipes"), hasSize(2));
+        assertThat(repository.getStats().missCount(), is(4L));
+    }
+
+    @Test
+    public void deleteInvalidatesQueries() throws Exception {
+        repository.getBookmarksWithTags(Collections.singletonList("java"), true);
+        repository.getBookmarksWithSearch("java");
+
+        repository.deleteBookmark(javaBookmark.getId());
+
+        assertThat(repository.getBookmarksWithTags(Collections.singletonList("java"), true), hasSize(0));
+        assertThat(repository.getBookmarksWithSearch("java"), hasSize(0));
+        assertThat(repository.getAllTags(), hasSize(1));
+        assertThat(repository.getStats().hitCount(), is(0L));
+    }
+
+    @Test
+    public void equalQueriesShareTheEntry() throws Exception {
+        repository.getBookmarksWithTags(Arrays.asList("java", "cooking"), false);
+        repository.getBookmarksWithTags(Arrays.asList("cooking", "java", "java"), false);
+        repository.getBookmarksWithSearch("Recipes");
+        repository.getBookmarksWithSearch("recipes");
+
+        assertThat(repository.getStats().hitCount(), is(2L));
+        assertThat(repository.getStats().missCount(), is(2L));
+    }
+
+    @Test
+    public void newTagIsInAllTags() throws Exception {
+        assertThat(repository.getAllTags(), hasSize(2));
+
+        repository.createBookmark(aBookmark().withUrl("url3").withTitle("title3").addTag("baking").build());
+
+        assertThat(repository.getAllTags(), hasSize(3));
+        assertThat(repository.getAllTags(), hasItem("baking"));
+    }
+
+    @Test
+    public void repeatedQueryIsCached() throws Exception {
+        repository.getBookmarksWithTags(Collections.singletonList("java"), true);
+        repository.getBookmarksWithTags(Collections.singletonList("java"), true);
+
+        assertThat(repository.getStats().hitCount(), is(1L));
+        assertThat(repository.getStats().missCount(), is(1L));
+    }
+
+    @Before
+    public void setupRepository() throws Exception {
+        repository = new CachingBookmarkRepository(new InMemoryRepository(), 100);
+        javaBookmark = repository.createBookmark(
+                aBookmark().withUrl("url1").withTitle("java streams").addTag("java").build());
+        repository.createBookmark(aBookmark().withUrl("url2").withTitle("recipes").addTag("cooking").build());
+    }
+
+    @Test
+    public void updateInvalidatesOldAndNewQueries() throws Exception {
+        repository.getBookmarksWithTags(Collections.singletonList("java"), true);
+        repository.getBookmarksWithTags(Collections.singletonList("kotlin"), true);
+
+        Bookmark changedBookmark = javaBookmark.clone();
+        changedBookmark.clearTags();
+        changedBookmark.addTag("kotlin");
+        repository.updateBookmark(changedBookmark);
+
+        assertThat(repository.getBookmarksWithTags(Collections.singletonList("java"), true), hasSize(0));
+        assertThat(repository.getBookmarksWithTags(Collections.singletonList("kotlin"), true), hasSize(1));
+        assertThat(repository.getAllTags(), hasItem("kotlin"));
+        assertThat(repository.getStats().hitCount(), is(0L));
+    }
+}
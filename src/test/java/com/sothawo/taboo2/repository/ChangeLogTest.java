@@ -0,0 +1,86 @@
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ChangesExpiredException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class ChangeLogTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private static final long START = 100L;
+
+    private ChangeLog changeLog;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void compactionDropsOldestChanges() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            changeLog.add(Change.Type.CREATED, String.valueOf(i), aBookmark().withUrl("url" + i).build());
+        }
+
+        Changes changes = changeLog.since(START + 3);
+        assertThat(changes.getChanges(), hasSize(2));
+        assertThat(changes.getChanges().get(0).getId(), is("4"));
+        assertThat(changes.getVersion(), is(START + 5));
+    }
+
+    @Test
+    public void compactionKeepsLastChangeOfBookmark() throws Exception {
+        changeLog.add(Change.Type.CREATED, "1", aBookmark().withUrl("url1").build());
+        changeLog.add(Change.Type.UPDATED, "1", aBookmark().withUrl("url1").withTitle("title").build());
+        changeLog.add(Change.Type.CREATED, "2", aBookmark().withUrl("url2").build());
+        changeLog.add(Change.Type.DELETED, "1", null);
+        changeLog.add(Change.Type.UPDATED, "2", aBookmark().withUrl("url2").withTitle("title").build());
+
+        Changes changes = changeLog.since(START);
+        assertThat(changes.getChanges(), hasSize(2));
+        assertThat(changes.getChanges().get(0).getType(), is(Change.Type.DELETED));
+        assertThat(changes.getChanges().get(0).getSequence(), is(START + 4));
+        assertThat(changes.getChanges().get(1).getType(), is(Change.Type.UPDATED));
+        assertThat(changes.getChanges().get(1).getBookmark().getTitle(), is("title"));
+    }
+
+    @Test(expected = ChangesExpiredException.class)
+    public void droppedChangesAreExpired() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            changeLog.add(Change.Type.CREATED, String.valueOf(i), aBookmark().withUrl("url" + i).build());
+        }
+
+        changeLog.since(START + 2);
+    }
+
+    @Test
+    public void purgeReplacesEarlierChanges() throws Exception {
+        changeLog.add(Change.Type.CREATED, "1", aBookmark().withUrl("url1").build());
+        changeLog.add(Change.Type.PURGED, null, null);
+        changeLog.add(Change.Type.CREATED, "2", aBookmark().withUrl("url2").build());
+
+        Changes changes = changeLog.since(START);
+        assertThat(changes.getChanges(), hasSize(2));
+        assertThat(changes.getChanges().get(0).getType(), is(Change.Type.PURGED));
+        assertThat(changes.getChanges().get(0).getId(), is(nullValue()));
+    }
+
+    @Before
+    public void setupChangeLog() throws Exception {
+        changeLog = new ChangeLog(START, 4);
+    }
+
+    @Test(expected = ChangesExpiredException.class)
+    public void unknownVersionIsExpired() throws Exception {
+        changeLog.since(START + 1);
+    }
+}
@@ -0,0 +1,221 @@
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.TabooException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for restoring an InMemoryRepository with a journal, the repository functions are tested in RepositoryTest.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class DurableInMemoryRepositoryTest {
+// ------------------------------ FIELDS ------------------------------
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * creates two bookmarks, changes the first and deletes the second.
+     *
+     * @param repository
+     *         the repository
+     * @return the changed first bookmark
+     */
+    private Bookmark changeRepository(BookmarkRepository repository) {
+        Bookmark bookmark1 =
+                repository.createBookmark(aBookmark().withUrl("url1").withTitle("title1").addTag("tag1").build());
+        Bookmark bookmark2 = repository.createBookmark(aBookmark().withUrl("url2").withTitle("title2").build());
+        bookmark1.setTitle("changed");
+        bookmark1.addTag("tag2");
+        repository.updateBookmark(bookmark1);
+        repository.deleteBookmark(bookmark2.getId());
+        return bookmark1;
+    }
+
+    @Test
+    public void damagedLogTailIsCutOff() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            changeRepository(repository);
+        }
+        Files.write(directory.resolve("wal-0.log"), new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(1));
+            repository.createBookmark(aBookmark().withUrl("url3").build());
+        }
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(2));
+        }
+    }
+
+    @Test
+    public void deletedIdIsNotReusedAfterSnapshot() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Bookmark bookmark;
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            bookmark = changeRepository(repository);
+        }
+        // the update writes a snapshot which does not contain the deleted bookmark with the highest id
+        try (BookmarkRepository repository = new InMemoryRepository(directory, 1)) {
+            bookmark.setTitle("changed again");
+            repository.updateBookmark(bookmark);
+        }
+
+        File[] logs = folder.getRoot().listFiles((dir, name) -> name.equals("wal-0.log"));
+        assertThat(logs.length, is(0));
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            Bookmark newBookmark = repository.createBookmark(aBookmark().withUrl("url3").build());
+            assertThat(newBookmark.getId(), is("3"));
+        }
+    }
+
+    @Test
+    public void failedJournalWriteLeavesRepositoryUnchanged() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        boolean[] failing = {false};
+        BookmarkJournal journal = new BookmarkJournal(directory, BookmarkJournal.DEFAULT_SNAPSHOT_THRESHOLD) {
+            @Override
+            long write(Change.Type type, String id, Bookmark bookmark) {
+                if (failing[0]) {
+                    throw new TabooException("disk full");
+                }
+                return super.write(type, id, bookmark);
+            }
+        };
+        try (BookmarkRepository repository = new InMemoryRepository(journal)) {
+            Bookmark bookmark = repository.createBookmark(aBookmark().withUrl("url1").withTitle("title1").build());
+            failing[0] = true;
+            try {
+                repository.createBookmark(aBookmark().withUrl("url2").build());
+                fail("bookmark created");
+            } catch (TabooException ignored) {
+            }
+            try {
+                Bookmark changedBookmark = repository.getBookmarkById(bookmark.getId());
+                changedBookmark.setUrl("url3");
+                repository.updateBookmark(changedBookmark);
+                fail("bookmark updated");
+            } catch (TabooException ignored) {
+            }
+            try {
+                repository.deleteBookmark(bookmark.getId());
+                fail("bookmark deleted");
+            } catch (TabooException ignored) {
+            }
+            assertThat(repository.getAllBookmarks(), hasSize(1));
+            assertThat(repository.getBookmarkById(bookmark.getId()).getUrl(), is("url1"));
+
+            // the urls of the failed changes are not taken
+            failing[0] = false;
+            repository.createBookmark(aBookmark().withUrl("url2").build());
+            repository.createBookmark(aBookmark().withUrl("url3").build());
+        }
+
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(3));
+        }
+    }
+
+    @Test
+    public void logAfterIncompleteLogIsNotReplayed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path oldLog = directory.resolve("wal-0.log");
+        long completeLength;
+        try (BookmarkJournal journal = new BookmarkJournal(directory, BookmarkJournal.DEFAULT_SNAPSHOT_THRESHOLD)) {
+            journal.load(change -> {
+            });
+            journal.write(Change.Type.CREATED, "1", aBookmark().withId("1").withUrl("url1").build());
+            completeLength = Files.size(oldLog);
+            journal.write(Change.Type.CREATED, "2", aBookmark().withId("2").withUrl("url2").build());
+            journal.rotate();
+            journal.write(Change.Type.CREATED, "3", aBookmark().withId("3").withUrl("url3").build());
+        }
+        // the last record of the old log did not reach the disk before the crash, the new log did
+        try (FileChannel channel = FileChannel.open(oldLog, StandardOpenOption.WRITE)) {
+            channel.truncate(completeLength);
+        }
+
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(1));
+            assertThat(repository.getBookmarkById("1").getUrl(), is("url1"));
+        }
+        assertThat(Files.exists(directory.resolve("wal-1.log")), is(false));
+    }
+
+    @Test
+    public void purgeIsRestored() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            changeRepository(repository);
+            repository.purge();
+        }
+
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(0));
+            assertThat(repository.getAllTags(), hasSize(0));
+        }
+    }
+
+    @Test
+    public void restoresFromLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Bookmark bookmark;
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            bookmark = changeRepository(repository);
+        }
+
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(1));
+            Bookmark restoredBookmark = repository.getBookmarkById(bookmark.getId());
+            assertThat(restoredBookmark.getTitle(), is("changed"));
+            assertThat(restoredBookmark.getTags(), hasSize(2));
+            assertThat(repository.getBookmarksWithTags(Collections.singletonList("tag2"), true), hasSize(1));
+
+            // ids are not reused
+            Bookmark newBookmark = repository.createBookmark(aBookmark().withUrl("url3").build());
+            assertThat(Integer.parseInt(newBookmark.getId()) > 2, is(true));
+        }
+    }
+
+    @Test
+    public void restoresFromSnapshotAndLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (BookmarkRepository repository = new InMemoryRepository(directory, 1)) {
+            changeRepository(repository);
+        }
+        try (BookmarkRepository repository = new InMemoryRepository(directory, 1)) {
+            repository.createBookmark(aBookmark().withUrl("url3").withTitle("title3").build());
+        }
+
+        File[] snapshots = folder.getRoot().listFiles((dir, name) -> name.startsWith("snapshot-"));
+        assertThat(snapshots.length, is(1));
+        try (BookmarkRepository repository = new InMemoryRepository(directory)) {
+            assertThat(repository.getAllBookmarks(), hasSize(2));
+            assertThat(repository.getBookmarksWithSearch("title3"), hasSize(1));
+            assertThat(repository.getAllTags(), hasItem("tag2"));
+            assertThat(repository.getAllTags(), hasSize(2));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.NotFoundException;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * tests for the metrics recorded by the InstrumentedBookmarkRepository, the repository functions are tested in
+ * RepositoryTest.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class InstrumentedBookmarkRepositoryTest {
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void callsAndResultSizesAreRecorded() throws Exception {
+        double calls = sample("taboo2_repository_call_seconds_count", "getBookmarksWithTags");
+        double sizes = sample("taboo2_repository_result_size_sum", "getBookmarksWithTags");
+        try (BookmarkRepository repository = new InstrumentedBookmarkRepository(new InMemoryRepository())) {
+            repository.createBookmark(aBookmark().withUrl("url1").addTag("tag").build());
+            repository.createBookmark(aBookmark().withUrl("url2").addTag("tag").build());
+
+            repository.getBookmarksWithTags(Collections.singletonList("tag"), true);
+        }
+
+        assertThat(sample("taboo2_repository_call_seconds_count", "getBookmarksWithTags"), is(calls + 1));
+        assertThat(sample("taboo2_repository_result_size_sum", "getBookmarksWithTags"), is(sizes + 2));
+    }
+
+    @Test
+    public void exceptionsAreCounted() throws Exception {
+        double errors = sample("taboo2_repository_call_errors_total", "getBookmarkById", "NotFoundException");
+        try (BookmarkRepository repository = new InstrumentedBookmarkRepository(new InMemoryRepository())) {
+            repository.getBookmarkById("42");
+            fail("NotFoundException expected");
+        } catch (NotFoundException ignored) {
+        }
+
+        assertThat(sample("taboo2_repository_call_errors_total", "getBookmarkById", "NotFoundException"),
+                is(errors + 1));
+    }
+
+    /**
+     * returns the value of a sample from the default registry.
+     *
+     * @param name
+     *         the sample name
+     * @param labelValues
+     *         the method and optional exception label
+     * @return the value, 0 if there is no sample yet
+     */
+    private static double sample(String name, String... labelValues) {
+        String[] labelNames = (labelValues.length == 1) ? new String[]{"method"} :
+                new String[]{"method", "exception"};
+        Double value = CollectorRegistry.defaultRegistry.getSampleValue(name, labelNames, labelValues);
+        return (null == value) ? 0 : value;
+    }
+}
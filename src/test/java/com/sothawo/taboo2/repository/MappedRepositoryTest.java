@@ -0,0 +1,154 @@
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.AlreadyExistsException;
+import com.sothawo.taboo2.Bookmark;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the file handling of the MappedRepository, the repository functions are tested in RepositoryTest.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class MappedRepositoryTest {
+// ------------------------------ FIELDS ------------------------------
+
+    /** small segments, so that the tests use several of them. */
+    private static final int SEGMENT_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void dumpConsumerMayChangeTheRepository() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bookmarks.dat");
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++) {
+                repository.createBookmark(aBookmark().withUrl("url" + i).build());
+            }
+            List<String> dumpedUrls = new ArrayList<>();
+            repository.dumpBookmarks(bookmark -> {
+                dumpedUrls.add(bookmark.getUrl());
+                if (bookmark.getUrl().equals("url0")) {
+                    repository.deleteBookmark("2");
+                }
+            });
+            assertThat(dumpedUrls, hasItems("url0", "url1", "url2"));
+            assertThat(repository.getAllBookmarks(), hasSize(2));
+        }
+    }
+
+    @Test
+    public void manyBookmarksGrowTheIndexes() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bookmarks.dat");
+        try (BookmarkRepository repository = new MappedRepository(file)) {
+            for (int i = 0; i < 5000; i++) {
+                repository.createBookmark(aBookmark().withUrl("url" + i).withTitle("title" + i).build());
+            }
+            assertThat(repository.getBookmarkById("4321").getUrl(), is("url4320"));
+            try {
+                repository.createBookmark(aBookmark().withUrl("url1234").build());
+                fail("AlreadyExistsException expected");
+            } catch (AlreadyExistsException ignored) {
+            }
+            assertThat(repository.getAllBookmarks(), hasSize(5000));
+        }
+    }
+
+    @Test
+    public void purgeIsKeptOnReopen() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bookmarks.dat");
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            for (int i = 0; i < 20; i++) {
+                repository.createBookmark(aBookmark().withUrl("url" + i).addTag("tag").build());
+            }
+            repository.purge();
+        }
+
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            assertThat(repository.getAllBookmarks(), hasSize(0));
+            assertThat(repository.getAllTags(), hasSize(0));
+            // ids are not reused
+            assertThat(repository.createBookmark(aBookmark().withUrl("url").build()).getId(), is("21"));
+        }
+
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            assertThat(repository.getAllBookmarks(), hasSize(1));
+            assertThat(repository.getAllTags(), hasSize(0));
+        }
+    }
+
+    @Test
+    public void reopenRestoresBookmarks() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bookmarks.dat");
+        Bookmark bookmark1;
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            bookmark1 = repository.createBookmark(aBookmark().withUrl("url1").withTitle("title1").addTag("tag1")
+                    .build());
+            Bookmark bookmark2 = repository.createBookmark(aBookmark().withUrl("url2").withTitle("title2").build());
+            for (int i = 3; i < 20; i++) {
+                repository.createBookmark(aBookmark().withUrl("url" + i).withTitle("title" + i).addTag("tag" + i)
+                        .build());
+            }
+            bookmark1.setTitle("changed");
+            bookmark1.addTag("tag2");
+            repository.updateBookmark(bookmark1);
+            repository.deleteBookmark(bookmark2.getId());
+        }
+
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            assertThat(repository.getAllBookmarks(), hasSize(18));
+            Bookmark restored = repository.getBookmarkById(bookmark1.getId());
+            assertThat(restored.getTitle(), is("changed"));
+            assertThat(restored.getTags(), hasSize(2));
+            assertThat(repository.getBookmarksWithTags(Collections.singletonList("tag2"), true),
+                    hasItem(restored));
+            assertThat(repository.getBookmarksWithSearch("title19"), hasSize(1));
+
+            Bookmark bookmark = repository.createBookmark(aBookmark().withUrl("url2").build());
+            assertThat(bookmark.getId(), is("20"));
+        }
+    }
+
+    @Test
+    public void updatesAreCompacted() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bookmarks.dat");
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            Bookmark bookmark = repository.createBookmark(aBookmark().withUrl("url1").addTag("tag1").build());
+            Bookmark deletedBookmark = repository.createBookmark(aBookmark().withUrl("url2").build());
+            repository.deleteBookmark(deletedBookmark.getId());
+            for (int i = 0; i < 200; i++) {
+                bookmark.setTitle("title" + i);
+                repository.updateBookmark(bookmark);
+            }
+            assertThat(Files.size(file) <= 2 * SEGMENT_SIZE, is(true));
+            assertThat(repository.getBookmarkById(bookmark.getId()).getTitle(), is("title199"));
+        }
+
+        try (BookmarkRepository repository = new MappedRepository(file, SEGMENT_SIZE)) {
+            assertThat(repository.getAllBookmarks(), hasSize(1));
+            assertThat(repository.getBookmarkById("1").getTitle(), is("title199"));
+            assertThat(repository.getBookmarksWithTags(Collections.singletonList("tag1"), true), hasSize(1));
+            // the id of the deleted bookmark is not reused
+            assertThat(repository.createBookmark(aBookmark().withUrl("url3").build()).getId(), is("3"));
+        }
+    }
+}
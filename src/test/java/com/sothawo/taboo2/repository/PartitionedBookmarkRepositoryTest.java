@@ -0,0 +1,93 @@
+package com.sothawo.taboo2.repository;
+
+import com.sothawo.taboo2.Bookmark;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+
+/**
+ * tests for the routing of the PartitionedBookmarkRepository, the repository functions are tested in RepositoryTest.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class PartitionedBookmarkRepositoryTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private final AtomicReference<String> currentUser = new AtomicReference<>();
+
+    private PartitionedBookmarkRepository repository;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @After
+    public void closeRepository() throws Exception {
+        repository.close();
+    }
+
+    @Before
+    public void createRepository() throws Exception {
+        repository = new PartitionedBookmarkRepository(partition -> new InMemoryRepository(), currentUser::get);
+    }
+
+    @Test
+    public void callsWithoutUserUseTheDefaultPartition() throws Exception {
+        repository.createBookmark(aBookmark().withUrl("url").build());
+
+        assertThat(repository.getPartitionKeys(), hasItem(PartitionedBookmarkRepository.DEFAULT_PARTITION));
+        assertThat(repository.getPartition(PartitionedBookmarkRepository.DEFAULT_PARTITION).getAllBookmarks(),
+                hasSize(1));
+        assertThat(repository.getCurrentPartitionKey(), is(PartitionedBookmarkRepository.DEFAULT_PARTITION));
+    }
+
+    @Test
+    public void usersSeeOnlyTheirBookmarks() throws Exception {
+        currentUser.set("alice");
+        Bookmark aliceBookmark = repository.createBookmark(aBookmark().withUrl("url").addTag("tag").build());
+        currentUser.set("bob");
+        repository.createBookmark(aBookmark().withUrl("url").addTag("other").build());
+        repository.createBookmark(aBookmark().withUrl("url2").build());
+
+        assertThat(repository.getAllBookmarks(), hasSize(2));
+        assertThat(repository.getAllTags(), hasSize(1));
+        currentUser.set("alice");
+        assertThat(repository.getAllBookmarks(), hasSize(1));
+        assertThat(repository.getBookmarkById(aliceBookmark.getId()).getTags(), hasItem("tag"));
+        assertThat(repository.getPartitionKeys(), hasItems("alice", "bob"));
+        assertThat(repository.getPartitionKeys(), hasSize(2));
+    }
+
+    @Test
+    public void defaultUserUsesTheDefaultPartition() throws Exception {
+        assertThat(BookmarkRepositoryConfig.partitionKey("alice", "alice"), is((String) null));
+        assertThat(BookmarkRepositoryConfig.partitionKey("bob", "alice"), is("bob"));
+        assertThat(BookmarkRepositoryConfig.partitionKey("bob", null), is("bob"));
+        assertThat(BookmarkRepositoryConfig.partitionKey(null, "alice"), is((String) null));
+    }
+
+    @Test
+    public void partitionLocationsAreDerivedFromTheLocation() throws Exception {
+        assertThat(BookmarkRepositoryConfig.partitionLocation("target/bookmarks.dat", "alice"),
+                is("target/bookmarks-alice.dat"));
+        assertThat(BookmarkRepositoryConfig.partitionLocation("target/bookmark-journal", "alice"),
+                is("target/bookmark-journal-alice"));
+        assertThat(BookmarkRepositoryConfig.partitionLocation("jdbc:h2:./target/bookmark-db;MODE=MySQL", "alice"),
+                is("jdbc:h2:./target/bookmark-db-alice;MODE=MySQL"));
+        assertThat(BookmarkRepositoryConfig.partitionLocation("bookmarks.dat", "a/b"), is("bookmarks-612f62.dat"));
+        assertThat(BookmarkRepositoryConfig.partitionLocation(null, "alice"), is((String) null));
+    }
+
+    @Test
+    public void partitionsAreCreatedOnce() throws Exception {
+        assertThat(repository.getPartition("alice") == repository.getPartition("alice"), is(true));
+    }
+}
@@ -2,6 +2,11 @@ package com.sothawo.taboo2.repository;
 
 import com.sothawo.taboo2.AlreadyExistsException;
 import com.sothawo.taboo2.Bookmark;
+import com.sothawo.taboo2.BookmarksPage;
+import com.sothawo.taboo2.Change;
+import com.sothawo.taboo2.Changes;
+import com.sothawo.taboo2.ChangesExpiredException;
+import com.sothawo.taboo2.ImportResult;
 import com.sothawo.taboo2.NotFoundException;
 import com.sothawo.taboo2.repository.jpa.DBManager;
 import com.sothawo.taboo2.repository.jpa.H2Repository;
@@ -14,10 +19,12 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static com.sothawo.taboo2.BookmarkBuilder.aBookmark;
 import static org.hamcrest.CoreMatchers.hasItem;
@@ -26,6 +33,8 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
+import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -38,6 +47,8 @@ public class RepositoryTest {
 
     private static final String H2_JDBC_URL_TEST = "jdbc:h2:./target/bookmark-db-test";
     private static final String DB_CHANGELOG = "db/db-changelog.xml";
+    private static final String JOURNAL_DIRECTORY_TEST = "./target/bookmark-journal-test";
+    private static final String MAPPED_FILE_TEST = "./target/bookmark-mapped-test.dat";
 
     @Parameter(0)
     public Class<BookmarkRepositoryFactory> repositoryFactoryClass;
@@ -69,6 +80,11 @@ public class RepositoryTest {
         return Arrays.asList(new Object[][]
                 {
                         {InMemoryRepository.Factory.class, null},
+                        {CachingBookmarkRepository.Factory.class, null},
+                        {InstrumentedBookmarkRepository.Factory.class, null},
+                        {PartitionedBookmarkRepository.Factory.class, new String[]{"user"}},
+                        {InMemoryRepository.Factory.class, new String[]{JOURNAL_DIRECTORY_TEST}},
+                        {MappedRepository.Factory.class, new String[]{MAPPED_FILE_TEST}},
                         {H2Repository.Factory.class, new String[]{H2_JDBC_URL_TEST}}
                 });
     }
@@ -80,6 +96,90 @@ public class RepositoryTest {
         repository.close();
     }
 
+    @Test
+    public void changesSinceVersion() throws Exception {
+        long version = repository.getVersion();
+        Bookmark bookmark1 = repository.createBookmark(aBookmark().withUrl("url1").withTitle("title1").build());
+        Bookmark bookmark2 = repository.createBookmark(aBookmark().withUrl("url2").withTitle("title2").build());
+        long versionAfterCreate = repository.getVersion();
+        bookmark1.setTitle("changed");
+        repository.updateBookmark(bookmark1);
+        repository.deleteBookmark(bookmark2.getId());
+
+        Changes changes = repository.getChanges(version);
+        assertThat(changes.getVersion(), is(repository.getVersion()));
+        assertThat(changes.getChanges(), hasSize(4));
+        assertThat(changes.getChanges().get(0).getType(), is(Change.Type.CREATED));
+        assertThat(changes.getChanges().get(0).getBookmark().getUrl(), is("url1"));
+        assertThat(changes.getChanges().get(2).getType(), is(Change.Type.UPDATED));
+        assertThat(changes.getChanges().get(2).getBookmark().getTitle(), is("changed"));
+        assertThat(changes.getChanges().get(3).getType(), is(Change.Type.DELETED));
+        assertThat(changes.getChanges().get(3).getId(), is(bookmark2.getId()));
+
+        assertThat(repository.getChanges(versionAfterCreate).getChanges(), hasSize(2));
+        assertThat(repository.getChanges(repository.getVersion()).getChanges(), hasSize(0));
+    }
+
+    @Test(expected = ChangesExpiredException.class)
+    public void changesSinceUnknownVersion() throws Exception {
+        repository.getChanges(repository.getVersion() + 1);
+    }
+
+    @Test
+    public void changesIncrementTheVersion() throws Exception {
+        long version = repository.getVersion();
+
+        Bookmark bookmark = repository.createBookmark(aBookmark().withUrl("url1").withTitle("title1").build());
+        assertThat(repository.getVersion() > version, is(true));
+
+        version = repository.getVersion();
+        bookmark.setTitle("title2");
+        repository.updateBookmark(bookmark);
+        assertThat(repository.getVersion() > version, is(true));
+
+        version = repository.getVersion();
+        repository.importBookmarks(Collections.singletonList(aBookmark().withUrl("url2").build()));
+        assertThat(repository.getVersion() > version, is(true));
+
+        version = repository.getVersion();
+        repository.getAllBookmarks();
+        assertThat(repository.getVersion(), is(version));
+
+        repository.deleteBookmark(bookmark.getId());
+        assertThat(repository.getVersion() > version, is(true));
+
+        version = repository.getVersion();
+        repository.purge();
+        assertThat(repository.getVersion() > version, is(true));
+    }
+
+    @Test
+    public void getTagCounts() throws Exception {
+        repository.createBookmark(aBookmark().withUrl("url1").withTitle("java streams").addTag("java").addTag("jvm")
+                .build());
+        repository.createBookmark(aBookmark().withUrl("url2").withTitle("kotlin coroutines").addTag("jvm")
+                .addTag("kotlin").build());
+        repository.createBookmark(aBookmark().withUrl("url3").withTitle("java modules").addTag("java").build());
+
+        Map<String, Integer> counts = repository.getTagCounts(null, true, null);
+        assertThat(counts.size(), is(3));
+        assertThat(counts.get("java"), is(2));
+        assertThat(counts.get("jvm"), is(2));
+        assertThat(counts.get("kotlin"), is(1));
+
+        counts = repository.getTagCounts(Collections.singletonList("jvm"), true, null);
+        assertThat(counts.size(), is(3));
+        assertThat(counts.get("java"), is(1));
+        assertThat(counts.get("jvm"), is(2));
+
+        counts = repository.getTagCounts(Arrays.asList("java", "kotlin"), false, "java");
+        assertThat(counts.size(), is(2));
+        assertThat(counts.get("java"), is(2));
+        assertThat(counts.get("jvm"), is(1));
+
+        assertThat(repository.getTagCounts(Collections.singletonList("unknown"), true, null).size(), is(0));
+    }
+
     @Test
     public void initiallyEmpty() throws Exception {
         assertThat(repository.getAllBookmarks(), hasSize(0));
@@ -179,6 +279,24 @@ public class RepositoryTest {
         }
     }
 
+    @Test
+    public void dumpBookmarksToConsumer() throws Exception {
+        Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("title1").addTag("tag1").build();
+        Bookmark bookmark2 = aBookmark().withUrl("url2").withTitle("title2").addTag("tag2").build();
+
+        repository.createBookmark(bookmark1);
+        repository.createBookmark(bookmark2);
+
+        List<Bookmark> allBookmarks = new ArrayList<>();
+        repository.dumpBookmarks(allBookmarks::add);
+        assertThat(allBookmarks, hasSize(2));
+        assertThat(allBookmarks, hasItems(bookmark1, bookmark2));
+        for (Bookmark bookmark : allBookmarks) {
+            assertThat(bookmark.getId(), is(nullValue()));
+            assertThat(bookmark.getTags(), hasSize(1));
+        }
+    }
+
     @Test
     public void findAllTags() throws Exception {
         Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("title1").addTag("tag1").addTag("common").build();
@@ -226,6 +344,75 @@ public class RepositoryTest {
         assertThat(bookmarks, hasItems(bookmark1, bookmark3));
     }
 
+    @Test
+    public void findBookmarkBySearchAfterUpdate() throws Exception {
+        Bookmark bookmark =
+                repository.createBookmark(aBookmark().withUrl("url1").withTitle("Hello world").build());
+        bookmark.setTitle("Goodbye world");
+        repository.updateBookmark(bookmark);
+
+        assertThat(repository.getBookmarksWithSearch("hello"), hasSize(0));
+        assertThat(repository.getBookmarksWithSearch("goodbye"), hasItem(bookmark));
+    }
+
+    @Test
+    public void findBookmarkBySearchInMiddleOfWord() throws Exception {
+        Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("Hello world").build();
+        Bookmark bookmark2 = aBookmark().withUrl("url2").withTitle("world wide web").build();
+        Bookmark bookmark3 = aBookmark().withUrl("url3").withTitle("say hello").build();
+        repository.importBookmarks(Arrays.asList(bookmark1, bookmark2));
+        repository.createBookmark(bookmark3);
+
+        assertThat(repository.getBookmarksWithSearch("ell"), containsInAnyOrder(bookmark1, bookmark3));
+        assertThat(repository.getBookmarksWithSearch("LO WO"), contains(bookmark1));
+        assertThat(repository.getBookmarksWithSearch("eb"), contains(bookmark2));
+        assertThat(repository.getBookmarksPage(null, true, "ell", null, 10).getBookmarks(),
+                contains(bookmark1, bookmark3));
+    }
+
+    @Test
+    public void findBookmarkBySearchInUrl() throws Exception {
+        Bookmark bookmark1 = aBookmark().withUrl("https://example.com/java-tips").withTitle("Tips").build();
+        Bookmark bookmark2 = aBookmark().withUrl("https://example.com/python").withTitle("Java for beginners").build();
+        Bookmark bookmark3 = aBookmark().withUrl("https://example.com/go").withTitle("Go").addTag("go").build();
+        repository.createBookmark(bookmark1);
+        repository.createBookmark(bookmark2);
+        repository.createBookmark(bookmark3);
+
+        assertThat(repository.getBookmarksWithSearch("ava-t"), contains(bookmark1));
+        assertThat(repository.getBookmarksWithSearch("AVA"), containsInAnyOrder(bookmark1, bookmark2));
+        assertThat(repository.getBookmarksPage(null, true, "ython", null, 10).getBookmarks(), contains(bookmark2));
+        assertThat(repository.getTagCounts(null, true, "com/g"), is(Collections.singletonMap("go", 1)));
+    }
+
+    @Test
+    public void findBookmarkBySearchWithLikeWildcards() throws Exception {
+        Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("100% pure").build();
+        Bookmark bookmark2 = aBookmark().withUrl("url2").withTitle("1000 pure").build();
+        Bookmark bookmark3 = aBookmark().withUrl("url3").withTitle("snake_case").build();
+        repository.createBookmark(bookmark1);
+        repository.createBookmark(bookmark2);
+        repository.createBookmark(bookmark3);
+
+        assertThat(repository.getBookmarksWithSearch("0% p"), contains(bookmark1));
+        assertThat(repository.getBookmarksWithSearch("%"), contains(bookmark1));
+        assertThat(repository.getBookmarksWithSearch("e_c"), contains(bookmark3));
+    }
+
+    @Test
+    public void findBookmarkBySearchWithWordStart() throws Exception {
+        Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("Hello world").build();
+        Bookmark bookmark2 = aBookmark().withUrl("url2").withTitle("World wide web").build();
+        Bookmark bookmark3 = aBookmark().withUrl("url3").withTitle("say hello").build();
+        repository.importBookmarks(Arrays.asList(bookmark1, bookmark2));
+        repository.createBookmark(bookmark3);
+
+        Collection<Bookmark> bookmarks = repository.getBookmarksWithSearch("WOR");
+
+        assertThat(bookmarks, hasSize(2));
+        assertThat(bookmarks, hasItems(bookmark1, bookmark2));
+    }
+
     @Test
     public void findBookmarksBySearchInTitleAndTags() throws Exception {
         Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("Hello world").addTag("tag1").build();
@@ -243,6 +430,47 @@ public class RepositoryTest {
         assertThat(bookmarks, hasItems(bookmark1));
     }
 
+    @Test
+    public void findBookmarksPages() throws Exception {
+        Bookmark[] created = new Bookmark[5];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = repository.createBookmark(aBookmark().withUrl("url" + i).withTitle("title" + i).build());
+        }
+
+        BookmarksPage page1 = repository.getBookmarksPage(null, true, null, null, 2);
+        BookmarksPage page2 = repository.getBookmarksPage(null, true, null, page1.getNextCursor(), 2);
+        BookmarksPage page3 = repository.getBookmarksPage(null, true, null, page2.getNextCursor(), 2);
+
+        assertThat(page1.getBookmarks(), is(Arrays.asList(created[0], created[1])));
+        assertThat(page2.getBookmarks(), is(Arrays.asList(created[2], created[3])));
+        assertThat(page3.getBookmarks(), is(Collections.singletonList(created[4])));
+        assertThat(page3.getNextCursor(), is(nullValue()));
+    }
+
+    @Test
+    public void findBookmarksPagesWithTagsAndSearch() throws Exception {
+        Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("Hello world").addTag("tag1").build();
+        Bookmark bookmark2 = aBookmark().withUrl("url2").withTitle("world wide web").addTag("tag1").build();
+        Bookmark bookmark3 = aBookmark().withUrl("url3").withTitle("say hello").addTag("tag1").build();
+        Bookmark bookmark4 = aBookmark().withUrl("url4").withTitle("hello again").addTag("tag2").build();
+        repository.createBookmark(bookmark1);
+        repository.createBookmark(bookmark2);
+        repository.createBookmark(bookmark3);
+        repository.createBookmark(bookmark4);
+
+        BookmarksPage page1 = repository.getBookmarksPage(Collections.singletonList("tag1"), true, "hello", null, 1);
+        BookmarksPage page2 =
+                repository.getBookmarksPage(Collections.singletonList("tag1"), true, "hello", page1.getNextCursor(), 1);
+
+        assertThat(page1.getBookmarks(), is(Collections.singletonList(bookmark1)));
+        assertThat(page2.getBookmarks(), is(Collections.singletonList(bookmark3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void findBookmarksPageWithInvalidCursor() throws Exception {
+        repository.getBookmarksPage(null, true, null, "not a cursor", 10);
+    }
+
     @Test
     public void findBookmarksWithTagsAnd() throws Exception {
         Bookmark bookmark1 = aBookmark().withUrl("url1").withTitle("title1").addTag("tag1").addTag("common").build();
@@ -292,6 +520,35 @@ public class RepositoryTest {
         assertThat(tags, hasSize(0));
     }
 
+    @Test
+    public void importBookmarks() throws Exception {
+        Bookmark existing = aBookmark().withUrl("url1").withTitle("title1").addTag("tag1").build();
+        repository.createBookmark(existing);
+
+        ImportResult result = repository.importBookmarks(Arrays.asList(
+                aBookmark().withUrl("url1").withTitle("other title").build(),
+                aBookmark().withUrl("url2").withTitle("title2").addTag("tag1").addTag("tag2").build(),
+                aBookmark().withUrl("url3").withTitle("title3").addTag("tag3").build(),
+                aBookmark().withUrl("url3").withTitle("duplicate").build()));
+
+        assertThat(result.getImported(), is(2));
+        assertThat(result.getConflicts(), hasSize(2));
+        assertThat(result.getConflicts(), hasItems("url1", "url3"));
+        assertThat(repository.getAllBookmarks(), hasSize(3));
+        assertThat(repository.getAllTags(), hasItems("tag1", "tag2", "tag3"));
+        Collection<Bookmark> withTag1 = repository.getBookmarksWithTags(Collections.singletonList("tag1"), true);
+        assertThat(withTag1, hasSize(2));
+        assertThat(withTag1, hasItem(aBookmark().withUrl("url2").build()));
+        for (Bookmark bookmark : repository.getBookmarksWithTags(Collections.singletonList("tag3"), true)) {
+            assertThat(bookmark.getTitle(), is("title3"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void importBookmarksWithId() throws Exception {
+        repository.importBookmarks(Collections.singletonList(aBookmark().withId("42").withUrl("url1").build()));
+    }
+
     @Test
     public void repositoryHasNoBookmarksOnCreation() throws Exception {
         Collection<Bookmark> bookmarks = repository.getAllBookmarks();
@@ -304,6 +561,23 @@ public class RepositoryTest {
         repository.purge();
     }
 
+    @Test
+    public void suggestTags() throws Exception {
+        repository.createBookmark(aBookmark().withUrl("url1").withTitle("title1").addTag("java").addTag("jvm")
+                .build());
+        repository.createBookmark(aBookmark().withUrl("url2").withTitle("title2").addTag("jvm").addTag("kotlin")
+                .build());
+        repository.createBookmark(aBookmark().withUrl("url3").withTitle("title3").addTag("javascript").build());
+
+        List<String> tags = repository.suggestTags("j", 10);
+        assertThat(tags, hasSize(3));
+        assertThat(tags, hasItems("java", "javascript", "jvm"));
+        assertThat(tags.get(0), is("jvm"));
+        assertThat(repository.suggestTags("ja", 1), hasSize(1));
+        assertThat(repository.suggestTags("k", 10), is(Collections.singletonList("kotlin")));
+        assertThat(repository.suggestTags("x", 10), hasSize(0));
+    }
+
     @Test
     public void updateBookmark() throws Exception {
         Bookmark bookmark = aBookmark().withUrl("url0").withTitle("title0").addTag("tag0").build();
@@ -0,0 +1,44 @@
+package com.sothawo.taboo2.repository.jpa;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+@SuppressWarnings("RedundantThrows")
+public class BookmarkTrigramsTest {
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void conditionHasOneSubqueryAndParameterPerTrigram() throws Exception {
+        List<Object> parameters = new ArrayList<>();
+        BookmarkTrigrams.addParameters(BookmarkTrigrams.ofSearch("hello"), parameters);
+
+        assertThat(BookmarkTrigrams.conditions(BookmarkTrigrams.ofSearch("hello")).split(" and ").length, is(2));
+        assertThat(parameters, is(Arrays.asList("hel", "llo")));
+    }
+
+    @Test
+    public void searchTrigramsCoverTheSearchString() throws Exception {
+        assertThat(new ArrayList<>(BookmarkTrigrams.ofSearch("Java-Tips")), is(Arrays.asList("jav", "a-t", "ips")));
+        assertThat(new ArrayList<>(BookmarkTrigrams.ofSearch("abc")), is(Arrays.asList("abc")));
+    }
+
+    @Test
+    public void searchShorterThanTrigramHasNoTrigrams() throws Exception {
+        assertThat(BookmarkTrigrams.ofSearch("ab").isEmpty(), is(true));
+    }
+
+    @Test
+    public void splitsTitleAndUrlIntoDistinctLowercaseTrigrams() throws Exception {
+        assertThat(new ArrayList<>(BookmarkTrigrams.of("Hello", null, "a/hell", "ab")),
+                is(Arrays.asList("hel", "ell", "llo", "a/h", "/he")));
+    }
+}